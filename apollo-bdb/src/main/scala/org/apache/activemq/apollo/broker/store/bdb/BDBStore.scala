@@ -53,6 +53,9 @@ class BDBStore(var config:BDBStoreDTO) extends DelayingStoreSupport {
   override def toString = "bdb store at "+config.directory
 
   def flush_delay = config.flush_delay.getOrElse(100)
+  def flush_delay_min = config.flush_delay_min.getOrElse(0L)
+  def flush_delay_max = config.flush_delay_max.getOrElse(-1L)
+  def commit_latency_target = config.commit_latency_target.getOrElse(-1L)
   
   protected def get_next_msg_key = next_msg_key.getAndIncrement
 
@@ -0,0 +1,335 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker
+
+import org.fusesource.hawtdispatch._
+import org.apache.activemq.apollo.util.Log
+import org.apache.activemq.apollo.dto.{DispatchThreadDTO, DispatchGroupingDTO}
+import collection.mutable.{ListBuffer, HashMap}
+
+object AffinityScheduler extends Log {
+
+  /**
+   * How much more load than an even split a thread is allowed to take on
+   * so that heavily communicating peers can stay together.
+   */
+  val LOAD_SLACK = 1.25
+
+  /**
+   * A new grouping is only applied if it reduces the cross thread traffic
+   * by at least this fraction.  Keeps us from shuffling connections around
+   * for a marginal gain.
+   */
+  val MIN_IMPROVEMENT = 0.10
+
+  class Vertex(val queue:DispatchQueue) {
+    var load = 0L
+    var group_load = 0L
+    var parent:Vertex = this
+    // the thread it executes on, null if it's not pinned to one.
+    var current:DispatchQueue = null
+    // the thread the grouping assigns it to.
+    var thread:DispatchQueue = null
+
+    // moves the vertex, null if it can't be moved.
+    var producer:DeliveryProducer = null
+    // does a consumer execute on the dispatch queue?
+    var consumer = false
+    var movable = false
+
+    def root:Vertex = {
+      if( parent ne this ) {
+        parent = parent.root
+      }
+      parent
+    }
+  }
+
+  case class Edge(from:Vertex, to:Vertex, rate:Long)
+
+  /**
+   * The rate of the flows between vertices on different threads.
+   */
+  def cross_thread_rate(edges:Seq[Edge], thread:Vertex=>DispatchQueue) = {
+    edges.foldLeft(0L) { (sum, edge) =>
+      val a = thread(edge.from)
+      if( a == null || (a ne thread(edge.to)) ) {
+        sum + edge.rate
+      } else {
+        sum
+      }
+    }
+  }
+
+  /**
+   * Groups the vertices along their heaviest flows and assigns the
+   * groups to the threads.  Sets the thread of every vertex.
+   *
+   * @return the load assigned to each thread.
+   */
+  def partition(threads:Seq[DispatchQueue], vertices:Iterable[Vertex], edges:Seq[Edge]) = {
+    val total_load = vertices.foldLeft(0L)(_ + _.load)
+    val capacity = ((total_load.toDouble / threads.length) * LOAD_SLACK).toLong
+
+    // Merge along the heaviest flows first as long as the groups fit on a thread.
+    vertices.foreach(v => v.group_load = v.load)
+    edges.sortBy(-_.rate).foreach { edge =>
+      val a = edge.from.root
+      val b = edge.to.root
+      if( (a ne b) && a.group_load + b.group_load <= capacity ) {
+        b.parent = a
+        a.group_load += b.group_load
+      }
+    }
+
+    // Spread the groups over the threads, heaviest first.  Groups with consumers
+    // go to the thread of their heaviest consumer since those are not moved.
+    val thread_loads = HashMap[DispatchQueue, Long]()
+    threads.foreach(t => thread_loads.put(t, 0L))
+    val groups = vertices.groupBy(_.root).toSeq.sortBy(-_._1.group_load)
+    groups.foreach { case (root, members) =>
+      val fixed = members.filter(x => !x.movable && x.current!=null)
+      val thread = if( !fixed.isEmpty ) {
+        fixed.maxBy(_.load).current
+      } else {
+        val current = members.maxBy(_.load).current
+        if( current!=null && thread_loads(current) + root.group_load <= capacity ) {
+          current
+        } else {
+          threads.minBy(thread_loads(_))
+        }
+      }
+      thread_loads.put(thread, thread_loads(thread) + root.group_load)
+      members.foreach { v =>
+        v.thread = if( v.movable ) thread else v.current
+      }
+    }
+    thread_loads
+  }
+
+}
+
+/**
+ * <p>
+ * Groups the producers, destinations and consumers of a virtual host onto the
+ * dispatch threads based on the message rates flowing between them.
+ * </p>
+ * <p>
+ * Each regroup samples the routed and dispatched byte counters to build a graph
+ * whose vertices are dispatch queues and whose edges are the message rates
+ * between them.  The heaviest edges get merged first into groups
+ * that are kept under a per thread capacity and the resulting groups are then
+ * spread over the threads, heaviest group first, preferring the thread the group
+ * is already on.  The grouping is only applied if it cuts the cross thread traffic
+ * by at least MIN_IMPROVEMENT.
+ * </p>
+ * <p>
+ * Only producers and queues get moved, by collocating them with a dispatch queue
+ * which already executes on the chosen thread.  Consumer connections stay on
+ * their thread, so a group which contains some gets placed on the thread of its
+ * heaviest consumer.
+ * </p>
+ * <p>
+ * All methods must be called while executing on the router's dispatch queue.
+ * </p>
+ */
+class AffinityScheduler(val router:LocalRouter) {
+  import AffinityScheduler._
+
+  /**
+   * The counters of a queue, sampled on the queue's dispatch queue.
+   */
+  class QueueSample(val queue:Queue) {
+    // (route, routed bytes)
+    val producers = ListBuffer[(DeliveryProducerRoute, Long)]()
+    // (sub, consumer dispatch queue, dispatched bytes)
+    val consumers = ListBuffer[(Subscription, DispatchQueue, Long)]()
+  }
+
+  // The counter values seen on the last sample keyed by the counter owner.
+  private var last_counters = HashMap[AnyRef, Long]()
+  private var last_sample = 0L
+  private var sampling = false
+
+  /**
+   * The last computed grouping, null until the first regroup.
+   */
+  var last_grouping:DispatchGroupingDTO = null
+  var applied_counter = 0L
+
+  /**
+   * Samples the queues on their own dispatch queues and regroups
+   * once all the samples are back on the router's dispatch queue.
+   */
+  def regroup:Unit = {
+    if( !sampling ) {
+      val queues = router.queues_by_id.values.toList
+      val samples = ListBuffer[QueueSample]()
+      if( queues.isEmpty ) {
+        regroup(samples)
+      } else {
+        sampling = true
+        var remaining = queues.size
+        queues.foreach { queue =>
+          queue.dispatch_queue {
+            val sample = new QueueSample(queue)
+            queue.inbound_sessions.foreach { session =>
+              session.producer match {
+                case route:DeliveryProducerRoute => sample.producers += ((route, route.routed_size_counter))
+                case _ =>
+              }
+            }
+            queue.all_subscriptions.valuesIterator.foreach { sub =>
+              sample.consumers += ((sub, sub.consumer.dispatch_queue, sub.total_dispatched_size))
+            }
+            router.dispatch_queue {
+              samples += sample
+              remaining -= 1
+              if( remaining == 0 ) {
+                sampling = false
+                regroup(samples)
+              }
+            }
+          }
+        }
+      }
+    }
+  }
+
+  private def regroup(samples:Seq[QueueSample]):Unit = {
+    val threads = getThreadQueues()
+    val now = System.currentTimeMillis
+    val elapsed = now - last_sample
+
+    val counters = HashMap[AnyRef, Long]()
+    val vertices = HashMap[DispatchQueue, Vertex]()
+    val edges = ListBuffer[Edge]()
+
+    // converts the counter growth since the last sample into a per second rate.
+    def rate(owner:AnyRef, counter:Long) = {
+      counters.put(owner, counter)
+      last_counters.get(owner) match {
+        case Some(last) if elapsed > 0 && counter > last => ((counter - last) * 1000) / elapsed
+        case _ => 0L
+      }
+    }
+
+    def vertex(queue:DispatchQueue) = vertices.getOrElseUpdate(queue, new Vertex(queue))
+
+    def link(from:DeliveryProducer, to:DispatchQueue, rate:Long) = {
+      // flows within a dispatch queue can't cross threads.
+      if( rate > 0 && (from.dispatch_queue ne to) ) {
+        val f = vertex(from.dispatch_queue)
+        val t = vertex(to)
+        f.producer = from
+        t.consumer = true
+        f.load += rate
+        t.load += rate
+        edges += Edge(f, t, rate)
+      }
+    }
+
+    // Topic producers deliver directly to the topic's consumers.  Deliveries
+    // to queues (durable subs and slow consumer queues) are covered below
+    // by the queue's inbound sessions.
+    router.topic_domain.destinations.foreach { topic =>
+      topic.producers.foreach {
+        case route:DeliveryProducerRoute =>
+          val route_rate = rate(route, route.routed_size_counter)
+          topic.consumers.foreach {
+            case _:Queue =>
+            case consumer => link(route, consumer.dispatch_queue, route_rate)
+          }
+        case _ =>
+      }
+    }
+
+    samples.foreach { sample =>
+      sample.producers.foreach { case (route, counter) =>
+        link(route, sample.queue.dispatch_queue, rate(route, counter))
+      }
+      sample.consumers.foreach { case (sub, consumer_queue, counter) =>
+        link(sample.queue, consumer_queue, rate(sub, counter))
+      }
+    }
+    // a queue is moved as a producer even if it's the target of other producers.
+    vertices.valuesIterator.foreach { v =>
+      if( v.producer.isInstanceOf[Queue] ) {
+        v.consumer = false
+      }
+      v.movable = v.producer!=null && !v.consumer
+    }
+
+    last_counters = counters
+    last_sample = now
+
+    if( threads.length < 2 || edges.isEmpty ) {
+      return
+    }
+
+    // the thread a dispatch queue currently executes on, or null if it's not pinned to one.
+    def thread_of(queue:DispatchQueue):DispatchQueue = {
+      var target = queue.getTargetQueue
+      while( target!=null && !threads.contains(target) ) {
+        target = target.getTargetQueue
+      }
+      target
+    }
+
+    vertices.valuesIterator.foreach(v => v.current = thread_of(v.queue))
+    val total_rate = edges.foldLeft(0L)(_ + _.rate)
+    val thread_loads = partition(threads, vertices.values, edges)
+
+    val grouping = new DispatchGroupingDTO
+    grouping.timestamp = now
+    grouping.total_rate = total_rate
+    grouping.previous_cross_thread_rate = cross_thread_rate(edges, _.current)
+    grouping.cross_thread_rate = cross_thread_rate(edges, _.thread)
+    threads.foreach { thread =>
+      val dto = new DispatchThreadDTO
+      dto.label = thread.getLabel
+      dto.load = thread_loads(thread)
+      vertices.valuesIterator.filter(_.thread eq thread).foreach(v => dto.members.add(v.queue.getLabel))
+      grouping.threads.add(dto)
+    }
+
+    if( grouping.cross_thread_rate < grouping.previous_cross_thread_rate * (1 - MIN_IMPROVEMENT) ) {
+      grouping.applied = true
+      applied_counter += 1
+      debug("regrouping: cross thread rate %d -> %d", grouping.previous_cross_thread_rate, grouping.cross_thread_rate)
+
+      // the dispatch queues which stay where they are, by thread.
+      val anchors = HashMap[DispatchQueue, DispatchQueue]()
+      vertices.valuesIterator.foreach { v =>
+        val current = v.current
+        if( current!=null && (v.thread eq current) ) {
+          val anchor = anchors.get(current)
+          if( anchor.isEmpty || !v.movable ) {
+            anchors.put(current, v.queue)
+          }
+        }
+      }
+      vertices.valuesIterator.foreach { v =>
+        if( v.movable && (v.thread ne v.current) ) {
+          anchors.get(v.thread).foreach(v.producer.collocate(_))
+        }
+      }
+    }
+    last_grouping = grouping
+  }
+
+}
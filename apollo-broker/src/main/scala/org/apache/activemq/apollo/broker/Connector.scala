@@ -43,6 +43,7 @@ trait Connector extends BaseService {
   def config:ConnectorDTO
   def accepted:LongCounter
   def connected:LongCounter
+  def conversions:ConversionCounter
   def update(config: ConnectorDTO, on_complete:Runnable):Unit
   def socket_address:SocketAddress
 
@@ -68,6 +69,7 @@ class AcceptingConnector(val broker:Broker, val id:String) extends Connector {
   var protocol:Protocol = _
   val accepted = new LongCounter()
   val connected = new LongCounter()
+  val conversions = new ConversionCounter
 
   override def toString = "connector: "+config.id
 
@@ -19,10 +19,11 @@ package org.apache.activemq.apollo.broker
 import _root_.org.fusesource.hawtdispatch._
 import org.fusesource.hawtbuf._
 import protocol.Protocol
-import org.apache.activemq.apollo.filter.Filterable
+import org.apache.activemq.apollo.filter.{BooleanExpression, Filterable}
 import org.apache.activemq.apollo.broker.store.StoreUOW
 import org.apache.activemq.apollo.util.Log
 import java.util.concurrent.atomic.AtomicLong
+import org.apache.activemq.apollo.dto.DestinationDTO
 
 object DeliveryProducer extends Log
 
@@ -64,6 +65,26 @@ trait DeliveryConsumer extends Retained {
   def exclusive = false
   def dispatch_queue:DispatchQueue;
   def matches(message:Delivery):Boolean
+
+  /**
+   * The selector the consumer filters messages with or null if it does
+   * not use one.  Queues use it to index their subscriptions.
+   */
+  def message_selector:BooleanExpression = null
+
+  /**
+   * The protocol the messages get converted to before they are filtered with
+   * the message_selector or null if they are filtered as they are.
+   */
+  def selector_protocol:Protocol = null
+
+  /**
+   * The message the message_selector gets evaluated against or null if the
+   * consumer can't accept the delivery.  Must return the same message for all
+   * the consumers which have the same selector_protocol.
+   */
+  def selector_view(delivery:Delivery):Filterable = delivery.message
+
   def connect(producer:DeliveryProducer):DeliverySession
   def is_persistent:Boolean
 }
@@ -122,6 +143,78 @@ trait Message extends Filterable with Retained {
    */
   def protocol:Protocol
 
+  /**
+   * The destinations the message was sent to.  Used when converting
+   * the message to other protocols.
+   */
+  def destination:Array[DestinationDTO] = null
+
+  /**
+   * The application defined properties of the message.  Used when
+   * converting the message to other protocols.
+   */
+  def properties:Iterable[(String, String)] = Nil
+
+  /**
+   * Is the body of the message text?
+   */
+  def is_text_body = false
+
+  // the forms of the message converted to other protocols.
+  private var converted:List[Message] = Nil
+
+  /**
+   * Converts the message to the specified protocol.  The converted form
+   * is kept with the message so that when it's fanned out to many consumers
+   * of the other protocol, it only gets converted once.  Holders of the message
+   * which account for its memory usage have to drop the converted forms with
+   * drop_converted when they stop holding it.
+   *
+   * @return null if the message could not be converted.
+   */
+  def convert_to(target:Protocol, counter:ConversionCounter):Message = {
+    if( protocol eq target ) {
+      this
+    } else {
+      this.synchronized {
+        converted.find(_.protocol eq target) match {
+          case Some(rc) => rc
+          case None =>
+            val start = System.nanoTime
+            val rc = target.convert(this)
+            if( rc!=null ) {
+              if( counter!=null ) {
+                counter.converted(System.nanoTime - start)
+              }
+              converted ::= rc
+            }
+            rc
+        }
+      }
+    }
+  }
+
+  /**
+   * Drops the converted forms of the message.
+   */
+  def drop_converted:Unit = this.synchronized {
+    converted = Nil
+  }
+
+}
+
+/**
+ * Tracks how many messages got converted between protocols
+ * and how long the conversions took.
+ */
+class ConversionCounter {
+  val count = new AtomicLong
+  val time = new AtomicLong
+
+  def converted(nanos:Long) = {
+    count.incrementAndGet
+    time.addAndGet(nanos)
+  }
 }
 
 /**
@@ -188,6 +281,11 @@ class Delivery {
    */
   var ack:(DeliveryResult, StoreUOW)=>Unit = null
 
+  /**
+   * Set when the delivery was sampled to have its latency traced.
+   */
+  var trace:DeliveryTrace = null
+
   def copy() = (new Delivery).set(this)
 
   def set(other:Delivery) = {
@@ -195,6 +293,7 @@ class Delivery {
     message = other.message
     storeKey = other.storeKey
     storeLocator = other.storeLocator
+    trace = other.trace
     this
   }
 
@@ -0,0 +1,81 @@
+/**
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker
+
+import org.apache.activemq.apollo.util.{TimeCounter, TimeMetric}
+
+object DeliveryTrace {
+
+  // The stages a traced delivery gets stamped at.
+  val ENQUEUE = 0     // accepted by the queue
+  val STORE = 1       // persisted by the store
+  val DISPATCH = 2    // handed to a consumer's session
+  val TRANSPORT = 3   // handed to the consumer's transport
+  val ACK = 4         // acked by the consumer
+
+  val STAGES = Array("enqueue", "store", "dispatch", "transport", "ack")
+}
+
+/**
+ * <p>
+ * Carried by a sampled delivery so that the time it takes it to get
+ * through each stage of the broker can be recorded.  The latencies are
+ * measured from the time the producer's route accepted the delivery.
+ * </p>
+ */
+class DeliveryTrace(val routed_at:Long, val tracers:List[DeliveryTracer]) {
+
+  def stamp(stage:Int):Unit = {
+    if( !tracers.isEmpty ) {
+      val latency = System.nanoTime - routed_at
+      tracers.foreach(_.record(stage, latency))
+    }
+  }
+
+  /**
+   * Creates a trace of the same delivery which records into
+   * the tracer of another destination.
+   */
+  def retarget(tracer:DeliveryTracer) = new DeliveryTrace(routed_at, tracer::Nil)
+
+}
+
+/**
+ * <p>
+ * Aggregates the stage latencies of the traced deliveries of a destination.
+ * The stages get recorded from the threads of the producers, the destination,
+ * the store and the consumers, so access is synchronized.  Since only the
+ * sampled deliveries get recorded, it's not contended.
+ * </p>
+ */
+class DeliveryTracer {
+  import DeliveryTrace._
+
+  private val counters = Array.fill(STAGES.length)(new TimeCounter)
+
+  def record(stage:Int, latency:Long) = synchronized {
+    counters(stage) += latency
+  }
+
+  /**
+   * The latencies of the stages which traced deliveries went through.
+   */
+  def metrics:Seq[(String, TimeMetric)] = synchronized {
+    STAGES.zip(counters.map(_(false))).filter(_._2.count > 0).toSeq
+  }
+
+}
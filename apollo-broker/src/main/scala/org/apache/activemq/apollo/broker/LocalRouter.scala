@@ -62,6 +62,12 @@ object LocalRouter extends Log {
   val QUEUE_KIND = "queue"
   val DEFAULT_QUEUE_PATH = "default"
 
+  /**
+   * The config of the topics no topic element matches.  It is shared so
+   * that the authorization decisions cached for it get reused.
+   */
+  val default_topic_config = new TopicDTO
+
   def is_wildcard_config(dto:StringIdDTO) = {
     if( dto.id == null ) {
       true
@@ -326,7 +332,7 @@ class LocalRouter(val virtual_host:VirtualHost) extends BaseService with Router
       import destination_parser._
       virtual_host.config.topics.find{ x=>
         x.id==null || decode_filter(x.id).matches(name)
-      }.getOrElse(new TopicDTO)
+      }.getOrElse(LocalRouter.default_topic_config)
     }
 
     override def connect(path:Path, destination:DestinationDTO, producer:BindableDeliveryProducer, security:SecurityContext):Unit = {
@@ -823,44 +829,9 @@ class LocalRouter(val virtual_host:VirtualHost) extends BaseService with Router
     }
   }
 
-  def connection_regroup = {
-    // this should really be much more fancy.  It should look at the messaging
-    // rates between producers and consumers, look for natural data flow partitions
-    // and then try to equally divide the load over the available processing
-    // threads/cores.
-
-
-
-    // For the topics, just collocate the producers onto the first consumer's thread.
-    topic_domain.destinations.foreach { node =>
-
-      node.consumers.headOption.foreach{ consumer =>
-        node.producers.foreach { r=>
-          r.collocate(consumer.dispatch_queue)
-        }
-      }
-    }
-
+  val affinity_scheduler = new AffinityScheduler(this)
 
-    queue_domain.destinations.foreach { queue=>
-      queue.dispatch_queue {
-
-        // Collocate the queue's with the first consumer
-        // TODO: change this so it collocates with the fastest consumer.
-
-        queue.all_subscriptions.headOption.map( _._1 ).foreach { consumer=>
-          queue.collocate( consumer.dispatch_queue )
-        }
-
-        // Collocate all the producers with the queue..
-
-        queue.inbound_sessions.foreach { session =>
-          session.producer.collocate( queue.dispatch_queue )
-        }
-      }
-
-    }
-  }
+  def connection_regroup = affinity_scheduler.regroup
 
   /////////////////////////////////////////////////////////////////////////////
   //
@@ -35,6 +35,15 @@ object Queue extends Log {
 
   val PREFTCH_LOAD_FLAG = 1.toByte
   val PREFTCH_HOLD_FLAG = 2.toByte
+
+  val PRIORITY_LANES = 10
+  val DEFAULT_PRIORITY = 4
+
+  /**
+   * The number of entries browse_entries visits before it lets
+   * the queue execute other tasks.
+   */
+  val BROWSE_SLICE_SIZE = 1000
 }
 
 import Queue._
@@ -78,6 +87,12 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:QueueBinding
   // sequence numbers.. used to track what's in the store.
   var message_seq_counter = 1L
 
+  val swap_planner = new SwapPlanner(this)
+
+  val selector_index = new SelectorIndex
+
+  val tracer = new DeliveryTracer
+
   val entries = new LinkedNodeList[QueueEntry]()
   val head_entry = new QueueEntry(this, 0L).head
   var tail_entry = new QueueEntry(this, next_message_seq)
@@ -120,12 +135,38 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:QueueBinding
    */
   var tune_consumer_buffer = 0
 
+  /**
+   *  The maximum amount of memory per subscription used to load
+   *  messages ahead of the consumer to hide the store load latency.
+   */
+  var tune_read_ahead_size = 0
+
+  /**
+   * Should higher priority messages get dispatched ahead of
+   * lower priority messages?
+   */
+  var tune_priority_dispatch = false
+
   def configure(c:QueueDTO) = {
     config = c
     tune_persistent = virtual_host.store !=null && config.persistent.getOrElse(true)
     tune_swap = tune_persistent && config.swap.getOrElse(true)
     tune_swap_range_size = config.swap_range_size.getOrElse(10000)
     tune_consumer_buffer = config.consumer_buffer.getOrElse(256*1024)
+    tune_read_ahead_size = config.read_ahead_size.getOrElse(tune_consumer_buffer)
+    val was_priority_dispatch = tune_priority_dispatch
+    tune_priority_dispatch = config.priority_dispatch.getOrElse(false)
+    if( !tune_priority_dispatch ) {
+      clear_priority_lanes
+    } else if( !was_priority_dispatch ) {
+      // lane the entries which were loaded before priority dispatch got enabled.
+      var cur = entries.getHead
+      while( cur!=null ) {
+        lane_add(cur)
+        cur = cur.getNext
+      }
+      reset_priority_scans
+    }
 
     if( tune_persistent ) {
       val record = new QueueRecord
@@ -188,6 +229,18 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:QueueBinding
 
   var individual_swapped_items = 0
 
+  // moving average of how long in nanoseconds it takes the store to load entries.
+  var swap_in_latency = 0L
+
+  def swap_in_completed(start:Long) = {
+    val latency = System.nanoTime - start
+    swap_in_latency = if( swap_in_latency==0 ) {
+      latency
+    } else {
+      (swap_in_latency*7 + latency) / 8
+    }
+  }
+
   val swap_source = createSource(EventAggregators.INTEGER_ADD, dispatch_queue)
   swap_source.setEventHandler(^{ swap_messages });
   swap_source.resume
@@ -219,6 +272,9 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:QueueBinding
 
     swapped_in_size_max += (tune_queue_buffer-prev_queue_buffer)
 
+    // the swap policy may have changed.. re-check all the entries.
+    swap_planner.request_full_pass
+
     restore_from_store {
       check_idle
       trigger_swap
@@ -310,6 +366,65 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:QueueBinding
     on_completed.run
   }
 
+  /**
+   * Visits the entries which have a seq of at least from_seq in order, until
+   * the visitor returns false or the tail entry was visited.  The entries are
+   * visited in slices of BROWSE_SLICE_SIZE so that large queues can be inspected
+   * without holding up the queue's dispatching.  Since the queue changes between
+   * slices, entries which get removed in the meantime may not get visited.
+   */
+  def browse_entries(from_seq:Long)(visitor:QueueEntry=>Boolean)(on_complete: =>Unit):Unit = {
+    var next_seq = from_seq
+    val cursor = new BrowseCursor(head_entry)
+
+    def browse_slice:Unit = {
+      assert_executing
+      browse_cursors = browse_cursors.filterNot(_ eq cursor)
+      var cur = cursor.entry
+      var remaining = BROWSE_SLICE_SIZE
+      while( remaining > 0 ) {
+        if( cur.seq >= next_seq ) {
+          if( !visitor(cur) ) {
+            on_complete
+            return
+          }
+          next_seq = cur.seq + 1
+        }
+        if( cur eq tail_entry ) {
+          on_complete
+          return
+        }
+        cur = cur.nextOrTail
+        remaining -= 1
+      }
+      // park the cursor so that it gets advanced if the entry is removed.
+      cursor.entry = cur
+      browse_cursors ::= cursor
+      dispatch_queue { browse_slice }
+    }
+
+    browse_slice
+  }
+
+  /**
+   * Where a browse_entries call resumes with its next slice.
+   */
+  private class BrowseCursor(var entry:QueueEntry)
+
+  private var browse_cursors = List[BrowseCursor]()
+
+  /**
+   * Moves the browse cursors positioned on an entry which is being unlinked
+   * onto the entry which follows it.
+   */
+  def advance_browse_cursors(entry:QueueEntry) = {
+    browse_cursors.foreach { cursor =>
+      if( cursor.entry eq entry ) {
+        cursor.entry = entry.nextOrTail
+      }
+    }
+  }
+
   def addCapacity(amount:Int) = {
     val was_full = messages.full
     swapped_in_size_max += amount
@@ -345,6 +460,17 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:QueueBinding
           queueDelivery.uow = delivery.uow
         }
 
+        if( queueDelivery.trace!=null ) {
+          val trace = queueDelivery.trace.retarget(tracer)
+          queueDelivery.trace = trace
+          trace.stamp(DeliveryTrace.ENQUEUE)
+          if( queueDelivery.uow!=null ) {
+            queueDelivery.uow.on_complete {
+              trace.stamp(DeliveryTrace.STORE)
+            }
+          }
+        }
+
         entries.addLast(entry)
         enqueue_item_counter += 1
         enqueue_size_counter += entry.size
@@ -362,11 +488,17 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:QueueBinding
           entry.dispatch
         }
 
+        if( tune_priority_dispatch ) {
+          // let it jump ahead of the lower priority entries subs are waiting on.
+          dispatch_prioritized(entry)
+        }
+
         val prev = entry.getPrevious
 
-        if( (prev.as_loaded!=null && prev.as_loaded.swapping_out ) || (prev.as_swapped!=null && !prev.as_swapped.swapping_in) ) {
+        if( !is_pinned(entry) && ((prev.as_loaded!=null && prev.as_loaded.swapping_out ) || (prev.as_swapped!=null && !prev.as_swapped.swapping_in)) ) {
           entry.swap(!entry.as_loaded.acquired)
         } else {
+          swap_planner.dirty(entry)
           trigger_swap
         }
 
@@ -381,6 +513,162 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:QueueBinding
     }
   }
 
+  /////////////////////////////////////////////////////////////////////
+  //
+  // Priority dispatch support.  Loaded entries which have not been
+  // acquired are linked into a lane per message priority so that subs
+  // can find higher priority entries without scanning the queue.
+  //
+  /////////////////////////////////////////////////////////////////////
+
+  val priority_lanes = Array.fill(PRIORITY_LANES)(new LinkedNodeList[PriorityLaneNode])
+  var priority_lane_items = 0
+
+  // the size of the pinned entries.
+  var priority_pinned_size = 0L
+
+  def priority_of(delivery:Delivery) = delivery.message.priority.toInt.max(0).min(PRIORITY_LANES-1)
+
+  /**
+   * Entries with a priority above the default priority stay in memory so that
+   * they can be dispatched ahead of swapped entries.  They may only use up half
+   * of the queue buffer, the rest of them get swapped like any other entry.
+   */
+  def is_pinned(entry:QueueEntry) = entry.priority_node!=null && entry.priority_node.pinned
+
+  def lane_add(entry:QueueEntry):Unit = {
+    val loaded = entry.as_loaded
+    if( tune_priority_dispatch && entry.priority_node==null && loaded!=null && !loaded.acquired ) {
+      val priority = priority_of(loaded.delivery)
+      // nothing can be dispatched ahead of the lowest priority.
+      if( priority > 0 ) {
+        val node = new PriorityLaneNode(entry, priority)
+        val lane = priority_lanes(priority)
+        // keep the lane in seq order, entries are usually added to the end.
+        var prev = lane.getTail
+        while( prev!=null && prev.entry.seq > entry.seq ) {
+          prev = prev.getPrevious
+        }
+        if( prev==null ) {
+          lane.addFirst(node)
+        } else {
+          prev.linkAfter(node)
+        }
+        if( node.getNext!=null ) {
+          // the subs have to look at the lane again from the new entry on.
+          all_subscriptions.valuesIterator.foreach { sub =>
+            sub.priority_scanned(priority) = sub.priority_scanned(priority).min(entry.seq - 1)
+          }
+        }
+        if( priority > DEFAULT_PRIORITY && priority_pinned_size + entry.size <= swapped_in_size_max / 2 ) {
+          node.pinned = true
+          priority_pinned_size += entry.size
+        }
+        entry.priority_node = node
+        priority_lane_items += 1
+      }
+    }
+  }
+
+  def lane_remove(entry:QueueEntry):Unit = {
+    if( entry.priority_node!=null ) {
+      if( entry.priority_node.pinned ) {
+        priority_pinned_size -= entry.size
+      }
+      entry.priority_node.unlink
+      entry.priority_node = null
+      priority_lane_items -= 1
+    }
+  }
+
+  def clear_priority_lanes = {
+    priority_lanes.foreach { lane =>
+      var node = lane.getHead
+      while( node!=null ) {
+        node.entry.priority_node = null
+        node = node.getNext
+      }
+      lane.clear
+    }
+    priority_lane_items = 0
+    priority_pinned_size = 0
+  }
+
+  /**
+   * The subs need to look at the entries they rejected again
+   * once the exclusive subscriptions change.
+   */
+  def reset_priority_scans = {
+    all_subscriptions.valuesIterator.foreach { sub =>
+      java.util.Arrays.fill(sub.priority_scanned, -1L)
+    }
+  }
+
+  def is_exclusive_target(sub:Subscription, delivery:Delivery) = {
+    // Find the the first exclusive target of the message
+    val exclusive_target = exclusive_subscriptions.find( _.matches(delivery) )
+    !exclusive_target.isDefined || exclusive_target.get == sub
+  }
+
+  /**
+   * Lets the subscription acquire the entries which have a higher priority than
+   * the specified priority for as long as it has room for them.  The entries of
+   * a lane the sub already rejected are not looked at again.
+   */
+  def dispatch_prioritized(sub:Subscription, priority:Int):Unit = {
+    var lane = PRIORITY_LANES - 1
+    while( priority_lane_items > 0 && lane > priority && !sub.full ) {
+      // the lanes are in seq order, find the first entry the sub has not looked at.
+      val scanned = sub.priority_scanned(lane)
+      var node = priority_lanes(lane).getTail
+      var first:PriorityLaneNode = null
+      while( node!=null && node.entry.seq > scanned ) {
+        first = node
+        node = node.getPrevious
+      }
+      node = first
+      while( node!=null && !sub.full ) {
+        val next = node.getNext
+        val loaded = node.entry.as_loaded
+        if( sub.matches(loaded.delivery) && is_exclusive_target(sub, loaded.delivery) ) {
+          loaded.acquire(sub)
+        } else {
+          sub.priority_scanned(lane) = node.entry.seq
+        }
+        node = next
+      }
+      lane -= 1
+    }
+  }
+
+  /**
+   * Offers a newly enqueued entry to the subs which are waiting
+   * on lower priority entries to load.
+   */
+  def dispatch_prioritized(entry:QueueEntry):Unit = {
+    val node = entry.priority_node
+    if( node!=null ) {
+      // offer it in the order the entries would get dispatched: by the position
+      // the subs are parked at, then in the order they are parked in.
+      val positions = all_subscriptions.valuesIterator.map(_.pos).filter(_.seq < entry.seq).toSeq.distinct.sortWith(_.seq < _.seq)
+      positions.foreach { pos =>
+        val at = pos.as_loaded
+        val at_priority = if( at==null ) -1 else priority_of(at.delivery)
+        if( at_priority < node.priority ) {
+          pos.parked.foreach { sub =>
+            val loaded = entry.as_loaded
+            if( entry.priority_node!=null && !sub.browser && !sub.full && sub.matches(loaded.delivery) && is_exclusive_target(sub, loaded.delivery) ) {
+              loaded.acquire(sub)
+              // The acquiring sub goes last so that the other competing
+              // subs get first dibs at the next entry.
+              pos.parked = pos.parked.filterNot(_ eq sub) ::: sub :: Nil
+            }
+          }
+        }
+      }
+    }
+  }
+
   def expired(delivery:Delivery):Unit = {
     expired_ts = now
     expired_item_counter += 1
@@ -442,94 +730,8 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:QueueBinding
   }
 
   def swap_messages = {
-
     now = System.currentTimeMillis()
-
-    var cur = entries.getHead
-    while( cur!=null ) {
-
-      // reset the prefetch flags and handle expiration...
-      cur.prefetch_flags = 0
-      val next = cur.getNext
-
-      // handle expiration...
-      if( cur.expiration != 0 && cur.expiration <= now ) {
-        cur.state match {
-          case x:QueueEntry#SwappedRange =>
-            // load the range to expire the messages in it.
-            cur.load
-          case x:QueueEntry#Swapped =>
-            // remove the expired swapped message.
-            expired(cur)
-            x.remove
-          case x:QueueEntry#Loaded =>
-            // remove the expired message if it has not been
-            // acquired.
-            if( !x.acquired ) {
-              expired(cur)
-              x.remove
-            }
-          case _ =>
-        }
-      }
-      cur = next
-    }
-
-    // Set the prefetch flags
-    all_subscriptions.valuesIterator.foreach( _.refill_prefetch )
-
-    // swap out messages.
-    cur = entries.getHead
-    while( cur!=null ) {
-      val next = cur.getNext
-      val loaded = cur.as_loaded
-      if( loaded!=null ) {
-        if( cur.prefetch_flags==0 && !loaded.acquired  ) {
-          val asap = !cur.as_loaded.acquired
-          cur.swap(asap)
-        } else {
-          cur.load // just in case it's getting swapped.
-        }
-      }
-      cur = next
-    }
-
-
-    // Combine swapped items into swapped ranges
-    if( individual_swapped_items > tune_swap_range_size*2 ) {
-
-      debug("Looking for swapped entries to combine")
-
-      var distance_from_sub = tune_swap_range_size;
-      var cur = entries.getHead
-      var combine_counter = 0;
-
-      while( cur!=null ) {
-
-        // get the next now.. since cur may get combined and unlinked
-        // from the entry list.
-        val next = cur.getNext
-
-        if( cur.prefetch_flags!=0 ) {
-          distance_from_sub = 0
-        } else {
-          distance_from_sub += 1
-          if( cur.can_combine_with_prev ) {
-            cur.getPrevious.as_swapped_range.combineNext
-            combine_counter += 1
-          } else {
-            if( cur.is_swapped && distance_from_sub > tune_swap_range_size ) {
-              cur.swapped_range
-              combine_counter += 1
-            }
-          }
-
-        }
-        cur = next
-      }
-      debug("combined %d entries", combine_counter)
-    }
-
+    swap_planner.pass
   }
 
   def schedule_periodic_maintenance:Unit = dispatch_queue.after(1, TimeUnit.SECONDS) {
@@ -796,6 +998,12 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
   // in the entry.
   var prefetch_flags:Byte = 0
 
+  // the timer which will expire this entry.
+  var expiration_timer:TimerWheel[QueueEntry]#Timer = null
+
+  // links the entry into a priority lane while it can be dispatched by priority.
+  var priority_node:PriorityLaneNode = null
+
   // The current state of the entry: Head | Tail | Loaded | Swapped | SwappedRange
   var state:EntryState = new Tail
 
@@ -818,16 +1026,20 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
     state = new Loaded(delivery, false)
     queue.swapped_in_size += size
     queue.swapped_in_items += 1
+    queue.swap_planner.expires(this)
+    queue.lane_add(this)
     this
   }
 
   def init(qer:QueueEntryRecord):QueueEntry = {
     state = new Swapped(qer.message_key, new AtomicLong(qer.message_locator), qer.size, qer.expiration)
+    queue.swap_planner.expires(this)
     this
   }
 
   def init(range:QueueEntryRange):QueueEntry = {
     state = new SwappedRange(range.last_entry_seq, range.count, range.size, range.expiration)
+    queue.swap_planner.expires(this)
     this
   }
 
@@ -845,6 +1057,14 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
       cur = if( cur.dispatch ) {
         next
       } else {
+        if( cur.hasSubs && cur.is_swapped_or_swapping_out ) {
+          // the subs have to wait for the store to load the entry.
+          cur.parked.foreach { sub=>
+            if( !sub.full ) {
+              sub.stalled
+            }
+          }
+        }
         null
       }
     }
@@ -1005,8 +1225,11 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
       // advance subscriptions that were on this entry..
       advance(parked)
       parked = Nil
+      queue.advance_browse_cursors(entry)
 
       // take the entry of the entries list..
+      queue.swap_planner.removed(entry)
+      queue.lane_remove(entry)
       unlink
       //TODO: perhaps refill subscriptions.
     }
@@ -1175,7 +1398,10 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
         queue.swap_out_size_counter += size
         queue.swap_out_item_counter += 1
 
+        // the converted forms are not counted in the swapped_in_size.
+        delivery.message.drop_converted
         state = new Swapped(delivery.storeKey, delivery.storeLocator, size, expiration)
+        queue.lane_remove(entry)
         if( can_combine_with_prev ) {
           getPrevious.as_swapped_range.combineNext
         }
@@ -1184,6 +1410,7 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
         }
       } else {
         if( remove_pending ) {
+          delivery.message.drop_converted
           delivery.message.release
           queue.swapped_in_size -= size
           queue.swapped_in_items -= 1
@@ -1200,9 +1427,11 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
     }
 
     override def remove = {
+      queue.lane_remove(entry)
       if( storing | remove_pending ) {
         remove_pending = true
       } else {
+        delivery.message.drop_converted
         delivery.message.release
         queue.swapped_in_size -= size
         queue.swapped_in_items -= 1
@@ -1210,6 +1439,31 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
       }
     }
 
+    /**
+     * Acquires the entry for the subscription and hands it the delivery.  The
+     * subscription must not be full.
+     */
+    def acquire(sub:Subscription) = {
+      acquired = true
+      queue.lane_remove(entry)
+
+      val acquiredQueueEntry = sub.acquire(entry)
+      val acquiredDelivery = delivery.copy
+      val trace = acquiredDelivery.trace
+      acquiredDelivery.ack = (consumed, uow)=> {
+        if( trace!=null ) {
+          trace.stamp(DeliveryTrace.ACK)
+        }
+        if( uow!=null ) {
+          uow.retain()
+        }
+        queue.ack_source.merge((acquiredQueueEntry, consumed, uow))
+      }
+
+      val accepted = sub.offer(acquiredDelivery)
+      assert(accepted, "sub should have accepted, it had reported not full earlier.")
+    }
+
     override def dispatch():Boolean = {
 
       queue.assert_executing
@@ -1228,11 +1482,15 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
       var heldBack = ListBuffer[Subscription]()
       var advancing = ListBuffer[Subscription]()
 
+      // Use the selector index to avoid matching all the parked subs.
+      lazy val candidates = if( parked.tail.isEmpty ) null else queue.selector_index.candidates(delivery)
+      def interested(sub:Subscription) = !queue.selector_index.skips(sub.consumer, candidates) && sub.matches(delivery)
+
       var acquiringSub: Subscription = null
       parked.foreach{ sub=>
 
         if( sub.browser ) {
-          if (!sub.matches(delivery)) {
+          if (!interested(sub)) {
             // advance: not interested.
             advancing += sub
           } else {
@@ -1246,20 +1504,21 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
           }
 
         } else {
+          if( queue.tune_priority_dispatch ) {
+            // the sub gets the higher priority entries first.
+            queue.dispatch_prioritized(sub, queue.priority_of(delivery))
+          }
           if( acquired ) {
             // advance: another sub already acquired this entry..
             advancing += sub
           } else {
-            if (!sub.matches(delivery)) {
+            if (!interested(sub)) {
               // advance: not interested.
               advancing += sub
             } else {
 
-              // Find the the first exclusive target of the message
-              val exclusive_target = queue.exclusive_subscriptions.find( _.matches(delivery) )
-
               // Is the current sub not the exclusive target?
-              if( exclusive_target.isDefined && (exclusive_target.get != sub) ) {
+              if( !queue.is_exclusive_target(sub, delivery) ) {
                 // advance: not interested.
                 advancing += sub
               } else {
@@ -1270,19 +1529,7 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
                 } else {
                   // advance: accepted...
                   acquiringSub = sub
-                  acquired = true
-
-                  val acquiredQueueEntry = sub.acquire(entry)
-                  val acquiredDelivery = delivery.copy
-                  acquiredDelivery.ack = (consumed, uow)=> {
-                    if( uow!=null ) {
-                      uow.retain()
-                    }
-                    queue.ack_source.merge((acquiredQueueEntry, consumed, uow))
-                  }
-
-                  val accepted = sub.offer(acquiredDelivery)
-                  assert(accepted, "sub should have accepted, it had reported not full earlier.")
+                  acquire(sub)
                 }
               }
             }
@@ -1326,8 +1573,10 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
   class Swapped(override val message_key:Long, override val message_locator:AtomicLong, override val size:Int, override val expiration:Long) extends EntryState {
 
     queue.individual_swapped_items += 1
+    queue.swap_planner.swapped(entry)
 
     var swapping_in = false
+    var swap_in_start = 0L
 
 
     override def count = 1
@@ -1350,6 +1599,7 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
 //        trace("Start entry load of message seq: %s", seq)
         // start swapping in...
         swapping_in = true
+        swap_in_start = System.nanoTime
         queue.swapping_in_size += size
         queue.virtual_host.store.load_message(message_key, message_locator) { delivery =>
           // pass off to a source so it can aggregate multiple
@@ -1375,6 +1625,7 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
 //        debug("Loaded message seq: ", seq )
         swapping_in = false
         queue.swapping_in_size -= size
+        queue.swap_in_completed(swap_in_start)
 
         val delivery = new Delivery()
         delivery.message = ProtocolFactory.get(messageRecord.protocol.toString).get.decode(messageRecord)
@@ -1390,6 +1641,8 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
 
         queue.individual_swapped_items -= 1
         state = new Loaded(delivery, true)
+        queue.swap_planner.dirty(entry)
+        queue.lane_add(entry)
       } else {
 //        debug("Ignoring store load of: ", messageKey)
       }
@@ -1459,9 +1712,11 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
     override def swap_in() = {
       if( !swapping_in ) {
         swapping_in = true
+        val start = System.nanoTime
         queue.virtual_host.store.list_queue_entries(queue.store_id, seq, last) { records =>
           if( !records.isEmpty ) {
             queue.dispatch_queue {
+              queue.swap_in_completed(start)
 
               var item_count=0
               var size_count=0
@@ -1491,11 +1746,19 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
               // move the subs to the first entry that we just loaded.
               parked.foreach(_.advance(next))
               next :::= parked
+              queue.advance_browse_cursors(entry)
               queue.trigger_swap
 
+              queue.swap_planner.removed(entry)
               unlink
 
-              // TODO: refill prefetches
+              // the subs that were reading ahead into the range can now
+              // continue reading ahead into the loaded entries.
+              queue.all_subscriptions.valuesIterator.foreach { sub =>
+                if( sub.pos.seq <= last && sub.prefetch_end_seq >= seq ) {
+                  sub.refill_prefetch
+                }
+              }
             }
           } else {
             warn("range load failed")
@@ -1529,12 +1792,21 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
       }
       _size += value.size
       value.remove
+      queue.swap_planner.expires(entry)
     }
 
   }
 
 }
 
+/**
+ * Links a loaded queue entry into the priority lane of its message priority.
+ */
+class PriorityLaneNode(val entry:QueueEntry, val priority:Int) extends LinkedNode[PriorityLaneNode] {
+  // is the entry kept from being swapped out?
+  var pinned = false
+}
+
 object Subscription extends Log
 
 /**
@@ -1563,12 +1835,26 @@ class Subscription(val queue:Queue, val consumer:DeliveryConsumer) extends Deliv
   var avg_advanced_size = queue.tune_consumer_buffer
   var tail_parkings = 1
 
+  // the seq of the last entry in the prefetch window.
+  var prefetch_end_seq = 0L
+
+  // the number of bytes loaded ahead of the consumer buffer.
+  var read_ahead_size = 0
+
+  // tracks how often and how long the sub waits for the store to load entries.
+  var stall_start = 0L
+  var total_stall_count = 0L
+  var total_stall_time = 0L
+
   var total_dispatched_count = 0L
   var total_dispatched_size = 0L
 
   var total_ack_count = 0L
   var total_nack_count = 0L
 
+  // per priority lane, the seq of the last entry the sub rejected.
+  val priority_scanned = Array.fill(Queue.PRIORITY_LANES)(-1L)
+
   override def toString = {
     def seq(entry:QueueEntry) = if(entry==null) null else entry.seq
     "{ id: "+id+", acquired_size: "+acquired_size+", pos: "+seq(pos)+"}"
@@ -1592,11 +1878,13 @@ class Subscription(val queue:Queue, val consumer:DeliveryConsumer) extends Deliv
     queue.head_entry ::= this
 
     queue.all_subscriptions += consumer -> this
+    queue.selector_index.add(consumer)
     queue.consumer_counter += 1
     queue.addCapacity( queue.tune_consumer_buffer )
 
     if( exclusive ) {
       queue.exclusive_subscriptions.append(this)
+      queue.reset_priority_scans
     }
 
     if( queue.service_state.is_started ) {
@@ -1612,8 +1900,12 @@ class Subscription(val queue:Queue, val consumer:DeliveryConsumer) extends Deliv
       pos -= this
       pos = null
 
-      queue.exclusive_subscriptions = queue.exclusive_subscriptions.filterNot( _ == this )
+      if( queue.exclusive_subscriptions.contains(this) ) {
+        queue.exclusive_subscriptions = queue.exclusive_subscriptions.filterNot( _ == this )
+        queue.reset_priority_scans
+      }
       queue.all_subscriptions -= consumer
+      queue.selector_index.remove(consumer)
       queue.addCapacity( - queue.tune_consumer_buffer )
 
 
@@ -1678,6 +1970,10 @@ class Subscription(val queue:Queue, val consumer:DeliveryConsumer) extends Deliv
   def full = session.full
   def offer(delivery:Delivery) = {
     if( session.offer(delivery) ) {
+      if( delivery.trace!=null ) {
+        delivery.trace.stamp(DeliveryTrace.DISPATCH)
+      }
+      unstalled
       total_dispatched_count += 1
       total_dispatched_size += delivery.size
       true
@@ -1688,6 +1984,46 @@ class Subscription(val queue:Queue, val consumer:DeliveryConsumer) extends Deliv
 
   def acquire(entry:QueueEntry) = new AcquiredQueueEntry(entry)
 
+  /**
+   * Notes that the subscription is waiting on the store to load
+   * the entry at its position.
+   */
+  def stalled = {
+    if( stall_start==0 ) {
+      stall_start = System.nanoTime
+      total_stall_count += 1
+    }
+  }
+
+  def unstalled = {
+    if( stall_start!=0 ) {
+      total_stall_time += System.nanoTime - stall_start
+      stall_start = 0
+    }
+  }
+
+  /**
+   * The total time in nanoseconds the subscription has waited on the store,
+   * including the current stall.
+   */
+  def stall_time = {
+    if( stall_start!=0 ) {
+      total_stall_time + (System.nanoTime - stall_start)
+    } else {
+      total_stall_time
+    }
+  }
+
+  /**
+   * How many bytes the subscription is expected to advance while a
+   * store load is in flight.  Doubled so the loads complete before the
+   * consumer gets to the entries.
+   */
+  def predicted_read_ahead_size = {
+    val rc = avg_advanced_size.toLong * queue.swap_in_latency * 2 / 1000000000L
+    rc.min(queue.tune_read_ahead_size).toInt
+  }
+
   def refill_prefetch = {
 
     var next = if( pos.is_tail ) {
@@ -1698,11 +2034,15 @@ class Subscription(val queue:Queue, val consumer:DeliveryConsumer) extends Deliv
       pos // start prefetching from the current position.
     }
 
-    var remaining = queue.tune_consumer_buffer - acquired_size
+    var last = pos
+    read_ahead_size = predicted_read_ahead_size
+    var remaining = (queue.tune_consumer_buffer - acquired_size).max(0) + read_ahead_size
     while( remaining>0 && next!=null ) {
       remaining -= next.size
       next.prefetch_flags = (next.prefetch_flags | PREFTCH_LOAD_FLAG).toByte
+      queue.swap_planner.prefetched(next)
       next.load
+      last = next
       next = next.getNext
     }
 
@@ -1710,8 +2050,11 @@ class Subscription(val queue:Queue, val consumer:DeliveryConsumer) extends Deliv
     while( remaining>0 && next!=null ) {
       remaining -= next.size
       next.prefetch_flags = (next.prefetch_flags | PREFTCH_HOLD_FLAG).toByte
+      queue.swap_planner.prefetched(next)
+      last = next
       next = next.getNext
     }
+    prefetch_end_seq = last.seq
 
   }
 
@@ -1772,6 +2115,8 @@ class Subscription(val queue:Queue, val consumer:DeliveryConsumer) extends Deliv
 
       total_nack_count += 1
       entry.as_loaded.acquired = false
+      queue.swap_planner.dirty(entry)
+      queue.lane_add(entry)
       acquired_size -= entry.size
 
       // track for stats
@@ -118,6 +118,12 @@ object QueueDomainQueueBinding extends QueueBinding.Provider {
     case _ => null
   }
 
+  /**
+   * The config of the queues no queue element matches.  It is shared so
+   * that the authorization decisions cached for it get reused.
+   */
+  val default_queue_config = new QueueDTO
+
   def queue_config(virtual_host:VirtualHost, path:Path):QueueDTO = {
     import collection.JavaConversions._
     import LocalRouter.destination_parser._
@@ -125,7 +131,7 @@ object QueueDomainQueueBinding extends QueueBinding.Provider {
     def matches(x:QueueDTO):Boolean = {
       x.id==null || decode_filter(x.id).matches(path)
     }
-    virtual_host.config.queues.find(matches _).getOrElse(new QueueDTO)
+    virtual_host.config.queues.find(matches _).getOrElse(default_queue_config)
   }
 
 }
@@ -187,6 +193,11 @@ object DurableSubscriptionQueueBinding extends QueueBinding.Provider {
   }
 
 
+  /**
+   * The config of the durable subscriptions no dsub element matches.
+   */
+  val default_dsub_config = new DurableSubscriptionDTO
+
   def dsub_config(host:VirtualHost, id:String) = {
     import collection.JavaConversions._
     def matches(x:DurableSubscriptionDTO):Boolean = {
@@ -203,7 +214,7 @@ object DurableSubscriptionQueueBinding extends QueueBinding.Provider {
       }
       true
     }
-    host.config.dsubs.find(matches _).getOrElse(new DurableSubscriptionDTO)
+    host.config.dsubs.find(matches _).getOrElse(default_dsub_config)
   }
 }
 
@@ -238,11 +249,11 @@ class DurableSubscriptionQueueBinding(val binding_data:Buffer, val binding_dto:D
     case _ => false
   }
 
-  override def message_filter = {
+  override lazy val message_filter:BooleanExpression = {
     if ( binding_dto.selector==null ) {
       ConstantExpression.TRUE
     } else {
-      SelectorParser.parse(binding_dto.selector)
+      SelectorParser.compile(binding_dto.selector)
     }
   }
 
@@ -296,5 +307,5 @@ class TempQueueBinding(val key:AnyRef, val id:String) extends QueueBinding {
     case _ => false
   }
 
-  def config(host: VirtualHost) = new QueueDTO
+  def config(host: VirtualHost) = QueueDomainQueueBinding.default_queue_config
 }
@@ -165,18 +165,36 @@ abstract class DeliveryProducerRoute(val router:Router) extends BaseRetained wit
   var overflowSessions = List[DeliverySession]()
   var refiller:Runnable=null
 
+  // Sampled by the router to group producers and consumers which exchange a lot of messages.
+  // Only updated by the route's dispatch queue.
+  @volatile
+  var routed_item_counter = 0L
+  @volatile
+  var routed_size_counter = 0L
+
+  // The tracers of the topics the route sends to.  Updated by the topics.
+  @volatile
+  var tracers = List[DeliveryTracer]()
+
   def full = overflow!=null
 
   def offer(delivery:Delivery) = {
     if( full ) {
       false
     } else {
+      routed_item_counter += 1
+      routed_size_counter += delivery.size
 
       // Do we need to store the message if we have a matching consumer?
       pendingAck = delivery.ack
       val copy = delivery.copy
       copy.message.retain
 
+      val trace_sampling = router.virtual_host.trace_sampling
+      if( trace_sampling > 0 && routed_item_counter % trace_sampling == 0 ) {
+        copy.trace = new DeliveryTrace(System.nanoTime, tracers)
+      }
+
       targets.foreach { target=>
 
         // only deliver to matching consumers
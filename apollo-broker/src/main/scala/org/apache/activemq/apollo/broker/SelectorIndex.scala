@@ -0,0 +1,321 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker
+
+import java.util.{HashMap, HashSet, TreeMap}
+import java.lang.{Double => JDouble}
+import collection.mutable.ListBuffer
+import protocol.Protocol
+import org.apache.activemq.apollo.filter._
+
+object SelectorIndex {
+
+  sealed abstract class Predicate {
+    def property:String
+  }
+
+  /**
+   * property = 'value'
+   */
+  case class EqualTo(property:String, value:String) extends Predicate
+
+  /**
+   * property > value or property >= value
+   */
+  case class LowerBound(property:String, value:Double) extends Predicate
+
+  /**
+   * property < value or property <= value
+   */
+  case class UpperBound(property:String, value:Double) extends Predicate
+
+  /**
+   * Picks the predicate of the selector which the index should use or returns null
+   * if it has none.  Only predicates which have to be TRUE for the whole selector
+   * to match are considered and equality predicates are preferred over ranges.
+   */
+  def predicate(selector:BooleanExpression):Predicate = {
+    val conjuncts = ListBuffer[Predicate]()
+    collect(unwrap(selector), conjuncts)
+    conjuncts.find(_.isInstanceOf[EqualTo]).getOrElse(conjuncts.headOption.getOrElse(null))
+  }
+
+  private def unwrap(expression:Expression):Expression = expression match {
+    case x:SelectorCompiler.CompiledExpression => x.getOriginal
+    case x => x
+  }
+
+  private def collect(expression:Expression, rc:ListBuffer[Predicate]):Unit = expression match {
+    case x:LogicExpression if x.getExpressionSymbol == "AND" =>
+      collect(x.getLeft, rc)
+      collect(x.getRight, rc)
+    case x:ComparisonExpression =>
+      (x.getLeft, x.getRight) match {
+        case (property:PropertyExpression, constant:ConstantExpression) =>
+          (x.getExpressionSymbol, constant.getValue) match {
+            case ("=", value:String) =>
+              rc += EqualTo(property.getName, value)
+            // The interpreter can round the values before comparing them, so
+            // the bounds are tracked as inclusive.
+            case (">" | ">=", value:Number) if !JDouble.isNaN(value.doubleValue) =>
+              rc += LowerBound(property.getName, value.doubleValue)
+            case ("<" | "<=", value:Number) if !JDouble.isNaN(value.doubleValue) =>
+              rc += UpperBound(property.getName, value.doubleValue)
+            case _ =>
+          }
+        case _ =>
+      }
+    case _ =>
+  }
+
+  /**
+   * Converts a property value to the double the range predicates are compared
+   * against or returns null if the selector could compare it in a different way.
+   */
+  private def to_double(value:AnyRef):JDouble = value match {
+    case x:java.lang.Long => x.doubleValue
+    case x:java.lang.Integer => x.doubleValue
+    case x:java.lang.Short => x.doubleValue
+    case x:java.lang.Byte => x.doubleValue
+    case x:JDouble => x
+    case x:String =>
+      try {
+        JDouble.parseDouble(x)
+      } catch {
+        case e:NumberFormatException => null
+      }
+    case _ => null
+  }
+
+}
+
+/**
+ * <p>
+ * Indexes the consumers of a queue's subscriptions by a predicate of their
+ * selectors so that a delivery only gets matched against the subscriptions
+ * which could be interested in it.
+ * </p>
+ * <p>
+ * The index is only used to skip subscriptions, the candidates it finds still
+ * need to be matched against the delivery.  Consumers whose selectors
+ * have no usable predicate are not indexed and always need to be matched.
+ * </p>
+ * <p>
+ * All methods must be called while executing on the queue's dispatch queue.
+ * </p>
+ */
+class SelectorIndex {
+  import SelectorIndex._
+
+  /**
+   * The indexed consumers which see the messages through the
+   * same selector protocol.
+   */
+  class Group(val protocol:Protocol) {
+    val consumers = new HashSet[DeliveryConsumer]()
+    val equal_values = new HashMap[String, HashMap[String, HashSet[DeliveryConsumer]]]()
+    val lower_bounds = new HashMap[String, TreeMap[JDouble, HashSet[DeliveryConsumer]]]()
+    val upper_bounds = new HashMap[String, TreeMap[JDouble, HashSet[DeliveryConsumer]]]()
+
+    def add(consumer:DeliveryConsumer, predicate:Predicate) = {
+      consumers.add(consumer)
+      predicate match {
+        case EqualTo(property, value) =>
+          add_to(values(equal_values, property, new HashMap[String, HashSet[DeliveryConsumer]]()), value, consumer)
+        case LowerBound(property, value) =>
+          add_to(values(lower_bounds, property, new TreeMap[JDouble, HashSet[DeliveryConsumer]]()), JDouble.valueOf(value), consumer)
+        case UpperBound(property, value) =>
+          add_to(values(upper_bounds, property, new TreeMap[JDouble, HashSet[DeliveryConsumer]]()), JDouble.valueOf(value), consumer)
+      }
+    }
+
+    def remove(consumer:DeliveryConsumer, predicate:Predicate) = {
+      consumers.remove(consumer)
+      predicate match {
+        case EqualTo(property, value) =>
+          val values = equal_values.get(property)
+          if( values!=null && remove_from(values, value, consumer) ) {
+            equal_values.remove(property)
+          }
+        case LowerBound(property, value) =>
+          val values = lower_bounds.get(property)
+          if( values!=null && remove_from(values, JDouble.valueOf(value), consumer) ) {
+            lower_bounds.remove(property)
+          }
+        case UpperBound(property, value) =>
+          val values = upper_bounds.get(property)
+          if( values!=null && remove_from(values, JDouble.valueOf(value), consumer) ) {
+            upper_bounds.remove(property)
+          }
+      }
+    }
+
+    private def values[M](index:HashMap[String, M], property:String, create: =>M):M = {
+      var rc = index.get(property)
+      if( rc==null ) {
+        rc = create
+        index.put(property, rc)
+      }
+      rc
+    }
+
+    private def add_to[K](values:java.util.Map[K, HashSet[DeliveryConsumer]], key:K, consumer:DeliveryConsumer) = {
+      var matching = values.get(key)
+      if( matching==null ) {
+        matching = new HashSet[DeliveryConsumer]()
+        values.put(key, matching)
+      }
+      matching.add(consumer)
+    }
+
+    /**
+     * @return true if no values are left.
+     */
+    private def remove_from[K](values:java.util.Map[K, HashSet[DeliveryConsumer]], key:K, consumer:DeliveryConsumer) = {
+      val matching = values.get(key)
+      if( matching!=null ) {
+        matching.remove(consumer)
+        if( matching.isEmpty ) {
+          values.remove(key)
+        }
+      }
+      values.isEmpty
+    }
+
+    /**
+     * Adds the consumers which could match the message to rc.
+     */
+    def collect(message:Filterable, rc:HashSet[DeliveryConsumer]):Unit = {
+      val i = equal_values.entrySet.iterator
+      while( i.hasNext ) {
+        val entry = i.next
+        message.getProperty(entry.getKey) match {
+          case null =>
+          case value:String =>
+            val matching = entry.getValue.get(value)
+            if( matching!=null ) {
+              rc.addAll(matching)
+            }
+          case _ =>
+            // the selector might convert the value to a string.
+            add_all(entry.getValue, rc)
+        }
+      }
+      collect_range(lower_bounds, message, rc, (bounds, value) => bounds.headMap(value, true))
+      collect_range(upper_bounds, message, rc, (bounds, value) => bounds.tailMap(value, true))
+    }
+
+    private def collect_range(index:HashMap[String, TreeMap[JDouble, HashSet[DeliveryConsumer]]], message:Filterable, rc:HashSet[DeliveryConsumer],
+                              satisfied:(TreeMap[JDouble, HashSet[DeliveryConsumer]], JDouble)=>java.util.Map[JDouble, HashSet[DeliveryConsumer]]) = {
+      val i = index.entrySet.iterator
+      while( i.hasNext ) {
+        val entry = i.next
+        val value = message.getProperty(entry.getKey)
+        if( value!=null ) {
+          val number = to_double(value)
+          if( number!=null ) {
+            add_all(satisfied(entry.getValue, number), rc)
+          } else {
+            add_all(entry.getValue, rc)
+          }
+        }
+      }
+    }
+
+    private def add_all[K](values:java.util.Map[K, HashSet[DeliveryConsumer]], rc:HashSet[DeliveryConsumer]) = {
+      val i = values.values.iterator
+      while( i.hasNext ) {
+        rc.addAll(i.next)
+      }
+    }
+  }
+
+  private val groups = new HashMap[Protocol, Group]()
+  private val indexed = new HashMap[DeliveryConsumer, (Group, Predicate)]()
+
+  /**
+   * The number of times a subscription did not have to be matched
+   * against a delivery thanks to the index.
+   */
+  var skipped_matches = 0L
+
+  def indexed_consumers = indexed.size
+
+  def add(consumer:DeliveryConsumer):Unit = {
+    val selector = consumer.message_selector
+    if( selector!=null ) {
+      val predicate = SelectorIndex.predicate(selector)
+      if( predicate!=null ) {
+        val protocol = consumer.selector_protocol
+        var group = groups.get(protocol)
+        if( group==null ) {
+          group = new Group(protocol)
+          groups.put(protocol, group)
+        }
+        group.add(consumer, predicate)
+        indexed.put(consumer, (group, predicate))
+      }
+    }
+  }
+
+  def remove(consumer:DeliveryConsumer):Unit = {
+    val entry = indexed.remove(consumer)
+    if( entry!=null ) {
+      val (group, predicate) = entry
+      group.remove(consumer, predicate)
+      if( group.consumers.isEmpty ) {
+        groups.remove(group.protocol)
+      }
+    }
+  }
+
+  /**
+   * Finds the indexed consumers which could match the delivery.
+   * @return null if no consumers are indexed.
+   */
+  def candidates(delivery:Delivery):HashSet[DeliveryConsumer] = {
+    if( indexed.isEmpty ) {
+      null
+    } else {
+      val rc = new HashSet[DeliveryConsumer]()
+      val i = groups.values.iterator
+      while( i.hasNext ) {
+        val group = i.next
+        // all the consumers of the group see the same message.
+        val message = group.consumers.iterator.next.selector_view(delivery)
+        if( message!=null ) {
+          group.collect(message, rc)
+        }
+      }
+      rc
+    }
+  }
+
+  /**
+   * Can the consumer be skipped without matching it against
+   * the delivery the candidates were found for?
+   */
+  def skips(consumer:DeliveryConsumer, candidates:HashSet[DeliveryConsumer]):Boolean = {
+    if( candidates!=null && !candidates.contains(consumer) && indexed.containsKey(consumer) ) {
+      skipped_matches += 1
+      true
+    } else {
+      false
+    }
+  }
+
+}
@@ -0,0 +1,329 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker
+
+import java.util.{Arrays, HashSet, TreeMap}
+import collection.mutable.ListBuffer
+import org.apache.activemq.apollo.util.{TimerWheel, Log}
+
+object SwapPlanner extends Log {
+
+  /**
+   * The resolution in milliseconds of the expiration timer wheel.
+   */
+  val EXPIRATION_RESOLUTION = 1000L
+
+}
+
+/**
+ * <p>
+ * Plans the swap passes of a queue.  Rather than walking the whole entry list
+ * on every pass, the planner keeps track of the regions of the queue whose state
+ * could have changed since the last pass:
+ * </p>
+ * <ul>
+ * <li>loaded entries which were recently enqueued, swapped in or nacked</li>
+ * <li>entries which were in or are in the prefetch window of a subscription</li>
+ * <li>entries which recently got swapped and which could be combined into ranges</li>
+ * <li>entries that expire, which are tracked in a timer wheel so that
+ *     expiring them is only proportional to the number of expired entries</li>
+ * </ul>
+ * <p>
+ * All methods must be called while executing on the queue's dispatch queue.
+ * </p>
+ */
+class SwapPlanner(val queue:Queue) {
+  import SwapPlanner._
+
+  // Loaded entries which need to be checked to see if they should get swapped.
+  private var dirty_entries = new HashSet[QueueEntry]()
+
+  // Entries which had their prefetch flags set since the last pass.
+  private var prefetched_entries = new HashSet[QueueEntry]()
+
+  // Swapped entries which could potentially get combined into swapped ranges,
+  // in queue order.
+  private val combine_candidates = new TreeMap[java.lang.Long, QueueEntry]()
+
+  // Times the expiration of the entries.
+  private val expirations = new TimerWheel[QueueEntry](EXPIRATION_RESOLUTION, System.currentTimeMillis)
+
+  private var full_pass_requested = false
+
+  var pass_counter = 0L
+  var full_pass_counter = 0L
+  var total_visited = 0L
+  var total_changed = 0L
+  var last_visited = 0L
+  var last_changed = 0L
+
+  private var visited = 0L
+  private var changed = 0L
+
+  /**
+   * The next pass will rebuild the bookkeeping by walking all the queue entries.
+   */
+  def request_full_pass = full_pass_requested = true
+
+  /**
+   * Marks a loaded entry as needing a swap out check on the next pass.
+   */
+  def dirty(entry:QueueEntry):Unit = dirty_entries.add(entry)
+
+  /**
+   * Notes that a subscription set the prefetch flags of the entry.
+   */
+  def prefetched(entry:QueueEntry):Unit = prefetched_entries.add(entry)
+
+  /**
+   * Notes that the entry moved into the swapped state.
+   */
+  def swapped(entry:QueueEntry):Unit = combine_candidates.put(entry.seq, entry)
+
+  private def uncombinable(entry:QueueEntry):Unit = {
+    // a loaded entry can take over the seq of a swapped range.
+    if( combine_candidates.get(entry.seq) eq entry ) {
+      combine_candidates.remove(entry.seq)
+    }
+  }
+
+  /**
+   * Registers the current expiration of the entry.  Needs to be called
+   * whenever the expiration of the entry changes.
+   */
+  def expires(entry:QueueEntry):Unit = {
+    val expiration = entry.expiration
+    val timer = entry.expiration_timer
+    if( timer==null || timer.at != expiration ) {
+      unexpire(entry)
+      if( expiration != 0 ) {
+        entry.expiration_timer = expirations.schedule(entry, expiration)
+      }
+    }
+  }
+
+  private def unexpire(entry:QueueEntry):Unit = {
+    if( entry.expiration_timer != null ) {
+      entry.expiration_timer.cancel
+      entry.expiration_timer = null
+    }
+  }
+
+  /**
+   * The number of entries waiting to expire.
+   */
+  def expiring_entries = expirations.size
+
+  /**
+   * Drops all the bookkeeping for an entry which is being removed
+   * from the queue.
+   */
+  def removed(entry:QueueEntry):Unit = {
+    dirty_entries.remove(entry)
+    prefetched_entries.remove(entry)
+    uncombinable(entry)
+    unexpire(entry)
+  }
+
+  /**
+   * Runs a swap pass over the entries which could have changed state.
+   */
+  def pass:Unit = {
+    visited = 0
+    changed = 0
+
+    if( full_pass_requested ) {
+      full_pass_requested = false
+      full_pass_counter += 1
+      var cur = queue.entries.getHead
+      while( cur!=null ) {
+        visited += 1
+        if( cur.is_loaded ) {
+          dirty_entries.add(cur)
+        } else if( cur.is_swapped ) {
+          swapped(cur)
+        }
+        if( cur.prefetch_flags != 0 ) {
+          prefetched_entries.add(cur)
+        }
+        cur = cur.getNext
+      }
+    }
+
+    expire_entries
+
+    // Reset the prefetch flags of the previous pass and let the
+    // subscriptions set them again.
+    val previously_prefetched = prefetched_entries
+    prefetched_entries = new HashSet[QueueEntry]()
+    var i = previously_prefetched.iterator
+    while( i.hasNext ) {
+      i.next.prefetch_flags = 0
+    }
+    queue.all_subscriptions.valuesIterator.foreach( _.refill_prefetch )
+
+    // Swap out the loaded entries that are not needed.
+    val checking = dirty_entries
+    dirty_entries = new HashSet[QueueEntry]()
+    checking.addAll(previously_prefetched)
+    checking.addAll(prefetched_entries)
+    i = checking.iterator
+    while( i.hasNext ) {
+      val cur = i.next
+      visited += 1
+      val loaded = cur.as_loaded
+      if( loaded!=null && cur.isLinked ) {
+        if( cur.prefetch_flags==0 && !loaded.acquired && !queue.is_pinned(cur) ) {
+          if( !loaded.swapping_out ) {
+            changed += 1
+          }
+          cur.swap(true)
+        } else {
+          if( loaded.swapping_out ) {
+            changed += 1
+          }
+          cur.load // just in case it's getting swapped.
+        }
+      }
+    }
+
+    // Combine swapped items into swapped ranges
+    if( queue.individual_swapped_items > queue.tune_swap_range_size*2 ) {
+      combine_swapped
+    }
+
+    pass_counter += 1
+    last_visited = visited
+    last_changed = changed
+    total_visited += visited
+    total_changed += changed
+  }
+
+  private def expire_entries = {
+    val now = queue.now
+    val retry = ListBuffer[QueueEntry]()
+    expirations.advance(now) { cur =>
+      visited += 1
+      cur.expiration_timer = null
+      if( cur.expiration != 0 && cur.expiration > now ) {
+        retry += cur
+      } else if ( cur.expiration != 0 && cur.isLinked ) {
+        cur.state match {
+          case x:QueueEntry#SwappedRange =>
+            // load the range to expire the messages in it.
+            changed += 1
+            cur.load
+            retry += cur
+          case x:QueueEntry#Swapped =>
+            // remove the expired swapped message.
+            changed += 1
+            queue.expired(cur)
+            x.remove
+          case x:QueueEntry#Loaded =>
+            // remove the expired message if it has not been
+            // acquired.
+            if( !x.acquired ) {
+              changed += 1
+              queue.expired(cur)
+              x.remove
+            } else {
+              retry += cur
+            }
+          case _ =>
+        }
+      }
+    }
+
+    // Entries we could not expire yet get checked again on a later pass.
+    retry.foreach { cur =>
+      if( cur.isLinked ) {
+        if( cur.expiration <= now ) {
+          cur.expiration_timer = expirations.schedule(cur, now + EXPIRATION_RESOLUTION)
+        } else {
+          expires(cur)
+        }
+      }
+    }
+  }
+
+  private def combine_swapped = {
+    debug("Looking for swapped entries to combine")
+
+    val prefetch_ends = subscription_prefetch_ends
+    var combine_counter = 0
+    var candidate = combine_candidates.firstEntry
+    while( candidate!=null ) {
+      val cur = candidate.getValue
+      visited += 1
+      if( !cur.isLinked || !cur.is_swapped ) {
+        uncombinable(cur)
+      } else if( cur.prefetch_flags==0 ) {
+        val range = if( cur.can_combine_with_prev ) {
+          val prev = cur.getPrevious
+          prev.as_swapped_range.combineNext
+          prev
+        } else if( !near_subscription(prefetch_ends, cur) ) {
+          uncombinable(cur)
+          cur.swapped_range
+          cur
+        } else {
+          null
+        }
+
+        if( range!=null ) {
+          combine_counter += 1
+          // absorb any swapped ranges that directly follow.
+          var next = range.getNext
+          while( next!=null && next.is_swapped_range && next.prefetch_flags==0 && next.can_combine_with_prev ) {
+            range.as_swapped_range.combineNext
+            combine_counter += 1
+            next = range.getNext
+          }
+        }
+      }
+      // combining removes entries from the candidates, so look up the next one by seq.
+      candidate = combine_candidates.higherEntry(candidate.getKey)
+    }
+
+    changed += combine_counter
+    debug("combined %d entries", combine_counter)
+  }
+
+  /**
+   * The sorted prefetch_end_seq of the queue's subscriptions.
+   */
+  private def subscription_prefetch_ends = {
+    val rc = queue.all_subscriptions.valuesIterator.map(_.prefetch_end_seq).toArray
+    Arrays.sort(rc)
+    rc
+  }
+
+  /**
+   * Is the entry within tune_swap_range_size entries after the
+   * prefetch window of a subscription?  We keep those swapped entries
+   * individually so that they can be loaded quickly.
+   */
+  private def near_subscription(prefetch_ends:Array[Long], entry:QueueEntry) = {
+    // find the last prefetch window which ends at or before the entry.
+    var pos = Arrays.binarySearch(prefetch_ends, entry.seq)
+    if( pos < 0 ) {
+      pos = -pos - 2
+    }
+    pos >= 0 && (entry.seq - prefetch_ends(pos)) <= queue.tune_swap_range_size
+  }
+
+}
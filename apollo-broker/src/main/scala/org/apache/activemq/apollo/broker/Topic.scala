@@ -45,6 +45,8 @@ class Topic(val router:LocalRouter, val destination_dto:TopicDestinationDTO, var
 
   var config:TopicDTO = _
 
+  val tracer = new DeliveryTracer
+
   refresh_config
 
   import OptionSupport._
@@ -197,12 +199,20 @@ class Topic(val router:LocalRouter, val destination_dto:TopicDestinationDTO, var
   def connect (destination:DestinationDTO, producer:BindableDeliveryProducer) = {
     producers += producer
     producer_counter += 1
+    producer match {
+      case route:DeliveryProducerRoute => route.tracers ::= tracer
+      case _ =>
+    }
     producer.bind(consumers.toList ::: durable_subscriptions.toList)
     check_idle
   }
 
   def disconnect (producer:BindableDeliveryProducer) = {
     producers = producers.filterNot( _ == producer )
+    producer match {
+      case route:DeliveryProducerRoute => route.tracers = route.tracers.filterNot(_ eq tracer)
+      case _ =>
+    }
     producer.unbind(consumers.toList ::: durable_subscriptions.toList)
     check_idle
   }
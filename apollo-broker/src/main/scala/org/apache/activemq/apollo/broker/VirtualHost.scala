@@ -60,6 +60,16 @@ class VirtualHost(val broker: Broker, val id:String) extends BaseService {
   var authenticator:Authenticator = _
   var authorizer:Authorizer = _
 
+  // authorization checks of this host answered from and missing the cached decisions.
+  val authorization_cache_hits = new AtomicLong
+  val authorization_cache_misses = new AtomicLong
+
+  /**
+   * 1 out of every trace_sampling routed deliveries gets traced, 0 disables tracing.
+   */
+  @volatile
+  var trace_sampling = 0
+
   var audit_log:Log = _
   var security_log:Log  = _
   var connection_log:Log = _
@@ -98,6 +108,8 @@ class VirtualHost(val broker: Broker, val id:String) extends BaseService {
     connection_log = Option(log_category.connection).map(Log(_)).getOrElse(broker.connection_log)
     console_log = Option(log_category.console).map(Log(_)).getOrElse(broker.console_log)
 
+    trace_sampling = config.trace_sampling.getOrElse(0).max(0)
+
     if (config.authentication != null) {
       if (config.authentication.enabled.getOrElse(true)) {
         // Virtual host has it's own settings.
@@ -112,6 +124,11 @@ class VirtualHost(val broker: Broker, val id:String) extends BaseService {
       // use the broker's settings..
       authenticator = broker.authenticator
       authorizer = broker.authorizer
+      // the acls of this host might have changed.
+      authorizer match {
+        case x:AclAuthorizer => x.invalidate_cache
+        case _ =>
+      }
     }
 
   }
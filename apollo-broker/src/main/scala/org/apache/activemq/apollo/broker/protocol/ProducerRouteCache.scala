@@ -0,0 +1,150 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker.protocol
+
+import java.util.LinkedHashMap
+import java.util.concurrent.TimeUnit
+import org.fusesource.hawtdispatch._
+import org.apache.activemq.apollo.broker.DeliveryProducerRoute
+import org.apache.activemq.apollo.dto.DestinationDTO
+
+object ProducerRouteCache {
+
+  /**
+   * By default, routes which have not been used for this
+   * many milliseconds get evicted.
+   */
+  val DEFAULT_IDLE_TIMEOUT = 60*1000L
+
+}
+
+/**
+ * <p>
+ * Caches the producer routes a connection sends messages over so that
+ * the routes do not have to get connected again for every message sent.
+ * Routes get evicted once they have been idle for longer than the idle timeout
+ * or, if the cache holds more than max_size routes, when they have been the
+ * longest idle.
+ * </p>
+ * <p>
+ * All methods must be called while executing on the dispatch queue.
+ * </p>
+ */
+abstract class ProducerRouteCache {
+  import ProducerRouteCache._
+
+  class CachedRoute(val route:DeliveryProducerRoute) {
+    var last_used = System.currentTimeMillis
+  }
+
+  /**
+   * The maximum number of routes to cache.  No limit by default.
+   */
+  var max_size = Int.MaxValue
+
+  /**
+   * Routes not used for this many milliseconds get evicted.  Set
+   * to 0 to disable idle eviction.
+   */
+  var idle_timeout = DEFAULT_IDLE_TIMEOUT
+
+  var hits = 0L
+  var misses = 0L
+  var evictions = 0L
+
+  // Access ordered, so the first routes are the ones idle the longest.
+  private val routes = new LinkedHashMap[List[DestinationDTO], CachedRoute](16, 0.75f, true)
+  private var sweep_scheduled = false
+
+  def dispatch_queue:DispatchQueue
+
+  /**
+   * Called when a route is evicted, so that it can be disconnected.
+   */
+  def evicted(key:List[DestinationDTO], route:DeliveryProducerRoute):Unit
+
+  def size = routes.size
+
+  def get(key:List[DestinationDTO]):DeliveryProducerRoute = {
+    val rc = routes.get(key)
+    if( rc == null ) {
+      misses += 1
+      null
+    } else {
+      hits += 1
+      rc.last_used = System.currentTimeMillis
+      rc.route
+    }
+  }
+
+  def put(key:List[DestinationDTO], route:DeliveryProducerRoute):Unit = {
+    routes.put(key, new CachedRoute(route))
+    if( routes.size > max_size ) {
+      val i = routes.entrySet.iterator
+      while( routes.size > max_size ) {
+        evict(i.next)
+        i.remove
+      }
+    }
+    schedule_sweep
+  }
+
+  def foreach(func: ((List[DestinationDTO], DeliveryProducerRoute))=>Unit):Unit = {
+    val i = routes.entrySet.iterator
+    while( i.hasNext ) {
+      val entry = i.next
+      func((entry.getKey, entry.getValue.route))
+    }
+  }
+
+  def clear = routes.clear
+
+  /**
+   * Evicts the routes which have been idle for longer than the idle timeout.
+   */
+  def evict_idle(now:Long):Unit = {
+    val idle_since = now - idle_timeout
+    val i = routes.entrySet.iterator
+    var done = false
+    while( !done && i.hasNext ) {
+      val entry = i.next
+      if( entry.getValue.last_used <= idle_since ) {
+        evict(entry)
+        i.remove
+      } else {
+        done = true
+      }
+    }
+  }
+
+  private def evict(entry:java.util.Map.Entry[List[DestinationDTO], CachedRoute]) = {
+    evictions += 1
+    evicted(entry.getKey, entry.getValue.route)
+  }
+
+  private def schedule_sweep:Unit = {
+    if( !sweep_scheduled && idle_timeout > 0 && !routes.isEmpty ) {
+      sweep_scheduled = true
+      dispatch_queue.after(idle_timeout, TimeUnit.MILLISECONDS) {
+        sweep_scheduled = false
+        evict_idle(System.currentTimeMillis)
+        schedule_sweep
+      }
+    }
+  }
+
+}
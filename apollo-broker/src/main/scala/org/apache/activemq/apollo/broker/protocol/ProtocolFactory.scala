@@ -55,6 +55,12 @@ trait Protocol extends ProtocolCodecFactory.Provider {
   def encode(message:Message):MessageRecord
   def decode(message:MessageRecord):Message
 
+  /**
+   * Converts a message of another protocol to this protocol.
+   * @return null if the message can't be converted.
+   */
+  def convert(message:Message):Message = null
+
 }
 
 object ProtocolHandler extends Log
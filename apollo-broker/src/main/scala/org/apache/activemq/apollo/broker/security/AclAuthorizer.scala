@@ -19,6 +19,45 @@ package org.apache.activemq.apollo.broker.security
 import org.apache.activemq.apollo.broker.{Connector, VirtualHost, Broker}
 import org.apache.activemq.apollo.dto._
 import org.apache.activemq.apollo.util.Log
+import java.util.{HashMap, IdentityHashMap}
+
+object AclAuthorizer {
+
+  /**
+   * Once a security context caches more decisions, its cache is cleared
+   * so that destinations which were removed do not pile up.
+   */
+  val MAX_CACHED_DECISIONS = 1000
+
+  /**
+   * The decisions an authorizer made for a security context, keyed by
+   * the configuration object which was checked and the action.
+   */
+  class DecisionCache(val authorizer:AclAuthorizer, val generation:Long) {
+    private val decisions = new IdentityHashMap[AnyRef, HashMap[String, java.lang.Boolean]]()
+    private var size = 0
+
+    def get(action:String, config:AnyRef):java.lang.Boolean = synchronized {
+      val actions = decisions.get(config)
+      if( actions==null ) null else actions.get(action)
+    }
+
+    def put(action:String, config:AnyRef, decision:Boolean) = synchronized {
+      if( size >= MAX_CACHED_DECISIONS ) {
+        decisions.clear
+        size = 0
+      }
+      var actions = decisions.get(config)
+      if( actions==null ) {
+        actions = new HashMap[String, java.lang.Boolean]()
+        decisions.put(config, actions)
+      }
+      if( actions.put(action, decision)==null ) {
+        size += 1
+      }
+    }
+  }
+}
 
 /**
  * <p>
@@ -30,9 +69,48 @@ import org.apache.activemq.apollo.util.Log
  */
 class AclAuthorizer(val default_kinds:List[String], val log:Log) extends Authorizer {
 
+  import AclAuthorizer._
   import collection.JavaConversions._
   import log._
 
+  @volatile
+  private var generation = 0L
+
+  /**
+   * Drops the decisions the security contexts cached so far.  Needs to be
+   * called when the configuration the decisions were based on got updated.
+   */
+  def invalidate_cache = generation += 1
+
+  /**
+   * Caches the decision of the security context about an action on a
+   * destination or connector configuration.  The configuration objects get
+   * replaced when the configuration is updated, so they are compared by
+   * identity.  The hits and misses are counted against the virtual host
+   * since the broker's authorizer is shared by its virtual hosts.
+   */
+  private def cached(ctx: SecurityContext, host:VirtualHost, action:String, config:AnyRef)(func: =>Boolean):Boolean = {
+    val cache = ctx.synchronized {
+      val current = ctx.acl_decisions
+      if( current!=null && (current.authorizer eq this) && current.generation == generation ) {
+        current
+      } else {
+        ctx.acl_decisions = new DecisionCache(this, generation)
+        ctx.acl_decisions
+      }
+    }
+    val decision = cache.get(action, config)
+    if( decision!=null ) {
+      host.authorization_cache_hits.incrementAndGet
+      decision.booleanValue
+    } else {
+      host.authorization_cache_misses.incrementAndGet
+      val rc = func
+      cache.put(action, config, rc)
+      rc
+    }
+  }
+
   def is_in(ctx: SecurityContext, allowed:java.util.List[PrincipalDTO]):Boolean = {
     ctx.is_allowed(allowed.toList, default_kinds)
   }
@@ -97,9 +175,13 @@ class AclAuthorizer(val default_kinds:List[String], val log:Log) extends Authori
 
   def can_connect_to(ctx: SecurityContext, host: VirtualHost, connector:Connector):Boolean = {
     log_result(ctx, "connect", "host "+host.names) {
-      host.config.acl==null || is_in(ctx, host.config.acl.connects)
+      cached(ctx, host, "connect", host.config) {
+        host.config.acl==null || is_in(ctx, host.config.acl.connects)
+      }
     } && log_result(ctx, "connect", "connector "+connector.config.id) {
-      connector.config.acl==null || is_in(ctx, connector.config.acl.connects)
+      cached(ctx, host, "connect", connector.config) {
+        connector.config.acl==null || is_in(ctx, connector.config.acl.connects)
+      }
     }
   }
 
@@ -111,33 +193,45 @@ class AclAuthorizer(val default_kinds:List[String], val log:Log) extends Authori
   def name(topic: TopicDTO) = Option(topic.id).getOrElse("**")
 
   def can_send_to(ctx: SecurityContext, host: VirtualHost, topic: TopicDTO) = log_result(ctx, "send", "topic "+name(topic)) {
-    can_topic(ctx, topic)(_.sends)
+    cached(ctx, host, "send", topic) {
+      can_topic(ctx, topic)(_.sends)
+    }
   }
   def can_receive_from(ctx: SecurityContext, host: VirtualHost, topic: TopicDTO) = log_result(ctx, "receive", "topic "+name(topic)) {
-    can_topic(ctx, topic)(_.receives)
+    cached(ctx, host, "receive", topic) {
+      can_topic(ctx, topic)(_.receives)
+    }
   }
   def can_destroy(ctx: SecurityContext, host: VirtualHost, topic: TopicDTO) = log_result(ctx, "destroy", "topic "+name(topic)) {
-    can_topic(ctx, topic)(_.destroys)
+    cached(ctx, host, "destroy", topic) {
+      can_topic(ctx, topic)(_.destroys)
+    }
   }
   def can_create(ctx: SecurityContext, host: VirtualHost, topic: TopicDTO) = log_result(ctx, "create", "topic "+name(topic)) {
-    can_topic(ctx, topic)(_.creates)
+    cached(ctx, host, "create", topic) {
+      can_topic(ctx, topic)(_.creates)
+    }
   }
   
   def can_admin(ctx: SecurityContext, host: VirtualHost, topic: TopicDTO) = log_result(ctx, "admin", "topic") {
-    val acl = topic.acl
-    if (acl != null) {
-      is_in(ctx, acl.admins)
-    } else {
-      _can_admin(ctx, host)
+    cached(ctx, host, "admin", topic) {
+      val acl = topic.acl
+      if (acl != null) {
+        is_in(ctx, acl.admins)
+      } else {
+        _can_admin(ctx, host)
+      }
     }
   }
 
   def can_monitor(ctx: SecurityContext, host: VirtualHost, topic: TopicDTO) = log_result(ctx, "monitor", "topic") {
-    val acl = topic.acl
-    if (acl != null) {
-      is_in(ctx, acl.monitors) || is_in(ctx, acl.admins)
-    } else {
-      _can_admin(ctx, host)
+    cached(ctx, host, "monitor", topic) {
+      val acl = topic.acl
+      if (acl != null) {
+        is_in(ctx, acl.monitors) || is_in(ctx, acl.admins)
+      } else {
+        _can_admin(ctx, host)
+      }
     }
   }
 
@@ -148,40 +242,54 @@ class AclAuthorizer(val default_kinds:List[String], val log:Log) extends Authori
   def name(queue: QueueDTO) = Option(queue.id).getOrElse("**")
 
   def can_send_to(ctx: SecurityContext, host: VirtualHost, queue: QueueDTO) = log_result(ctx, "send", "queue "+name(queue)) {
-    can_queue(ctx, queue)(_.sends)
+    cached(ctx, host, "send", queue) {
+      can_queue(ctx, queue)(_.sends)
+    }
   }
 
   def can_receive_from(ctx: SecurityContext, host: VirtualHost, queue: QueueDTO) = log_result(ctx, "receive", "queue "+name(queue)) {
-    can_queue(ctx, queue)(_.receives)
+    cached(ctx, host, "receive", queue) {
+      can_queue(ctx, queue)(_.receives)
+    }
   }
 
   def can_destroy(ctx: SecurityContext, host: VirtualHost, queue: QueueDTO) = log_result(ctx, "destroy", "queue "+name(queue)) {
-    can_queue(ctx, queue)(_.destroys)
+    cached(ctx, host, "destroy", queue) {
+      can_queue(ctx, queue)(_.destroys)
+    }
   }
 
   def can_create(ctx: SecurityContext, host: VirtualHost, queue: QueueDTO) = log_result(ctx, "create", "queue "+name(queue)) {
-    can_queue(ctx, queue)(_.creates)
+    cached(ctx, host, "create", queue) {
+      can_queue(ctx, queue)(_.creates)
+    }
   }
 
   def can_consume_from(ctx: SecurityContext, host: VirtualHost, queue: QueueDTO) = log_result(ctx, "consume", "queue "+name(queue)) {
-    can_queue(ctx, queue)(_.consumes)
+    cached(ctx, host, "consume", queue) {
+      can_queue(ctx, queue)(_.consumes)
+    }
   }
 
   def can_admin(ctx: SecurityContext, host: VirtualHost, queue: QueueDTO) = log_result(ctx, "admin", "queue") {
-    val acl = queue.acl
-    if (acl != null) {
-      is_in(ctx, acl.admins)
-    } else {
-      _can_admin(ctx, host)
+    cached(ctx, host, "admin", queue) {
+      val acl = queue.acl
+      if (acl != null) {
+        is_in(ctx, acl.admins)
+      } else {
+        _can_admin(ctx, host)
+      }
     }
   }
 
   def can_monitor(ctx: SecurityContext, host: VirtualHost, queue: QueueDTO) = log_result(ctx, "monitor", "queue") {
-    val acl = queue.acl
-    if (acl != null) {
-      is_in(ctx, acl.monitors) || is_in(ctx, acl.admins)
-    } else {
-      _can_admin(ctx, host)
+    cached(ctx, host, "monitor", queue) {
+      val acl = queue.acl
+      if (acl != null) {
+        is_in(ctx, acl.monitors) || is_in(ctx, acl.admins)
+      } else {
+        _can_admin(ctx, host)
+      }
     }
   }
 
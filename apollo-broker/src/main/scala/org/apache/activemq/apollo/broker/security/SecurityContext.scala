@@ -45,11 +45,17 @@ class SecurityContext {
   private var _principles = Set[PrincipalDTO]()
   private var _subject:Subject = _
 
+  /**
+   * The authorization decisions made for the principles of the subject.
+   */
+  var acl_decisions:AclAuthorizer.DecisionCache = _
+
   def subject = _subject
 
   def subject_= (value:Subject) {
     _subject = value
     _principles = Set[PrincipalDTO]()
+    acl_decisions = null
     if( value!=null ) {
       import collection.JavaConversions._
       value.getPrincipals.foreach { x=>
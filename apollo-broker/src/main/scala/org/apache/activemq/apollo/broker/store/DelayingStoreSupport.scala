@@ -17,14 +17,13 @@
 package org.apache.activemq.apollo.broker.store
 
 import collection.mutable.ListBuffer
-import java.util.HashMap
 import collection.Seq
 import org.fusesource.hawtdispatch._
 import java.util.concurrent._
-import atomic.{AtomicReference, AtomicInteger}
+import atomic.{AtomicLong, AtomicReference, AtomicInteger}
 import org.apache.activemq.apollo.util._
 import org.fusesource.hawtdispatch.{BaseRetained, ListEventAggregator}
-import org.apache.activemq.apollo.dto.{StoreStatusDTO, TimeMetricDTO, IntMetricDTO}
+import org.apache.activemq.apollo.dto.{StoreStatusDTO, TimeMetricDTO, IntMetricDTO, HistogramDTO}
 
 /**
  * <p>
@@ -35,10 +34,112 @@ import org.apache.activemq.apollo.dto.{StoreStatusDTO, TimeMetricDTO, IntMetricD
  *
  * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
  */
+object DelayingStoreSupport {
+
+  /**
+   * How often in nanoseconds the adaptive flush delay gets adjusted.
+   */
+  val ADAPT_INTERVAL = TimeUnit.SECONDS.toNanos(1)
+
+  /**
+   * Below this ratio of canceled enqueues the adaptive flush delay shrinks.
+   */
+  val LOW_CANCEL_RATIO = 0.1
+
+  /**
+   * While the adaptive flush delay is at its min and few enqueues get
+   * canceled, every PROBE_INTERVAL adjustments a longer delay is tried.
+   */
+  val PROBE_INTERVAL = 10
+
+}
+
+/**
+ * Adjusts the flush delay to how long the consumers take to dequeue
+ * the messages.  The delay is kept in microseconds so that the lag of
+ * fast consumers does not get rounded down to nothing.
+ */
+class AdaptiveFlushDelay {
+  import DelayingStoreSupport._
+
+  /**
+   * The flush delay in microseconds, negative until it gets initialized.
+   */
+  var delay = -1L
+
+  // adjustments made while few enqueues got canceled at the min delay.
+  var low_cancel_adapts = 0L
+
+  /**
+   * Adjusts the delay to the work done since the last adjustment.  The
+   * bounds and the latency target are in microseconds, a negative target is
+   * not enforced.  The lag of the canceled enqueues and the commit latency are
+   * nanosecond sums.
+   *
+   * @return the new delay
+   */
+  def adapt(min:Long, max:Long, latency_target:Long, canceled:Long, flushed:Long, canceled_lag:Long, commit_latency:Long, commits:Long):Long = {
+    var rc = delay
+    if( canceled+flushed == 0 ) {
+      // Idle, commit promptly when the next work arrives.
+      rc = min
+    } else {
+      val cancel_ratio = canceled.toDouble / (canceled+flushed)
+      val avg_lag = if( canceled > 0 ) TimeUnit.NANOSECONDS.toMicros(canceled_lag / canceled) else 0L
+      if( cancel_ratio < LOW_CANCEL_RATIO ) {
+        if( rc > min ) {
+          // The consumers don't catch up within the delay, so
+          // delaying only adds commit latency.
+          rc = rc / 2
+        } else {
+          // Every so often try a longer delay, the consumers
+          // could be lagging by more than the min.
+          low_cancel_adapts += 1
+          if( low_cancel_adapts % PROBE_INTERVAL == 0 ) {
+            rc = max / 4
+          }
+        }
+      } else if( avg_lag * 4 >= rc * 3 ) {
+        // The consumers lag close to the delay, a longer delay
+        // should let them cancel more of the enqueues.
+        rc = (rc * 2).max(1000)
+      } else {
+        // The consumers are fast, shrink the delay to cover
+        // their lag with some head room.
+        rc = rc.min(avg_lag * 2)
+      }
+    }
+
+    if( latency_target >= 0 && commits > 0 ) {
+      // Leave room for the time the store takes to do the commit.
+      val avg_commit = TimeUnit.NANOSECONDS.toMicros(commit_latency / commits)
+      val store_time = (avg_commit - delay).max(0)
+      rc = rc.min(latency_target - store_time)
+    }
+
+    delay = rc.min(max).max(min)
+    delay
+  }
+}
+
 trait DelayingStoreSupport extends Store with BaseService {
+  import DelayingStoreSupport._
 
   protected def flush_delay:Long
 
+  /**
+   * The bounds in milliseconds of the adaptive flush delay.  The
+   * flush delay is adapted when the max is not negative.
+   */
+  protected def flush_delay_min:Long
+  protected def flush_delay_max:Long
+
+  /**
+   * The commit latency in milliseconds the adaptive flush delay should
+   * try to stay under.  Not enforced when negative.
+   */
+  protected def commit_latency_target:Long
+
   protected def get_next_msg_key:Long
 
   protected def store(uows: Seq[DelayableUOW])(callback: =>Unit):Unit
@@ -62,7 +163,6 @@ trait DelayingStoreSupport extends Store with BaseService {
 
     var dispose_start:Long = 0
     var flushing = false;
-    var status = "init"
 
     class MessageAction {
 
@@ -103,7 +203,7 @@ trait DelayingStoreSupport extends Store with BaseService {
 
     var delayable_actions = 0
 
-    def delayable = !disable_delay && delayable_actions>0 && flush_delay>=0
+    def delayable = !disable_delay && delayable_actions>0 && current_flush_delay>=0
 
     def rm(msg:Long) = {
       actions -= msg
@@ -113,7 +213,6 @@ trait DelayingStoreSupport extends Store with BaseService {
     }
 
     def cancel = {
-      status += "|cancel"
       flushing = true
       delayed_uows.remove(uow_id)
       on_performed
@@ -153,7 +252,7 @@ trait DelayingStoreSupport extends Store with BaseService {
         a
       }
       aggregator {
-        pending_enqueues.put(key(entry), a)
+        pending_enqueues.put(entry.queue_key, entry.entry_seq, a)
       }
 
     }
@@ -165,14 +264,15 @@ trait DelayingStoreSupport extends Store with BaseService {
     }
 
     override def dispose = {
-      status += "|commited"
       dispose_start = System.nanoTime
       uow_source.merge(this)
     }
 
     def on_performed() = this.synchronized {
-      status += "|performed"
-      commit_latency_counter += System.nanoTime-dispose_start
+      val latency = System.nanoTime-dispose_start
+      commit_latency_counter += latency
+      adapt_commit_latency.addAndGet(latency)
+      adapt_commit_count.incrementAndGet
       complete_listeners.foreach(_())
       super.dispose
     }
@@ -189,7 +289,6 @@ trait DelayingStoreSupport extends Store with BaseService {
       pending_stores.get(message_key) match {
         case null => cb()
         case action =>
-          action.uow.status += "|flush_message"
           action.uow.on_complete( cb() )
           flush(action.uow)
       }
@@ -202,6 +301,9 @@ trait DelayingStoreSupport extends Store with BaseService {
     rc.max = m.max
     rc.min = m.min
     rc.total = m.total
+    rc.p50 = m.p50
+    rc.p99 = m.p99
+    rc.p999 = m.p999
     rc
   }
 
@@ -214,6 +316,19 @@ trait DelayingStoreSupport extends Store with BaseService {
     rc
   }
 
+  implicit def toHistogramDTO( m: Histogram) = {
+    val rc = new HistogramDTO()
+    rc.count = m.count
+    rc.max = m.max
+    rc.min = m.min
+    rc.total = m.total
+    rc.p50 = m.p50
+    rc.p99 = m.p99
+    rc.p999 = m.p999
+    m.buckets.foreach(rc.buckets.add(_))
+    rc
+  }
+
   var metric_canceled_message_counter:Long = 0
   var metric_canceled_enqueue_counter:Long = 0
   var metric_flushed_message_counter:Long = 0
@@ -241,53 +356,43 @@ trait DelayingStoreSupport extends Store with BaseService {
 
     rc.flush_latency = flush_latency
     rc.message_load_latency = message_load_latency
+    rc.commit_latency = commit_latency
 
     rc.canceled_message_counter = metric_canceled_message_counter
     rc.canceled_enqueue_counter = metric_canceled_enqueue_counter
     rc.flushed_message_counter = metric_flushed_message_counter
     rc.flushed_enqueue_counter = metric_flushed_enqueue_counter
     rc.pending_stores = pending_stores.size
-
-//    import collection.JavaConversions._
-//    var last = ""
-//    var count = 0
-//    pending_stores.valuesIterator.map(_.uow.status).foreach{ line =>
-//      if( last!= "" && last!=line) {
-//        println(last+" occured "+count+" times")
-//        count = 0
-//      }
-//      count += 1
-//      last = line
-//    }
-//    println(last+" occured "+count+" times")
-//    println("--------------")
+    rc.flush_delay = current_flush_delay
   }
 
-  def key(x:QueueEntryRecord) = (x.queue_key, x.entry_seq)
-
   val uow_source = createSource(new ListEventAggregator[DelayableUOW](), dispatch_queue)
   uow_source.setEventHandler(^{drain_uows});
   uow_source.resume
 
-  var pending_stores = new HashMap[Long, DelayableUOW#MessageAction]()
-  var pending_enqueues = new HashMap[(Long,Long), DelayableUOW#MessageAction]()
-  var delayed_uows = new HashMap[Int, DelayableUOW]()
+  // Keyed by primitive longs so that tracking the pending
+  // operations does not allocate boxed keys or tuples.
+  var pending_stores = new LongHashMap[DelayableUOW#MessageAction]()
+  var pending_enqueues = new LongPairHashMap[DelayableUOW#MessageAction]()
+  var delayed_uows = new LongHashMap[DelayableUOW]()
 
   val next_batch_id = new AtomicInteger(1)
 
   def drain_uows = {
     dispatch_queue.assertExecuting()
+    if( flush_delay_max >= 0 ) {
+      adapt_flush_delay
+    }
     uow_source.getData.foreach { uow =>
-
-      uow.status += "|delayed"
       delayed_uows.put(uow.uow_id, uow)
 
       uow.actions.foreach { case (msg, action) =>
 
         // dequeues can cancel out previous enqueues
         action.dequeues.foreach { currentDequeue=>
-          val currentKey = key(currentDequeue)
-          val prev_action:DelayableUOW#MessageAction = pending_enqueues.remove(currentKey)
+          val queue_key = currentDequeue.queue_key
+          val entry_seq = currentDequeue.entry_seq
+          val prev_action:DelayableUOW#MessageAction = pending_enqueues.remove(queue_key, entry_seq)
 
           def prev_uow = prev_action.uow
 
@@ -296,9 +401,10 @@ trait DelayingStoreSupport extends Store with BaseService {
 
             prev_uow.delayable_actions -= 1
             metric_canceled_enqueue_counter += 1
+            canceled_enqueue_lag += uow.dispose_start - prev_uow.dispose_start
 
             // yay we can cancel out a previous enqueue
-            prev_action.enqueues = prev_action.enqueues.filterNot( x=> key(x) == currentKey )
+            prev_action.enqueues = prev_action.enqueues.filterNot( x=> x.queue_key == queue_key && x.entry_seq == entry_seq )
 
             // if the message is not in any queues.. we can gc it..
             if( prev_action.enqueues == Nil && prev_action.message_record !=null ) {
@@ -327,7 +433,7 @@ trait DelayingStoreSupport extends Store with BaseService {
 
       val uow_id = uow.uow_id
       if( uow.delayable ) {
-        dispatch_queue.executeAfter(flush_delay, TimeUnit.MILLISECONDS, ^{
+        dispatch_queue.executeAfter(current_flush_delay_micros, TimeUnit.MICROSECONDS, ^{
           flush(delayed_uows.get(uow_id))
         })
       } else {
@@ -337,11 +443,62 @@ trait DelayingStoreSupport extends Store with BaseService {
     }
   }
 
+  /////////////////////////////////////////////////////////////////////
+  //
+  // Adaptive flush delay
+  //
+  /////////////////////////////////////////////////////////////////////
+
+  /**
+   * The flush delay in milliseconds applied to the units of work getting delayed.
+   */
+  def current_flush_delay = TimeUnit.MICROSECONDS.toMillis(current_flush_delay_micros)
+
+  private def current_flush_delay_micros = {
+    if( flush_delay_max >= 0 ) adaptive_flush_delay.delay else TimeUnit.MILLISECONDS.toMicros(flush_delay)
+  }
+
+  private val adaptive_flush_delay = new AdaptiveFlushDelay
+  private var last_adapt_time = 0L
+  private var last_canceled_enqueues = 0L
+  private var last_flushed_enqueues = 0L
+
+  // sum of the nanos between an enqueue and the dequeue which canceled it.
+  private var canceled_enqueue_lag = 0L
+
+  // the commit latencies since the last adapt, updated by the store's threads.
+  private val adapt_commit_latency = new AtomicLong
+  private val adapt_commit_count = new AtomicLong
+
+  private def adapt_flush_delay:Unit = {
+    val min = TimeUnit.MILLISECONDS.toMicros(flush_delay_min.max(0))
+    val max = TimeUnit.MILLISECONDS.toMicros(flush_delay_max).max(min)
+    if( adaptive_flush_delay.delay < 0 ) {
+      adaptive_flush_delay.delay = TimeUnit.MILLISECONDS.toMicros(flush_delay).min(max).max(min)
+    }
+
+    val now = System.nanoTime
+    if( now - last_adapt_time < ADAPT_INTERVAL ) {
+      return
+    }
+    last_adapt_time = now
+
+    val canceled = metric_canceled_enqueue_counter - last_canceled_enqueues
+    val flushed = metric_flushed_enqueue_counter - last_flushed_enqueues
+    last_canceled_enqueues = metric_canceled_enqueue_counter
+    last_flushed_enqueues = metric_flushed_enqueue_counter
+    val lag = canceled_enqueue_lag
+    canceled_enqueue_lag = 0
+
+    val latency_target = if( commit_latency_target >= 0 ) TimeUnit.MILLISECONDS.toMicros(commit_latency_target) else -1L
+    adaptive_flush_delay.adapt(min, max, latency_target, canceled, flushed, lag,
+      adapt_commit_latency.getAndSet(0), adapt_commit_count.getAndSet(0))
+  }
+
   private def flush(uow:DelayableUOW) = {
     if( uow!=null && !uow.flushing ) {
       uow.flushing = true
       delayed_uows.remove(uow.uow_id)
-      uow.status += "|flushing"
       flush_source.merge(uow)
     }
   }
@@ -369,7 +526,6 @@ trait DelayingStoreSupport extends Store with BaseService {
           flush_source.resume
           end()
           uows.foreach { uow=>
-            uow.status += "|flushed"
             uow.actions.foreach { case (msg, action) =>
               if( action.message_record !=null ) {
                 metric_flushed_message_counter += 1
@@ -377,8 +533,7 @@ trait DelayingStoreSupport extends Store with BaseService {
               }
               action.enqueues.foreach { queue_entry=>
                 metric_flushed_enqueue_counter += 1
-                val k = key(queue_entry)
-                pending_enqueues.remove(k)
+                pending_enqueues.remove(queue_entry.queue_key, queue_entry.entry_seq)
               }
             }
             uow.on_performed
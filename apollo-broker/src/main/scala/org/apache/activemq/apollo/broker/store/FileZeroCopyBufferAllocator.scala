@@ -27,6 +27,9 @@ import java.nio.channels.FileChannel.MapMode
 import java.security.{AccessController, PrivilegedAction}
 import java.lang.reflect.Method
 import java.nio.{MappedByteBuffer, ByteBuffer}
+import java.util.{Arrays, BitSet}
+import collection.mutable.ListBuffer
+import org.apache.activemq.apollo.util.list.{LinkedNodeList, LinkedNode}
 
 /**
  * <p>Tracks allocated space</p>
@@ -81,12 +84,21 @@ trait Allocator {
   }
 }
 
+/**
+ * <p>An Allocator which can also reserve specific areas and
+ * take back freed areas.</p>
+ */
+trait SpaceAllocator extends Allocator {
+  def alloc_at(req:Allocation):Boolean
+  def free(allocation:Allocation):Unit
+}
+
 /**
  * <p>Manges allocation space using a couple trees to track the free areas.</p>
  *
  * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
  */
-class TreeAllocator(range:Allocation) extends Allocator {
+class TreeAllocator(range:Allocation) extends SpaceAllocator {
 
   // list of the free allocation areas.  Sorted by size then offset
   val free_by_size = new TreeMap[Allocation, Zilch]()
@@ -100,7 +112,8 @@ class TreeAllocator(range:Allocation) extends Allocator {
   }
 
   def alloc(request:Long):Allocation = {
-    var spot_entry = free_by_size.ceilingEntry(Allocation(request, 0))
+    // smallest free area that can hold the request.
+    var spot_entry = free_by_size.ceilingEntry(Allocation(0, request))
     if( spot_entry== null ) {
       return null
     }
@@ -173,7 +186,7 @@ class TreeAllocator(range:Allocation) extends Allocator {
     }
 
     val prev = Option(prev_e).map(_.getValue).map( a=> if(a.offset+a.size == allocation.offset) a else null ).getOrElse(null)
-    val next = Option(prev_e).map(_.getValue).map( a=> if(allocation.offset+allocation.size == a.offset) a else null ).getOrElse(null)
+    val next = Option(next_e).map(_.getValue).map( a=> if(allocation.offset+allocation.size == a.offset) a else null ).getOrElse(null)
 
     (prev, next) match {
       case (null, null)=>
@@ -241,6 +254,239 @@ class ActiveAllocator(val range:Allocation) extends Allocator {
 
 }
 
+object SlabAllocator {
+
+  /**
+   * The smallest item size.
+   */
+  val MIN_ITEM_SIZE = 64
+
+  /**
+   * Requests larger than this get allocated out of the tree.
+   */
+  val MAX_ITEM_SIZE = 64*1024
+
+  /**
+   * The amount of space that gets carved into the items of a size class at a time.
+   */
+  val SLAB_SIZE = 1024*1024
+
+  /**
+   * The item sizes of the size classes.  Each power of two is split into
+   * 4 steps so that at most a quarter of an item is wasted.
+   */
+  val ITEM_SIZES = {
+    val rc = ListBuffer[Int]()
+    var base = MIN_ITEM_SIZE
+    while( base < MAX_ITEM_SIZE ) {
+      rc += base
+      rc += base + base/4
+      rc += base + base/2
+      rc += base + base*3/4
+      base *= 2
+    }
+    rc += MAX_ITEM_SIZE
+    rc.toArray
+  }
+
+  /**
+   * The index of the smallest size class which can hold the request.
+   */
+  def size_class(request:Long):Int = {
+    val rc = Arrays.binarySearch(ITEM_SIZES, request.toInt)
+    if( rc < 0 ) {
+      -(rc + 1)
+    } else {
+      rc
+    }
+  }
+}
+
+/**
+ * <p>
+ * Allocates the small requests out of slabs of equally sized items so
+ * that allocating and freeing them is just a push or pop on the free item
+ * stack of the slab.  Slabs are allocated out of the tree allocator
+ * and are given back to it once they are no longer used.  Large requests
+ * are allocated out of the tree directly.
+ * </p>
+ * <p>
+ * This class is not thread safe, the FileZeroCopyBufferAllocator uses
+ * one per thread.
+ * </p>
+ */
+class SlabAllocator(val tree:TreeAllocator) extends SpaceAllocator {
+  import SlabAllocator._
+
+  class Slab(val allocation:Allocation, val size_class:Int) extends LinkedNode[Slab] {
+    val item_size = ITEM_SIZES(size_class)
+    val capacity = (allocation.size / item_size).toInt
+
+    // stack of the free item indexes, low indexes are used first.
+    private val free_items = Array.tabulate(capacity)(i => capacity-1-i)
+    private var free_count = capacity
+    private val used = new BitSet(capacity)
+
+    val free_func = (allocation:Allocation) => SlabAllocator.this.free(this, allocation)
+
+    def is_full = free_count == 0
+    def is_empty = free_count == capacity
+
+    def offset_of(index:Int) = allocation.offset + index.toLong * item_size
+
+    def index_of(offset:Long):Int = {
+      val pos = offset - allocation.offset
+      if( pos % item_size != 0 ) {
+        -1
+      } else {
+        (pos / item_size).toInt
+      }
+    }
+
+    def alloc:Int = {
+      free_count -= 1
+      val rc = free_items(free_count)
+      used.set(rc)
+      rc
+    }
+
+    def alloc_at(index:Int):Boolean = {
+      if( index < 0 || used.get(index) ) {
+        false
+      } else {
+        // move the item to the top of the stack and pop it.
+        var i = 0
+        while( free_items(i) != index ) {
+          i += 1
+        }
+        free_count -= 1
+        free_items(i) = free_items(free_count)
+        used.set(index)
+        true
+      }
+    }
+
+    def free(index:Int):Unit = {
+      assert(used.get(index), "double free")
+      used.clear(index)
+      free_items(free_count) = index
+      free_count += 1
+    }
+  }
+
+  // the slabs of each size class which have free items.
+  private val available = Array.fill(ITEM_SIZES.length)(new LinkedNodeList[Slab])
+
+  // the number of empty slabs in each size class.  One is kept
+  // around so that alloc/free cycles don't keep creating slabs.
+  private val empty_slabs = new Array[Int](ITEM_SIZES.length)
+
+  // all the slabs, used to find the slab of freed areas which only
+  // have an offset.
+  private val slabs = new java.util.TreeMap[java.lang.Long, Slab]()
+
+  def alloc(request:Long):Allocation = {
+    if( request > MAX_ITEM_SIZE ) {
+      return tree.alloc(request)
+    }
+    val size_class = SlabAllocator.size_class(request)
+    var slab = available(size_class).getHead
+    if( slab == null ) {
+      slab = create_slab(size_class)
+      if( slab == null ) {
+        return null
+      }
+    }
+    if( slab.is_empty ) {
+      empty_slabs(size_class) -= 1
+    }
+    val index = slab.alloc
+    if( slab.is_full ) {
+      slab.unlink
+    }
+    val rc = Allocation(slab.offset_of(index), request)
+    rc._free_func = slab.free_func
+    rc
+  }
+
+  private def create_slab(size_class:Int):Slab = {
+    val item_size = ITEM_SIZES(size_class)
+    val allocation = tree.alloc((SLAB_SIZE / item_size) * item_size)
+    if( allocation == null ) {
+      return null
+    }
+    val slab = new Slab(allocation, size_class)
+    slabs.put(allocation.offset, slab)
+    available(size_class).addFirst(slab)
+    empty_slabs(size_class) += 1
+    slab
+  }
+
+  private def slab_of(offset:Long):Slab = {
+    val entry = slabs.floorEntry(offset)
+    if( entry == null ) {
+      null
+    } else {
+      val slab = entry.getValue
+      if( offset < slab.allocation.offset + slab.allocation.size ) {
+        slab
+      } else {
+        null
+      }
+    }
+  }
+
+  def alloc_at(req:Allocation):Boolean = {
+    val slab = slab_of(req.offset)
+    if( slab == null ) {
+      tree.alloc_at(req)
+    } else {
+      val was_empty = slab.is_empty
+      if( req.size > slab.item_size || !slab.alloc_at(slab.index_of(req.offset)) ) {
+        false
+      } else {
+        if( was_empty ) {
+          empty_slabs(slab.size_class) -= 1
+        }
+        if( slab.is_full ) {
+          slab.unlink
+        }
+        req._free_func = slab.free_func
+        true
+      }
+    }
+  }
+
+  def free(allocation:Allocation):Unit = {
+    val slab = slab_of(allocation.offset)
+    if( slab == null ) {
+      tree.free(allocation)
+    } else {
+      free(slab, allocation)
+    }
+  }
+
+  private def free(slab:Slab, allocation:Allocation):Unit = {
+    allocation._free_func = null
+    val was_full = slab.is_full
+    slab.free(slab.index_of(allocation.offset))
+    if( was_full ) {
+      // recently used slabs are preferred since their pages are likely cached.
+      available(slab.size_class).addFirst(slab)
+    }
+    if( slab.is_empty ) {
+      if( empty_slabs(slab.size_class) > 0 ) {
+        slab.unlink
+        slabs.remove(slab.allocation.offset)
+        tree.free(slab.allocation)
+      } else {
+        empty_slabs(slab.size_class) += 1
+      }
+    }
+  }
+
+}
+
 /**
  * <p>The ByteBufferReleaser allows you to more eagerly deallocate byte buffers.</p>
  *
@@ -283,6 +529,8 @@ object ByteBufferReleaser {
 object FileZeroCopyBufferAllocator {
   val OS = System.getProperty("os.name").toLowerCase
 
+  val SLAB_ALLOCATOR = Option(System.getProperty("apollo.SLAB_ALLOCATOR")).map(_ == "true").getOrElse(true)
+
   val MMAP_TRANSFER_TO = Option(System.getProperty("apollo.MMAP_TRANSFER_TO")).map(_ == "true").getOrElse{
     // System prop is not set.. lets pick a good default based on OS
     if( OS.startsWith("mac") ) {
@@ -314,7 +562,11 @@ class FileZeroCopyBufferAllocator(val directory:File) extends ZeroCopyBufferAllo
   // we use thread local allocators to
   class AllocatorContext(val id:Int) {
 
-    val allocator = new TreeAllocator(Allocation(0, Long.MaxValue))
+    val allocator:SpaceAllocator = if( SLAB_ALLOCATOR ) {
+      new SlabAllocator(new TreeAllocator(Allocation(0, Long.MaxValue)))
+    } else {
+      new TreeAllocator(Allocation(0, Long.MaxValue))
+    }
     var channel:FileChannel = new RandomAccessFile(new File(directory, ""+id+".data"), "rw").getChannel
     var queue:DispatchQueue = _
 
@@ -0,0 +1,432 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker.store
+
+import org.apache.activemq.apollo.util._
+import FileSupport._
+import java.io._
+import java.util.concurrent.{TimeUnit, CountDownLatch, ConcurrentLinkedQueue}
+import java.util.concurrent.atomic.{AtomicReference, AtomicInteger, AtomicLong}
+import collection.mutable.{ListBuffer, HashMap}
+
+object StoreMigration extends Log
+
+/**
+ * <p>
+ * Copies the queues, queue entries and messages of a source store directly into
+ * a target store.  The queues get copied concurrently by parallelism readers.  Every
+ * reader has at most one batch of batch_size entries in flight, which bounds the
+ * memory the migration uses.
+ * </p>
+ * <p>
+ * Once the target store completes a batch, the last entry seq it copied of the queue
+ * is appended to the progress file.  An interrupted migration can be resumed from
+ * there as long as the source store was not changed in the meantime.  Messages which
+ * are referenced by several queues get copied once: the first reader to reach such
+ * a message claims it and the other readers wait for it to be stored.  Messages
+ * shared with queues which were copied before a resume get copied again.
+ * </p>
+ */
+class StoreMigration(val source:Store, val target:Store, val progress_file:File) {
+  import StoreMigration._
+
+  var parallelism = Runtime.getRuntime.availableProcessors
+  var batch_size = 1000
+
+  /**
+   * How often in milliseconds the progress gets reported.
+   */
+  var report_interval = 5000L
+  var report:(String)=>Unit = (msg)=> info(msg)
+
+  val migrated_queues = new AtomicLong
+  val migrated_entries = new AtomicLong
+  val migrated_messages = new AtomicLong
+  val migrated_size = new AtomicLong
+  val missing_messages = new AtomicLong
+
+  private val failure = new AtomicReference[Throwable]()
+
+  // The keys the target store assigned to the messages copied so far,
+  // -1 for the messages which could not be loaded.
+  private val message_keys = new LongHashMap[java.lang.Long]()
+
+  // The messages a reader claimed but did not store yet, with the
+  // readers waiting for them.  Guarded by message_keys.
+  private val pending_messages = new LongHashMap[ListBuffer[()=>Unit]]()
+  private val pending_claims = new java.util.HashSet[java.lang.Long]()
+
+  // The last entry seq copied of the queues, -1 if only the queue was copied.
+  private val progress = HashMap[Long, Long]()
+  private var progress_writer:Writer = null
+
+  /**
+   * Runs the migration and waits for it to complete.
+   *
+   * @param resume if false, the target store and the progress are purged first.
+   */
+  def run(resume:Boolean):Unit = {
+    if( resume && progress_file.exists ) {
+      load_progress
+    } else {
+      await("purging the target store") { done => target.purge(done()) }
+      progress_file.delete
+    }
+    progress_writer = new BufferedWriter(new FileWriter(progress_file, true))
+    try {
+      val queue_keys = new ConcurrentLinkedQueue[Long]()
+      await("listing the queues") { done =>
+        source.list_queues { keys =>
+          keys.foreach(queue_keys.add(_))
+          done()
+        }
+      }
+      report("migrating %,d queues using %d readers".format(queue_keys.size, parallelism))
+
+      val start = System.nanoTime
+      val readers = new CountDownLatch(parallelism)
+      def next_queue:Unit = {
+        val key = queue_keys.poll
+        if( failure.get!=null || key==null ) {
+          readers.countDown
+        } else {
+          migrate_queue(key) {
+            migrated_queues.incrementAndGet
+            next_queue
+          }
+        }
+      }
+      for( i <- 0 until parallelism ) {
+        next_queue
+      }
+
+      while( !readers.await(report_interval, TimeUnit.MILLISECONDS) ) {
+        report_progress(start)
+      }
+      report_progress(start)
+
+      val error = failure.get
+      if( error!=null ) {
+        throw error
+      }
+      if( missing_messages.get > 0 ) {
+        warn("%,d queue entries referenced messages which could not be loaded, they were not migrated", missing_messages.get)
+      }
+    } finally {
+      progress_writer.close
+    }
+  }
+
+  private def report_progress(start:Long) = {
+    val seconds = (System.nanoTime - start).toDouble / TimeUnit.SECONDS.toNanos(1)
+    report("migrated %,d queues, %,d entries, %,d messages (%,.2f MB), %,.0f entries/s, %,.2f MB/s".format(
+      migrated_queues.get, migrated_entries.get, migrated_messages.get, migrated_size.get / (1024d*1024),
+      migrated_entries.get / seconds, migrated_size.get / (1024d*1024) / seconds))
+  }
+
+  private def await(action:String)(func:(()=>Unit)=>Unit):Unit = {
+    val latch = new CountDownLatch(1)
+    func(()=> latch.countDown)
+    while( !latch.await(report_interval, TimeUnit.MILLISECONDS) ) {
+      report("still "+action)
+    }
+  }
+
+  private def fail(e:Throwable) = {
+    failure.compareAndSet(null, e)
+    // The claimed messages of a failed batch never get stored, so wake
+    // up the readers waiting for them.  They see the failure and stop.
+    val waiters = ListBuffer[()=>Unit]()
+    message_keys.synchronized {
+      val i = pending_claims.iterator
+      while( i.hasNext ) {
+        val rc = pending_messages.remove(i.next)
+        if( rc!=null ) {
+          waiters ++= rc
+        }
+      }
+      pending_claims.clear
+    }
+    waiters.foreach(_())
+  }
+
+  /**
+   * Keeps the callbacks of the stores from killing their threads.  A failed
+   * queue still completes so that its reader can stop.
+   */
+  private def guarded(on_complete: =>Unit)(func: =>Unit) = {
+    try {
+      func
+    } catch {
+      case e:Throwable =>
+        fail(e)
+        on_complete
+    }
+  }
+
+  private def load_progress = {
+    using(new BufferedReader(new FileReader(progress_file))) { reader =>
+      var line = reader.readLine
+      while( line!=null ) {
+        line.split(" ") match {
+          case Array(queue_key, last_seq) => progress.put(queue_key.toLong, last_seq.toLong)
+          case _ => // a partially written line
+        }
+        line = reader.readLine
+      }
+    }
+    report("resuming the migration of %,d queues".format(progress.size))
+  }
+
+  private def save_progress(queue_key:Long, last_seq:Long) = progress_writer.synchronized {
+    progress_writer.write(queue_key+" "+last_seq+"\n")
+    progress_writer.flush
+  }
+
+  private def migrate_queue(queue_key:Long)(on_complete: =>Unit):Unit = {
+    source.get_queue(queue_key) { record => guarded(on_complete) {
+      record match {
+        case None => on_complete
+        case Some(record) =>
+          def migrate_entries(after_seq:Long) = {
+            source.list_queue_entry_ranges(queue_key, batch_size) { ranges => guarded(on_complete) {
+              migrate_ranges(queue_key, ranges.filter(_.last_entry_seq > after_seq).toList, after_seq)(on_complete)
+            }}
+          }
+          progress.get(queue_key) match {
+            case Some(last_seq) => migrate_entries(last_seq)
+            case None =>
+              target.add_queue(record) { added => guarded(on_complete) {
+                if( !added ) {
+                  throw new IOException("The target store could not add queue "+queue_key)
+                }
+                save_progress(queue_key, -1)
+                migrate_entries(-1)
+              }}
+          }
+      }
+    }}
+  }
+
+  private def migrate_ranges(queue_key:Long, ranges:List[QueueEntryRange], after_seq:Long)(on_complete: =>Unit):Unit = {
+    ranges match {
+      case Nil => on_complete
+      case range :: remaining =>
+        if( failure.get!=null ) {
+          on_complete
+        } else {
+          val first_seq = range.first_entry_seq.max(after_seq+1)
+          source.list_queue_entries(queue_key, first_seq, range.last_entry_seq) { entries => guarded(on_complete) {
+            migrate_batch(queue_key, entries) {
+              migrate_ranges(queue_key, remaining, after_seq)(on_complete)
+            }
+          }}
+        }
+    }
+  }
+
+  /**
+   * Claims the messages which were not copied or claimed by another reader yet.
+   *
+   * @return the claimed messages and the messages other readers are copying.
+   */
+  private def claim(keys:Seq[Long]) = message_keys.synchronized {
+    val claimed = ListBuffer[Long]()
+    val awaited = ListBuffer[Long]()
+    keys.distinct.foreach { key =>
+      if( !message_keys.containsKey(key) ) {
+        if( pending_messages.containsKey(key) ) {
+          awaited += key
+        } else {
+          pending_messages.put(key, ListBuffer())
+          pending_claims.add(key)
+          claimed += key
+        }
+      }
+    }
+    (claimed.toList, awaited.toSet)
+  }
+
+  /**
+   * Records the keys the target store assigned to claimed messages
+   * and resumes the readers which were waiting for them.
+   */
+  private def resolve(keys:HashMap[Long, Long]) = {
+    val waiters = ListBuffer[()=>Unit]()
+    message_keys.synchronized {
+      keys.foreach { case (key, value) =>
+        message_keys.put(key, value)
+        pending_claims.remove(key)
+        val rc = pending_messages.remove(key)
+        if( rc!=null ) {
+          waiters ++= rc
+        }
+      }
+    }
+    waiters.foreach(_())
+  }
+
+  /**
+   * Runs func once none of the messages are pending anymore.
+   */
+  private def await_messages(keys:List[Long])(func: =>Unit):Unit = keys match {
+    case Nil => func
+    case key :: remaining =>
+      val waiting = message_keys.synchronized {
+        val waiters = pending_messages.get(key)
+        if( waiters!=null && failure.get==null ) {
+          waiters += (()=> await_messages(remaining)(func))
+          true
+        } else {
+          false
+        }
+      }
+      if( !waiting ) {
+        await_messages(remaining)(func)
+      }
+  }
+
+  private def migrated_key(message_key:Long) = message_keys.synchronized {
+    val rc = message_keys.get(message_key)
+    if( rc==null ) -1L else rc.longValue
+  }
+
+  /**
+   * Copies a batch of queue entries.  The messages the batch claims get stored
+   * with the entries which reference them in one unit of work.  The entries which
+   * reference messages other readers are copying get stored once those are.
+   */
+  private def migrate_batch(queue_key:Long, entries:Seq[QueueEntryRecord])(on_complete: =>Unit):Unit = {
+    val (claimed, awaited) = claim(entries.map(_.message_key))
+    val (deferred, ready) = entries.partition(x => awaited.contains(x.message_key))
+    load_messages(claimed) { messages => guarded(on_complete) {
+      store_entries(ready, claimed, messages) { guarded(on_complete) {
+        await_messages(awaited.toList) { guarded(on_complete) {
+          if( failure.get!=null ) {
+            on_complete
+          } else {
+            store_entries(deferred, Nil, HashMap()) { guarded(on_complete) {
+              if( !entries.isEmpty ) {
+                save_progress(queue_key, entries.last.entry_seq)
+              }
+              on_complete
+            }}
+          }
+        }}
+      }}
+    }}
+  }
+
+  private def load_messages(keys:List[Long])(func:HashMap[Long, MessageRecord]=>Unit):Unit = {
+    val messages = new HashMap[Long, MessageRecord]()
+    if( keys.isEmpty ) {
+      func(messages)
+    } else {
+      val remaining = new AtomicInteger(keys.size)
+      keys.foreach { message_key =>
+        source.load_message(message_key, null) { record =>
+          messages.synchronized {
+            record.foreach(messages.put(message_key, _))
+          }
+          if( remaining.decrementAndGet == 0 ) {
+            func(messages.synchronized(messages.clone))
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Stores the claimed messages and the entries in one unit of work.  The
+   * messages of the entries must be claimed or copied already.
+   */
+  private def store_entries(entries:Seq[QueueEntryRecord], claimed:List[Long], messages:HashMap[Long, MessageRecord])(on_stored: =>Unit):Unit = {
+    if( entries.isEmpty && claimed.isEmpty ) {
+      on_stored
+    } else {
+      val stored = new HashMap[Long, Long]()
+      var size = 0L
+      var enqueued = 0
+      val uow = target.create_uow
+      try {
+        claimed.foreach { key =>
+          messages.get(key) match {
+            case Some(record) =>
+              size += record.size
+              stored.put(key, uow.store(copy(record)))
+            case None =>
+              stored.put(key, -1)
+          }
+        }
+        entries.foreach { entry =>
+          val message_key = stored.get(entry.message_key).getOrElse(migrated_key(entry.message_key))
+          if( message_key == -1 ) {
+            missing_messages.incrementAndGet
+          } else {
+            val copy = new QueueEntryRecord
+            copy.queue_key = entry.queue_key
+            copy.entry_seq = entry.entry_seq
+            copy.message_key = message_key
+            copy.attachment = entry.attachment
+            copy.size = entry.size
+            copy.expiration = entry.expiration
+            copy.redeliveries = entry.redeliveries
+            uow.enqueue(copy)
+            enqueued += 1
+          }
+        }
+        val stored_size = size
+        val stored_entries = enqueued
+        uow.complete_asap
+        uow.on_complete {
+          resolve(stored)
+          migrated_entries.addAndGet(stored_entries)
+          migrated_messages.addAndGet(stored.values.filter(_ != -1).size)
+          migrated_size.addAndGet(stored_size)
+          on_stored
+        }
+      } finally {
+        uow.release
+      }
+    }
+  }
+
+  /**
+   * Copies a loaded message so that the target store assigns it a
+   * new key.  Zero copy buffers belong to the source store, so their
+   * content gets copied to a zero copy buffer of the target store.
+   */
+  private def copy(record:MessageRecord) = {
+    val rc = new MessageRecord
+    rc.protocol = record.protocol
+    rc.size = record.size
+    rc.buffer = record.buffer
+    rc.expiration = record.expiration
+    if( record.zero_copy_buffer!=null ) {
+      val allocator = target.zero_copy_buffer_allocator
+      if( allocator==null ) {
+        throw new IOException("The target store does not support the zero copy buffers of the migrated messages")
+      }
+      val data = new ByteArrayOutputStream(record.zero_copy_buffer.size)
+      record.zero_copy_buffer.read(data)
+      rc.zero_copy_buffer = allocator.alloc(record.zero_copy_buffer.size)
+      rc.zero_copy_buffer.write(new ByteArrayInputStream(data.toByteArray))
+    }
+    rc
+  }
+
+}
@@ -0,0 +1,83 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker
+
+import org.scalatest.matchers.ShouldMatchers
+import org.apache.activemq.apollo.util.FunSuiteSupport
+import org.fusesource.hawtdispatch._
+import AffinityScheduler._
+
+class AffinitySchedulerTest extends FunSuiteSupport with ShouldMatchers {
+
+  val threads = (0 until 4).map(i => createQueue("thread-"+i))
+
+  def vertex(label:String, current:DispatchQueue, movable:Boolean) = {
+    val rc = new Vertex(createQueue(label))
+    rc.current = current
+    rc.movable = movable
+    rc
+  }
+
+  def link(from:Vertex, to:Vertex, rate:Long) = {
+    from.load += rate
+    to.load += rate
+    Edge(from, to, rate)
+  }
+
+  def capacity(vertices:Seq[Vertex]) = {
+    ((vertices.foldLeft(0L)(_ + _.load).toDouble / threads.length) * LOAD_SLACK).toLong
+  }
+
+  test("producer -> queue -> consumer flows end up on the consumer's thread") {
+    // the producers and queues are scattered over the threads, the consumers stay put.
+    val producers = (0 until 4).map(i => vertex("producer-"+i, threads((i + 1) % 4), true))
+    val queues = (0 until 4).map(i => vertex("queue-"+i, null, true))
+    val consumers = (0 until 4).map(i => vertex("consumer-"+i, threads(i), false))
+    val edges = (0 until 4).flatMap { i =>
+      Seq(link(producers(i), queues(i), 1000), link(queues(i), consumers(i), 1000))
+    }
+    val vertices = producers ++ queues ++ consumers
+
+    cross_thread_rate(edges, _.current) should be (8000)
+    val thread_loads = partition(threads, vertices, edges)
+
+    for( i <- 0 until 4 ) {
+      producers(i).thread should be theSameInstanceAs (threads(i))
+      queues(i).thread should be theSameInstanceAs (threads(i))
+      consumers(i).thread should be theSameInstanceAs (threads(i))
+    }
+    cross_thread_rate(edges, _.thread) should be (0)
+    thread_loads.values.foreach(_ should be <= (capacity(vertices)))
+  }
+
+  test("flows on one thread are spread within the load slack") {
+    val producers = (0 until 8).map(i => vertex("producer-"+i, threads(0), true))
+    val queues = (0 until 8).map(i => vertex("queue-"+i, threads(0), true))
+    val edges = (0 until 8).map(i => link(producers(i), queues(i), 1000))
+    val vertices = producers ++ queues
+
+    val thread_loads = partition(threads, vertices, edges)
+
+    for( i <- 0 until 8 ) {
+      producers(i).thread should be theSameInstanceAs (queues(i).thread)
+    }
+    cross_thread_rate(edges, _.thread) should be (0)
+    thread_loads.values.foreach(_ should be <= (capacity(vertices)))
+    thread_loads.values.sum should be (vertices.foldLeft(0L)(_ + _.load))
+  }
+
+}
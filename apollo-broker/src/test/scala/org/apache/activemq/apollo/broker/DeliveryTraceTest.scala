@@ -0,0 +1,50 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker
+
+import org.scalatest.matchers.ShouldMatchers
+import org.apache.activemq.apollo.util.FunSuiteSupport
+import DeliveryTrace._
+
+class DeliveryTraceTest extends FunSuiteSupport with ShouldMatchers {
+
+  test("stages are recorded in the tracers of the trace") {
+    val topic = new DeliveryTracer
+    val queue = new DeliveryTracer
+    val trace = new DeliveryTrace(System.nanoTime - 1000000, topic::Nil)
+    trace.stamp(TRANSPORT)
+
+    val queue_trace = trace.retarget(queue)
+    queue_trace.routed_at should be(trace.routed_at)
+    queue_trace.stamp(ENQUEUE)
+    queue_trace.stamp(ACK)
+
+    topic.metrics.map(_._1) should be(List("transport"))
+    queue.metrics.map(_._1) should be(List("enqueue", "ack"))
+    queue.metrics.foreach { case (_, metric) =>
+      metric.count should be(1)
+      metric.min should be >= (1000000L)
+    }
+  }
+
+  test("deliveries copy their trace") {
+    val delivery = new Delivery
+    delivery.trace = new DeliveryTrace(System.nanoTime, Nil)
+    delivery.copy.trace should be theSameInstanceAs(delivery.trace)
+  }
+
+}
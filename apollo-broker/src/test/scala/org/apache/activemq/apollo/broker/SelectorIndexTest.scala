@@ -0,0 +1,165 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker
+
+import org.scalatest.matchers.ShouldMatchers
+import org.apache.activemq.apollo.util.FunSuiteSupport
+import org.apache.activemq.apollo.selector.SelectorParser
+import org.apache.activemq.apollo.filter.Filterable
+import org.fusesource.hawtdispatch.{BaseRetained, DispatchQueue}
+import java.util.Random
+import SelectorIndex._
+
+class SelectorIndexTest extends FunSuiteSupport with ShouldMatchers {
+
+  def predicate(selector:String) = SelectorIndex.predicate(SelectorParser.compile(selector))
+
+  class StubMessage(properties:(String, AnyRef)*) extends Filterable {
+    val values = Map(properties:_*)
+    def getBodyAs[T](clazz:Class[T]):T = null.asInstanceOf[T]
+    def getProperty(name:String):AnyRef = values.getOrElse(name, null)
+    def getLocalConnectionId:AnyRef = null
+    override def toString = values.toString
+  }
+
+  // the message the stub consumers see for the delivery being matched.
+  var message:Filterable = null
+
+  class StubConsumer(selector:String) extends BaseRetained with DeliveryConsumer {
+    override val message_selector = SelectorParser.compile(selector)
+    override def selector_view(delivery:Delivery) = message
+    def dispatch_queue:DispatchQueue = null
+    def matches(delivery:Delivery) = message_selector.matches(message)
+    def connect(producer:DeliveryProducer):DeliverySession = null
+    def is_persistent = false
+    override def toString = selector
+  }
+
+  def indexed(selectors:String*) = {
+    val index = new SelectorIndex
+    val consumers = selectors.map(new StubConsumer(_))
+    consumers.foreach(index.add(_))
+    (index, consumers)
+  }
+
+  /**
+   * Returns the consumers the index does not skip for the message, after
+   * checking that none of the skipped ones would have matched it.
+   */
+  def not_skipped(index:SelectorIndex, consumers:Seq[StubConsumer], msg:Filterable) = {
+    message = msg
+    val candidates = index.candidates(new Delivery)
+    val rc = consumers.filterNot(index.skips(_, candidates))
+    consumers.foreach { consumer =>
+      if( consumer.matches(null) ) {
+        assert(rc.contains(consumer), consumer+" was skipped for "+msg)
+      }
+    }
+    rc.map(_.toString).toList
+  }
+
+  test("equality predicates are preferred") {
+    predicate("region = 'EU'") should be(EqualTo("region", "EU"))
+    predicate("price > 10 AND region = 'EU'") should be(EqualTo("region", "EU"))
+    predicate("price > 10 AND (tier = 2 OR region = 'EU')") should be(LowerBound("price", 10))
+  }
+
+  test("range predicates") {
+    predicate("price >= 10") should be(LowerBound("price", 10))
+    predicate("price < 2.5") should be(UpperBound("price", 2.5))
+    predicate("price BETWEEN 1 AND 5") should be(LowerBound("price", 1))
+  }
+
+  test("predicates which do not have to be true are not used") {
+    predicate("region = 'EU' OR region = 'US'") should be(null)
+    predicate("NOT (region = 'EU')") should be(null)
+    predicate("region <> 'EU'") should be(null)
+    predicate("'EU' = region") should be(null)
+    predicate("region LIKE 'E%'") should be(null)
+  }
+
+  test("equality candidates") {
+    val (index, consumers) = indexed("region = 'EU'", "region = 'US'", "region <> 'EU'")
+    index.indexed_consumers should be(2)
+    not_skipped(index, consumers, new StubMessage("region"->"EU")) should be(List("region = 'EU'", "region <> 'EU'"))
+    not_skipped(index, consumers, new StubMessage("region"->"FR")) should be(List("region <> 'EU'"))
+    not_skipped(index, consumers, new StubMessage()) should be(List("region <> 'EU'"))
+    // the selector might convert values which are not strings.
+    not_skipped(index, consumers, new StubMessage("region"->Integer.valueOf(1))) should be(consumers.map(_.toString).toList)
+  }
+
+  test("range candidates") {
+    val (index, consumers) = indexed("price > 10", "price >= 20", "price < 5", "price <= 15")
+    not_skipped(index, consumers, new StubMessage("price"->Integer.valueOf(12))) should be(List("price > 10", "price <= 15"))
+    not_skipped(index, consumers, new StubMessage("price"->java.lang.Long.valueOf(20))) should be(List("price > 10", "price >= 20"))
+    not_skipped(index, consumers, new StubMessage("price"->java.lang.Double.valueOf(4.5))) should be(List("price < 5", "price <= 15"))
+    // the bounds are inclusive.
+    not_skipped(index, consumers, new StubMessage("price"->Integer.valueOf(10))) should be(List("price > 10", "price <= 15"))
+    not_skipped(index, consumers, new StubMessage()) should be(Nil)
+  }
+
+  test("values which are not numbers fall back to all the range candidates") {
+    val (index, consumers) = indexed("price > 10", "price < 5")
+    not_skipped(index, consumers, new StubMessage("price"->"12")) should be(List("price > 10"))
+    not_skipped(index, consumers, new StubMessage("price"->"cheap")) should be(List("price > 10", "price < 5"))
+    not_skipped(index, consumers, new StubMessage("price"->java.lang.Boolean.TRUE)) should be(List("price > 10", "price < 5"))
+  }
+
+  test("only indexed consumers are skipped") {
+    val (index, consumers) = indexed("region = 'EU'", "region = 'US'")
+    not_skipped(index, consumers, new StubMessage("region"->"EU")) should be(List("region = 'EU'"))
+    index.skipped_matches should be(1)
+    index.skips(consumers(1), null) should be(false)
+
+    index.remove(consumers(1))
+    index.indexed_consumers should be(1)
+    not_skipped(index, consumers, message) should be(List("region = 'EU'", "region = 'US'"))
+
+    index.remove(consumers(0))
+    index.candidates(new Delivery) should be(null)
+    index.skipped_matches should be(1)
+  }
+
+  test("matching consumers are never skipped") {
+    val random = new Random(3)
+    def value:AnyRef = random.nextInt(6) match {
+      case 0 => null
+      case 1 => Integer.valueOf(random.nextInt(10))
+      case 2 => java.lang.Long.valueOf(random.nextInt(10))
+      case 3 => java.lang.Double.valueOf(random.nextInt(100) / 10.0)
+      case 4 => random.nextInt(10).toString
+      case 5 => "v"+random.nextInt(3)
+    }
+    val selectors = for( i <- 0 until 200 ) yield {
+      val property = "p"+random.nextInt(3)
+      random.nextInt(6) match {
+        case 0 => property+" = 'v"+random.nextInt(3)+"'"
+        case 1 => property+" = '"+random.nextInt(10)+"'"
+        case 2 => property+" > "+random.nextInt(10)
+        case 3 => property+" >= "+(random.nextInt(100) / 10.0)
+        case 4 => property+" < "+random.nextInt(10)
+        case 5 => property+" <= "+random.nextInt(10)+" AND p"+random.nextInt(3)+" = 'v1'"
+      }
+    }
+    val (index, consumers) = indexed(selectors:_*)
+    for( i <- 0 until 500 ) {
+      val properties = (0 until 3).map(p => ("p"+p, value)).filter(_._2!=null)
+      not_skipped(index, consumers, new StubMessage(properties:_*))
+    }
+  }
+
+}
@@ -0,0 +1,73 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker.protocol
+
+import org.scalatest.matchers.ShouldMatchers
+import org.apache.activemq.apollo.util.FunSuiteSupport
+import org.fusesource.hawtdispatch._
+import org.apache.activemq.apollo.broker.DeliveryProducerRoute
+import org.apache.activemq.apollo.dto.{QueueDestinationDTO, DestinationDTO}
+import collection.mutable.ListBuffer
+
+class ProducerRouteCacheTest extends FunSuiteSupport with ShouldMatchers {
+
+  val test_queue = createQueue("route cache test")
+
+  class TestCache extends ProducerRouteCache {
+    val evicted_keys = ListBuffer[List[DestinationDTO]]()
+    def dispatch_queue = test_queue
+    def evicted(key:List[DestinationDTO], route:DeliveryProducerRoute) = evicted_keys += key
+  }
+
+  def key(name:String):List[DestinationDTO] = List(new QueueDestinationDTO(Array(name)))
+
+  def route = new DeliveryProducerRoute(null) {
+    def dispatch_queue = test_queue
+  }
+
+  test("the longest idle route is evicted when the cache is full") {
+    val cache = new TestCache
+    cache.idle_timeout = 0
+    cache.max_size = 2
+    cache.put(key("a"), route)
+    cache.put(key("b"), route)
+    cache.get(key("a")) should not be(null)
+    cache.put(key("c"), route)
+
+    cache.evicted_keys.toList should be(List(key("b")))
+    cache.size should be(2)
+    cache.hits should be(1)
+    cache.evictions should be(1)
+  }
+
+  test("routes are evicted once they are idle") {
+    val cache = new TestCache
+    cache.idle_timeout = 0
+    cache.put(key("a"), route)
+    cache.put(key("b"), route)
+    cache.get(key("c")) should be(null)
+    cache.misses should be(1)
+
+    cache.idle_timeout = 1000
+    cache.evict_idle(System.currentTimeMillis)
+    cache.size should be(2)
+    cache.evict_idle(System.currentTimeMillis + 1000)
+    cache.size should be(0)
+    cache.evicted_keys.toList should be(List(key("a"), key("b")))
+  }
+
+}
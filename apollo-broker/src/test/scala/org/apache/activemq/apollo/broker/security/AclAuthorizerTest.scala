@@ -0,0 +1,106 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker.security
+
+import org.scalatest.matchers.ShouldMatchers
+import org.apache.activemq.apollo.util.{Log, FunSuiteSupport}
+import org.apache.activemq.apollo.dto.{VirtualHostDTO, PrincipalDTO, QueueAclDTO, QueueDTO}
+import org.apache.activemq.apollo.broker.{QueueDomainQueueBinding, LocalRouter, VirtualHost}
+import org.apache.activemq.jaas.UserPrincipal
+import javax.security.auth.Subject
+
+class AclAuthorizerTest extends FunSuiteSupport with ShouldMatchers {
+
+  def context(user:String) = {
+    val rc = new SecurityContext
+    val subject = new Subject
+    subject.getPrincipals.add(new UserPrincipal(user))
+    rc.subject = subject
+    rc
+  }
+
+  def queue(allowed:String) = {
+    val rc = new QueueDTO
+    rc.acl = new QueueAclDTO
+    rc.acl.sends.add(new PrincipalDTO(allowed, classOf[UserPrincipal].getName))
+    rc
+  }
+
+  def virtual_host = {
+    val rc = new VirtualHost(null, "test")
+    rc.config = new VirtualHostDTO
+    rc
+  }
+
+  test("decisions are cached per destination config") {
+    val host = virtual_host
+    val authorizer = new AclAuthorizer(Nil, Log("test"))
+    val ctx = context("chirino")
+    val allowed = queue("chirino")
+    val denied = queue("someone")
+
+    authorizer.can_send_to(ctx, host, allowed) should be(true)
+    authorizer.can_send_to(ctx, host, denied) should be(false)
+    host.authorization_cache_misses.get should be(2)
+
+    authorizer.can_send_to(ctx, host, allowed) should be(true)
+    authorizer.can_send_to(ctx, host, denied) should be(false)
+    host.authorization_cache_hits.get should be(2)
+
+    // a different action on the same config is evaluated.
+    authorizer.can_receive_from(ctx, host, allowed) should be(false)
+    host.authorization_cache_misses.get should be(3)
+  }
+
+  test("updates invalidate the cached decisions") {
+    val authorizer = new AclAuthorizer(Nil, Log("test"))
+    val ctx = context("chirino")
+    val host = virtual_host
+    val config = queue("chirino")
+    authorizer.can_send_to(ctx, host, config) should be(true)
+
+    config.acl.sends.clear
+    authorizer.can_send_to(ctx, host, config) should be(true)
+    authorizer.invalidate_cache
+    authorizer.can_send_to(ctx, host, config) should be(false)
+
+    // a new subject has new principles.
+    config.acl.sends.add(new PrincipalDTO("other", classOf[UserPrincipal].getName))
+    authorizer.can_send_to(ctx, host, config) should be(false)
+    ctx.subject = context("other").subject
+    authorizer.can_send_to(ctx, host, config) should be(true)
+  }
+
+  test("decisions for unconfigured destinations are cached") {
+    val host = virtual_host
+    val router = new LocalRouter(host)
+    val authorizer = new AclAuthorizer(Nil, Log("test"))
+    val ctx = context("chirino")
+    val path = LocalRouter.destination_parser.decode_path("unconfigured")
+
+    authorizer.can_send_to(ctx, host, router.topic_domain.topic_config(path)) should be(true)
+    authorizer.can_send_to(ctx, host, router.topic_domain.topic_config(path)) should be(true)
+    host.authorization_cache_misses.get should be(1)
+    host.authorization_cache_hits.get should be(1)
+
+    authorizer.can_send_to(ctx, host, QueueDomainQueueBinding.queue_config(host, path)) should be(true)
+    authorizer.can_send_to(ctx, host, QueueDomainQueueBinding.queue_config(host, path)) should be(true)
+    host.authorization_cache_misses.get should be(2)
+    host.authorization_cache_hits.get should be(2)
+  }
+
+}
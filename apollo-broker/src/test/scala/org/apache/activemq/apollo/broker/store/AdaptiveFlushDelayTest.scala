@@ -0,0 +1,74 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker.store
+
+import org.scalatest.matchers.ShouldMatchers
+import org.apache.activemq.apollo.util.FunSuiteSupport
+import java.util.concurrent.TimeUnit
+
+class AdaptiveFlushDelayTest extends FunSuiteSupport with ShouldMatchers {
+
+  // the bounds and delays are in microseconds.
+  val MIN = 0L
+  val MAX = 100000L
+
+  // the lags and latencies are in nanoseconds.
+  def micros(value:Long) = TimeUnit.MICROSECONDS.toNanos(value)
+
+  def flush_delay(delay:Long) = {
+    val rc = new AdaptiveFlushDelay
+    rc.delay = delay
+    rc
+  }
+
+  test("goes to the min delay when idle") {
+    flush_delay(8000).adapt(MIN, MAX, -1, 0, 0, 0, 0, 0) should be(MIN)
+    flush_delay(8000).adapt(2000, MAX, -1, 0, 0, 0, 0, 0) should be(2000)
+  }
+
+  test("halves the delay when few enqueues get canceled") {
+    flush_delay(8000).adapt(MIN, MAX, -1, 1, 99, micros(500), 0, 0) should be(4000)
+  }
+
+  test("probes a longer delay every PROBE_INTERVAL adjustments at the min") {
+    val adaptive = flush_delay(MIN)
+    for( i <- 1 until DelayingStoreSupport.PROBE_INTERVAL ) {
+      adaptive.adapt(MIN, MAX, -1, 1, 99, micros(500), 0, 0) should be(MIN)
+    }
+    adaptive.adapt(MIN, MAX, -1, 1, 99, micros(500), 0, 0) should be(MAX / 4)
+  }
+
+  test("doubles the delay when the consumers lag close to it") {
+    flush_delay(4000).adapt(MIN, MAX, -1, 50, 50, 50*micros(3500), 0, 0) should be(8000)
+    flush_delay(MIN).adapt(MIN, MAX, -1, 50, 50, 0, 0, 0) should be(1000)
+    flush_delay(80000).adapt(MIN, MAX, -1, 50, 50, 50*micros(70000), 0, 0) should be(MAX)
+  }
+
+  test("shrinks the delay to cover the lag of fast consumers") {
+    flush_delay(8000).adapt(MIN, MAX, -1, 50, 50, 50*micros(2000), 0, 0) should be(4000)
+    // a lag below a millisecond still gets covered.
+    flush_delay(8000).adapt(MIN, MAX, -1, 50, 50, 50*micros(300), 0, 0) should be(600)
+  }
+
+  test("leaves room for the store's commit time under the latency target") {
+    // the commits took 9ms of which 8ms were the delay.
+    flush_delay(8000).adapt(MIN, MAX, 5000, 50, 50, 50*micros(7000), 10*micros(9000), 10) should be(4000)
+    // not enforced when negative
+    flush_delay(8000).adapt(MIN, MAX, -1, 50, 50, 50*micros(7000), 10*micros(9000), 10) should be(16000)
+  }
+
+}
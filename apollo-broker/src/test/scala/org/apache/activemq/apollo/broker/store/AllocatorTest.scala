@@ -0,0 +1,54 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker.store
+
+import org.scalatest.matchers.ShouldMatchers
+import org.apache.activemq.apollo.util.FunSuiteSupport
+
+class AllocatorTest extends FunSuiteSupport with ShouldMatchers {
+
+  def tree_allocator = new TreeAllocator(Allocation(0, Long.MaxValue))
+  def slab_allocator = new SlabAllocator(tree_allocator)
+
+  test("slab items are reused after being freed") {
+    val allocator = slab_allocator
+    val a = allocator.alloc(1000)
+    val b = allocator.alloc(1000)
+    a.size should be(1000)
+    b.offset should be(a.offset + SlabAllocator.ITEM_SIZES(SlabAllocator.size_class(1000)))
+
+    a.free
+    allocator.alloc(900).offset should be(a.offset)
+  }
+
+  test("large requests are allocated out of the tree") {
+    val allocator = slab_allocator
+    val large = allocator.alloc(SlabAllocator.MAX_ITEM_SIZE + 1)
+    large.size should be(SlabAllocator.MAX_ITEM_SIZE + 1)
+    large.free
+    allocator.alloc(SlabAllocator.MAX_ITEM_SIZE + 1).offset should be(large.offset)
+  }
+
+  test("freed areas only known by offset go back to their slab") {
+    val allocator = slab_allocator
+    val a = allocator.alloc(2000)
+    allocator.free(Allocation(a.offset, a.size))
+    allocator.alloc_at(Allocation(a.offset, a.size)) should be(true)
+    allocator.alloc_at(Allocation(a.offset, a.size)) should be(false)
+  }
+
+}
@@ -24,6 +24,7 @@ import org.scalatest.{BeforeAndAfterEach, BeforeAndAfterAll}
 import collection.mutable.ListBuffer
 import org.apache.activemq.apollo.util.{LoggingTracker, FunSuiteSupport, LongCounter}
 import java.util.concurrent.atomic._
+import java.lang.management.ManagementFactory
 
 /**
  * <p>Implements generic testing of Store implementations.</p>
@@ -157,6 +158,54 @@ abstract class StoreBenchmarkSupport extends FunSuiteSupport with BeforeAndAfter
     loadMessages(A, message_keys)
   }
 
+  test("enqueue/dequeue allocation rate") {
+    val A = add_queue("A")
+    val content = payload("message\n", 1024)
+    var seq = 0L
+
+    // The dequeue cancels out the delayed enqueue, so this only
+    // exercises the store's pending operation tracking.
+    def enqueue_dequeue = {
+      seq += 1
+      val latch = new CountDownLatch(2)
+
+      val enqueue = store.create_uow
+      val message = addMessage(enqueue, content)
+      enqueue.enqueue(entry(A, seq, message))
+      enqueue.on_complete(latch.countDown)
+      enqueue.release
+
+      val dequeue = store.create_uow
+      dequeue.dequeue(entry(A, seq, message))
+      dequeue.on_complete(latch.countDown)
+      dequeue.release
+
+      latch.await
+    }
+
+    benchmarkCount(10000)(enqueue_dequeue)
+
+    val start = allocated_bytes
+    val metric = benchmarkCount(100000)(enqueue_dequeue)
+    val end = allocated_bytes
+
+    println("enqueue/dequeue metrics: "+metric)
+    println("enqueue/dequeue rate is: "+metric.rate(TimeUnit.SECONDS)+" pairs/s")
+    if( start >= 0 && end >= 0 ) {
+      println("enqueue/dequeue allocation is: "+((end-start)/metric.count)+" bytes/pair")
+    }
+  }
+
+  /**
+   * The bytes allocated by all the live threads or -1 if the
+   * JVM does not support measuring it.
+   */
+  def allocated_bytes = ManagementFactory.getThreadMXBean match {
+    case mbean:com.sun.management.ThreadMXBean if mbean.isThreadAllocatedMemorySupported =>
+      mbean.getThreadAllocatedBytes(mbean.getAllThreadIds).filter(_ > 0).foldLeft(0L)(_ + _)
+    case _ => -1L
+  }
+
   def storeMessages(queue:Long) = {
 
     var seq = 0L
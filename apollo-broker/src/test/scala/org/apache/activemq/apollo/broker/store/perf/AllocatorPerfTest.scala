@@ -0,0 +1,76 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker.store.perf
+
+import org.apache.activemq.apollo.util.FunSuiteSupport
+import org.apache.activemq.apollo.broker.store.{Allocation, Allocator, TreeAllocator, SlabAllocator}
+import java.util.Random
+import collection.mutable.ArrayBuffer
+
+/**
+ * Compares the alloc/free throughput and fragmentation of the tree and
+ * slab allocators.
+ */
+class AllocatorPerfTest extends FunSuiteSupport {
+
+  def tree_allocator = new TreeAllocator(Allocation(0, Long.MaxValue))
+  def slab_allocator = new SlabAllocator(tree_allocator)
+
+  /**
+   * Keeps a window of live allocations and randomly replaces them, reporting
+   * the alloc/free pair rate and how much of the used file extent is wasted.
+   */
+  def churn(name:String, allocator:Allocator, iterations:Int) = {
+    val random = new Random(7)
+    def request = 1024 + random.nextInt(7*1024)
+
+    val live = new ArrayBuffer[Allocation]()
+    var live_size = 0L
+    var extent = 0L
+    def alloc = {
+      val rc = allocator.alloc(request)
+      live_size += rc.size
+      extent = extent.max(rc.offset + rc.size)
+      rc
+    }
+
+    for( i <- 0 until 10000 ) {
+      live += alloc
+    }
+
+    val start = System.nanoTime
+    for( i <- 0 until iterations ) {
+      val pos = random.nextInt(live.size)
+      live(pos).free
+      live_size -= live(pos).size
+      live(pos) = alloc
+    }
+    val end = System.nanoTime
+
+    val rate = iterations * 1000000000L / (end - start).max(1)
+    val fragmentation = 100.0 * (extent - live_size) / extent
+    println("%s allocator: %,d alloc/free pairs/s, %.1f%% of the %,d byte extent is not used".format(name, rate, fragmentation, extent))
+  }
+
+  test("alloc/free throughput and fragmentation") {
+    churn("tree", tree_allocator, 10000)
+    churn("slab", slab_allocator, 10000)
+    churn("tree", tree_allocator, 200000)
+    churn("slab", slab_allocator, 200000)
+  }
+
+}
@@ -63,6 +63,9 @@ class CassandraStore(var config:CassandraStoreDTO) extends DelayingStoreSupport
   var blocking:ExecutorService = null
 
   def flush_delay = config.flush_delay.getOrElse(100)
+  def flush_delay_min = config.flush_delay_min.getOrElse(0L)
+  def flush_delay_max = config.flush_delay_max.getOrElse(-1L)
+  def commit_latency_target = config.commit_latency_target.getOrElse(-1L)
 
   override def toString = "cassandra store at "+config.hosts.toList.mkString(", ")
 
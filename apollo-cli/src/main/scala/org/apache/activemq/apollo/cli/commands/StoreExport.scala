@@ -41,6 +41,9 @@ class StoreExport extends Action {
   @option(name = "--virtual-host", description = "The id of the virtual host to export, if not specified, the default virtual host is selected.")
   var host: String = _
 
+  @option(name = "--compression", description = "The zip compression level, from 0 (none) to 9 (best), defaults to 9.  Low levels export large stores faster.")
+  var compression:Int = 9
+
   @argument(name = "dest", description = "The destination file to hold the exported data", index=0, required=true)
   var dest:File = _
 
@@ -55,6 +58,10 @@ class StoreExport extends Action {
         conf = base / "etc" / "apollo.xml"
       }
 
+      if( compression < 0 || compression > 9 ) {
+        error("The compression level must be between 0 and 9.")
+      }
+
       if( !conf.exists ) {
         error("Configuration file'%s' does not exist.\n\nTry creating a broker instance using the 'apollo create' command.".format(conf));
       }
@@ -81,7 +88,7 @@ class StoreExport extends Action {
       ServiceControl.start(store, "store startup")
       using( new ZipOutputStream(new FileOutputStream(dest))) { out=>
         out.setMethod(ZipEntry.DEFLATED)
-        out.setLevel(9)
+        out.setLevel(compression)
         val manager = new StreamManager[OutputStream]() {
           def entry(name:String, func: (OutputStream) => Unit) = {
             out.putNextEntry(new ZipEntry(name));
@@ -0,0 +1,129 @@
+package org.apache.activemq.apollo.cli.commands
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import org.apache.felix.gogo.commands.{Action, Option => option, Argument => argument, Command => command}
+import org.apache.activemq.apollo.util.FileSupport._
+import org.apache.activemq.apollo.dto.VirtualHostDTO
+import org.apache.activemq.apollo.util._
+import org.apache.activemq.apollo.broker.store.{StoreMigration, StoreFactory}
+import java.io.File
+import org.apache.felix.service.command.CommandSession
+import org.apache.activemq.apollo.broker.ConfigStore
+
+/**
+ * The apollo store-migrate command
+ */
+@command(scope="apollo", name = "store-migrate", description = "copies the contents of a broker message store into the message store of another configuration")
+class StoreMigrate extends Action {
+
+  object StoreMigrate extends Log
+
+  @option(name = "--conf", description = "The Apollo configuration file of the source store.")
+  var conf: File = _
+
+  @option(name = "--virtual-host", description = "The id of the virtual host to migrate, if not specified, the default virtual host is selected.")
+  var host: String = _
+
+  @option(name = "--target-virtual-host", description = "The id of the virtual host in the target configuration, if not specified, the default virtual host is selected.")
+  var target_host: String = _
+
+  @option(name = "--parallelism", description = "The number of queues which are copied concurrently, defaults to the number of cores.")
+  var parallelism:Int = Runtime.getRuntime.availableProcessors
+
+  @option(name = "--batch-size", description = "The maximum number of queue entries each queue copies per unit of work.")
+  var batch_size:Int = 1000
+
+  @option(name = "--progress-file", description = "The file which records the progress of the migration, defaults to store-migrate.progress in the broker's data directory.")
+  var progress_file: File = _
+
+  @option(name = "--resume", description = "Resumes an interrupted migration instead of purging the target store first.")
+  var resume:Boolean = false
+
+  @argument(name = "target", description = "The Apollo configuration file of the target store", index=0, required=true)
+  var target_conf:File = _
+
+  def execute(session: CommandSession):AnyRef = {
+    import Helper._
+
+    try {
+
+      val base = system_dir("apollo.base")
+
+      if( conf == null ) {
+        conf = base / "etc" / "apollo.xml"
+      }
+      if( progress_file == null ) {
+        progress_file = base / "data" / "store-migrate.progress"
+      }
+
+      def load_store(conf:File, host:String) = {
+        if( !conf.exists ) {
+          error("Configuration file'%s' does not exist.".format(conf));
+        }
+
+        val config = ConfigStore.load(conf, session.getConsole.println _)
+
+        val hosts = collection.JavaConversions.collectionAsScalaIterable(config.virtual_hosts).toArray
+        val vho:Option[VirtualHostDTO] = if( host==null ) {
+          hosts.headOption
+        } else {
+          hosts.filter( _.id == host ).headOption
+        }
+
+        val vh = vho.getOrElse(error("Could find host to migrate in '%s'".format(conf)))
+        if( vh.store == null ) {
+          error("The virtual host '%s' does not have a store configured.".format(vh.id))
+        }
+
+        val store = StoreFactory.create(vh.store)
+        if( store==null ) {
+          error("Could not create the store of '%s'.".format(conf))
+        }
+        store
+      }
+
+      val source = load_store(conf, host)
+      val target = load_store(target_conf, target_host)
+
+      ServiceControl.start(source, "source store startup")
+      ServiceControl.start(target, "target store startup")
+      try {
+        val migration = new StoreMigration(source, target, progress_file)
+        migration.parallelism = parallelism
+        migration.batch_size = batch_size
+        migration.report = session.getConsole.println _
+        try {
+          migration.run(resume)
+        } catch {
+          case x:Failure => throw x
+          case x:Exception =>
+            error("The migration failed: %s\nRun the command again with the --resume option to continue it.".format(x))
+        }
+      } finally {
+        ServiceControl.stop(target, "target store stop");
+        ServiceControl.stop(source, "source store stop");
+      }
+
+    } catch {
+      case x:Failure=>
+        error(x.getMessage)
+    }
+    null
+  }
+
+}
@@ -53,4 +53,18 @@ public class ConnectorStatusDTO extends ServiceStatusDTO {
     @XmlAttribute
     public long connected;
 
+    /**
+     * The number of messages the connections of this connector converted
+     * from other protocols.
+     */
+    @XmlAttribute(name="conversion_counter")
+    public long conversion_counter;
+
+    /**
+     * The total time in milliseconds spent converting messages
+     * from other protocols.
+     */
+    @XmlAttribute(name="conversion_time")
+    public long conversion_time;
+
 }
@@ -0,0 +1,72 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.dto;
+
+import javax.xml.bind.annotation.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>
+ * The last grouping of the virtual host's producers, destinations and consumers
+ * onto the dispatch threads.  Rates are in bytes per second.
+ * </p>
+ */
+@XmlRootElement(name="dispatch_grouping")
+@XmlAccessorType(XmlAccessType.FIELD)
+public class DispatchGroupingDTO {
+
+    /**
+     * When the grouping was computed.
+     */
+    @XmlAttribute
+    public long timestamp;
+
+    /**
+     * The rate of all the message flows that were sampled.
+     */
+    @XmlAttribute(name="total_rate")
+    public long total_rate;
+
+    /**
+     * The rate of the message flows that cross threads with the
+     * grouping in place before this one was computed.
+     */
+    @XmlAttribute(name="previous_cross_thread_rate")
+    public long previous_cross_thread_rate;
+
+    /**
+     * The estimated rate of the message flows that cross threads
+     * with this grouping.
+     */
+    @XmlAttribute(name="cross_thread_rate")
+    public long cross_thread_rate;
+
+    /**
+     * Was the grouping applied?  It's only applied when it
+     * significantly reduces the cross thread traffic.
+     */
+    @XmlAttribute
+    public boolean applied;
+
+    /**
+     * The load assigned to each of the dispatch threads.
+     */
+    @XmlElement(name="thread")
+    public List<DispatchThreadDTO> threads = new ArrayList<DispatchThreadDTO>();
+
+}
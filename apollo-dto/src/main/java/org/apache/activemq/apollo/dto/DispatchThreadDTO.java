@@ -0,0 +1,50 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.dto;
+
+import javax.xml.bind.annotation.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>
+ * The load a dispatch grouping assigned to a dispatch thread.
+ * </p>
+ */
+@XmlRootElement(name="dispatch_thread")
+@XmlAccessorType(XmlAccessType.FIELD)
+public class DispatchThreadDTO {
+
+    /**
+     * The label of the thread's dispatch queue.
+     */
+    @XmlAttribute
+    public String label;
+
+    /**
+     * The rate of the message flows handled by the thread.
+     */
+    @XmlAttribute
+    public long load;
+
+    /**
+     * The labels of the dispatch queues grouped onto the thread.
+     */
+    @XmlElement(name="member")
+    public List<String> members = new ArrayList<String>();
+
+}
@@ -0,0 +1,69 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.dto;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlAttribute;
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * <p>
+ * The totals of the queue entries which are in the same state.
+ * </p>
+ */
+@XmlRootElement(name="entry_summary")
+@XmlAccessorType(XmlAccessType.FIELD)
+public class EntrySummaryDTO {
+
+    /**
+     * The state label of the entries
+     */
+    @XmlAttribute
+    public String state;
+
+    /**
+     * The number of entries.  A swapped range of messages is a single entry.
+     */
+    @XmlAttribute
+    public long entries;
+
+    /**
+     * The number of messages held by the entries
+     */
+    @XmlAttribute
+    public long count;
+
+    /**
+     * The size of the messages held by the entries
+     */
+    @XmlAttribute
+    public long size;
+
+    /**
+     * The seq of the first entry
+     */
+    @XmlAttribute(name="first_seq")
+    public long first_seq;
+
+    /**
+     * The seq of the last entry
+     */
+    @XmlAttribute(name="last_seq")
+    public long last_seq;
+
+}
@@ -0,0 +1,85 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.dto;
+
+import javax.xml.bind.annotation.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>
+ * A histogram of values counted in power of two buckets.
+ * </p>
+ */
+@XmlRootElement(name = "histogram")
+@XmlAccessorType(XmlAccessType.FIELD)
+public class HistogramDTO {
+
+    /**
+     * The number of values
+     */
+    @XmlAttribute
+    public long count;
+
+    /**
+     * The total of the values
+     */
+    @XmlAttribute
+    public long total;
+
+    /**
+     * The maximum value
+     */
+    @XmlAttribute
+    public long max;
+
+    /**
+     * The minimum value
+     */
+    @XmlAttribute
+    public long min;
+
+    /**
+     * The 50th percentile of the values
+     */
+    @XmlAttribute
+    public long p50;
+
+    /**
+     * The 99th percentile of the values
+     */
+    @XmlAttribute
+    public long p99;
+
+    /**
+     * The 99.9th percentile of the values
+     */
+    @XmlAttribute
+    public long p999;
+
+    /**
+     * The counts of the buckets.  The first bucket counts the values below 1
+     * and bucket i counts the values from 2^(i-1) up to 2^i.
+     */
+    @XmlElement(name="bucket")
+    public List<Long> buckets = new ArrayList<Long>();
+
+    public float avg() {
+        return count==0 ? 0f : ((float)total) / count;
+    }
+
+}
@@ -41,6 +41,18 @@ public class QueueConsumerStatusDTO {
     public long total_ack_count;
     public long total_nack_count;
 
+    /**
+     * The number of bytes the queue is loading ahead of the consumer.
+     */
+    public int read_ahead_size;
+
+    /**
+     * How many times and for how long in milliseconds the consumer
+     * has waited on the store to load messages.
+     */
+    public long total_stall_count;
+    public long total_stall_time;
+
     /**
      * What the consumer is currently waiting on
      */
@@ -81,6 +81,22 @@ public class QueueDTO extends StringIdDTO {
     @XmlAttribute(name="swap_range_size")
     public Integer swap_range_size;
 
+    /**
+     * If set to true, then messages with a higher priority get
+     * dispatched ahead of the lower priority messages in the
+     * queue.  Defaults to false.
+     */
+    @XmlAttribute(name="priority_dispatch")
+    public Boolean priority_dispatch;
+
+    /**
+     * The maximum amount of memory per consumer used to load messages
+     * ahead of the consumer so that it does not have to wait on the
+     * store.  Defaults to the consumer_buffer size.
+     */
+    @XmlAttribute(name="read_ahead_size")
+    public Integer read_ahead_size;
+
     @XmlElement(name="acl")
     public QueueAclDTO acl;
 
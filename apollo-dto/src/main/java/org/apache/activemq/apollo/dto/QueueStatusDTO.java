@@ -39,12 +39,64 @@ public class QueueStatusDTO extends ServiceStatusDTO {
     @XmlElement
     public QueueMetricsDTO metrics = new QueueMetricsDTO();
 
+    /**
+     * The number of swap passes the queue has run.
+     */
+    @XmlAttribute(name="swap_passes")
+    public long swap_passes;
+
+    /**
+     * The number of queue entries that were visited by the last swap pass.
+     */
+    @XmlAttribute(name="swap_pass_visited")
+    public long swap_pass_visited;
+
+    /**
+     * The number of queue entries that changed state as a
+     * result of the last swap pass.
+     */
+    @XmlAttribute(name="swap_pass_changed")
+    public long swap_pass_changed;
+
+    /**
+     * The number of subscriptions indexed by their selector.
+     */
+    @XmlAttribute(name="selector_indexed_consumers")
+    public int selector_indexed_consumers;
+
+    /**
+     * The number of times a subscription's selector did not have to
+     * be evaluated thanks to the selector index.
+     */
+    @XmlAttribute(name="selector_skipped_matches")
+    public long selector_skipped_matches;
+
+    /**
+     * The stage latencies of the sampled deliveries when tracing is enabled.
+     */
+    @XmlElement(name="trace_stage")
+    public List<TraceStageDTO> trace_stages = new ArrayList<TraceStageDTO>();
+
     /**
      * Status of the entries in the queue
      */
     @XmlElement(name="entry")
     public List<EntryStatusDTO> entries = new ArrayList<EntryStatusDTO>();
 
+    /**
+     * The seq to request the next page of entries from or -1
+     * if the last page of entries was returned.
+     */
+    @XmlAttribute(name="next_entry_seq")
+    public long next_entry_seq = -1;
+
+    /**
+     * The totals of the entries per entry state, when a summary
+     * of the entries was requested.
+     */
+    @XmlElement(name="entry_summary")
+    public List<EntrySummaryDTO> entry_summary = new ArrayList<EntrySummaryDTO>();
+
 
     /**
      * Ids of all connections that are producing to the destination
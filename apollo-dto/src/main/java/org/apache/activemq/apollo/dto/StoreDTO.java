@@ -38,6 +38,28 @@ public abstract class StoreDTO {
     @XmlAttribute(name="flush_delay", required=false)
     public Long flush_delay;
 
+    /**
+     * The minimum flush delay in milliseconds when the flush delay is adapted.
+     * Defaults to 0.
+     */
+    @XmlAttribute(name="flush_delay_min", required=false)
+    public Long flush_delay_min;
+
+    /**
+     * The maximum flush delay in milliseconds.  When set, the store adapts
+     * the flush delay between flush_delay_min and this value based on how
+     * quickly consumers dequeue the messages, starting from the flush_delay.
+     */
+    @XmlAttribute(name="flush_delay_max", required=false)
+    public Long flush_delay_max;
+
+    /**
+     * The commit latency in milliseconds the adaptive flush delay
+     * should try to stay under.
+     */
+    @XmlAttribute(name="commit_latency_target", required=false)
+    public Long commit_latency_target;
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -47,12 +69,22 @@ public abstract class StoreDTO {
 
         if (flush_delay != null ? !flush_delay.equals(storeDTO.flush_delay) : storeDTO.flush_delay != null)
             return false;
+        if (flush_delay_min != null ? !flush_delay_min.equals(storeDTO.flush_delay_min) : storeDTO.flush_delay_min != null)
+            return false;
+        if (flush_delay_max != null ? !flush_delay_max.equals(storeDTO.flush_delay_max) : storeDTO.flush_delay_max != null)
+            return false;
+        if (commit_latency_target != null ? !commit_latency_target.equals(storeDTO.commit_latency_target) : storeDTO.commit_latency_target != null)
+            return false;
 
         return true;
     }
 
     @Override
     public int hashCode() {
-        return flush_delay != null ? flush_delay.hashCode() : 0;
+        int result = flush_delay != null ? flush_delay.hashCode() : 0;
+        result = 31 * result + (flush_delay_min != null ? flush_delay_min.hashCode() : 0);
+        result = 31 * result + (flush_delay_max != null ? flush_delay_max.hashCode() : 0);
+        result = 31 * result + (commit_latency_target != null ? commit_latency_target.hashCode() : 0);
+        return result;
     }
 }
@@ -78,7 +78,19 @@ public abstract class StoreStatusDTO extends StringIdDTO {
     @XmlElement(name="flush_latency")
     public TimeMetricDTO flush_latency;
 
+    /**
+     * The amount of time it takes for a unit of work to be stored once it is disposed.
+     */
+    @XmlElement(name="commit_latency")
+    public TimeMetricDTO commit_latency;
+
     @XmlElement(name="pending_stores")
     public int pending_stores;
 
+    /**
+     * The flush delay in milliseconds currently applied to units of work.
+     */
+    @XmlAttribute(name="flush_delay")
+    public long flush_delay;
+
 }
\ No newline at end of file
@@ -58,6 +58,23 @@ public class TimeMetricDTO {
     @XmlAttribute
     public long min;
 
+    /**
+     * The 50th percentile of the event times in nanoseconds
+     */
+    @XmlAttribute
+    public long p50;
+
+    /**
+     * The 99th percentile of the event times in nanoseconds
+     */
+    @XmlAttribute
+    public long p99;
+
+    /**
+     * The 99.9th percentile of the event times in nanoseconds
+     */
+    @XmlAttribute
+    public long p999;
 
     public float max(TimeUnit unit) {
         return ((float)max) / unit.toNanos(1);
@@ -65,6 +82,15 @@ public class TimeMetricDTO {
     public float min(TimeUnit unit) {
         return ((float)min) / unit.toNanos(1);
     }
+    public float p50(TimeUnit unit) {
+        return ((float)p50) / unit.toNanos(1);
+    }
+    public float p99(TimeUnit unit) {
+        return ((float)p99) / unit.toNanos(1);
+    }
+    public float p999(TimeUnit unit) {
+        return ((float)p999) / unit.toNanos(1);
+    }
     public float total(TimeUnit unit) {
         return ((float)total) / unit.toNanos(1);
     }
@@ -64,4 +64,10 @@ public class TopicStatusDTO extends ServiceStatusDTO {
      */
     @XmlAttribute(name="consumer_counter")
     public long consumer_counter;
+
+    /**
+     * The stage latencies of the sampled deliveries when tracing is enabled.
+     */
+    @XmlElement(name="trace_stage")
+    public List<TraceStageDTO> trace_stages = new ArrayList<TraceStageDTO>();
 }
\ No newline at end of file
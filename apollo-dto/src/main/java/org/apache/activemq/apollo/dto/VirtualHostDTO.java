@@ -70,6 +70,13 @@ public class VirtualHostDTO extends ServiceDTO {
     @XmlAttribute(name="regroup_connections")
     public Boolean regroup_connections;
 
+    /**
+     * If set to N, 1 out of every N messages gets its latency traced
+     * through the broker.
+     */
+    @XmlAttribute(name="trace_sampling")
+    public Integer trace_sampling;
+
     @XmlElement(name="acl")
     public VirtualHostAclDTO acl;
 
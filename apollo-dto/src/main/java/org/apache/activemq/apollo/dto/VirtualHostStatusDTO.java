@@ -56,4 +56,18 @@ public class VirtualHostStatusDTO extends ServiceStatusDTO {
     @XmlElement(name="store")
     public boolean store;
 
+    /**
+     * The number of authorization checks which were answered
+     * from the cached decisions of the security contexts.
+     */
+    @XmlElement(name="authorization_cache_hits")
+    public long authorization_cache_hits;
+
+    /**
+     * The number of authorization checks which had to be
+     * evaluated against the acls.
+     */
+    @XmlElement(name="authorization_cache_misses")
+    public long authorization_cache_misses;
+
 }
@@ -22,7 +22,7 @@ import java.{util=>ju}
 
 import java.io.File
 import java.io.IOException
-import java.util.concurrent.atomic.{AtomicInteger, AtomicLong}
+import java.util.concurrent.atomic.AtomicLong
 import org.fusesource.hawtdb.internal.journal.{JournalListener, Journal, Location}
 import org.apache.activemq.apollo.broker.store.hawtdb.model.Type._
 import org.apache.activemq.apollo.broker.store.hawtdb.model._
@@ -32,7 +32,7 @@ import collection.mutable.{LinkedHashMap, ListBuffer}
 import collection.JavaConversions
 import ju.{TreeSet, HashSet}
 
-import java.util.concurrent.TimeUnit
+import java.util.concurrent.{Callable, ExecutionException, Executors, Future, ThreadFactory, TimeUnit}
 import org.fusesource.hawtdb.api._
 import org.apache.activemq.apollo.broker.store._
 import org.apache.activemq.apollo.util._
@@ -43,9 +43,20 @@ object HawtDBClient extends Log {
   val BEGIN = -1
   val COMMIT = -2
   val ROLLBACK = -3
+  val GROUP = -4
+  // a message logged ahead of the group commit it belongs to.
+  val GROUP_MESSAGE = -5
+
+  /**
+   * The type of the update held by a record which is not a marker or group record.
+   */
+  def record_type(updateType: Int) = if( updateType == GROUP_MESSAGE ) ADD_MESSAGE.getNumber else updateType
 
   val DATABASE_LOCKED_WAIT_DELAY = 10 * 1000
 
+  // How often in milliseconds the recovery progress gets logged.
+  val RECOVERY_REPORT_INTERVAL = 5 * 1000
+
   val CLOSED_STATE = 1
   val OPEN_STATE = 2
 }
@@ -80,7 +91,6 @@ class HawtDBClient(hawtDBStore: HawtDBStore) {
   var storedRootBuffer = (new DatabaseRootRecord.Bean()).freeze
 
 
-  val next_batch_counter = new AtomicInteger(0)
   private var batches = new LinkedHashMap[Int, (Location, ListBuffer[Update])]()
 
   /////////////////////////////////////////////////////////////////////
@@ -98,6 +108,11 @@ class HawtDBClient(hawtDBStore: HawtDBStore) {
   def fail_if_locked = config.fail_if_locked.getOrElse(false)
   def index_page_size = config.index_page_size.getOrElse(512.toShort)
   def index_cache_size = config.index_cache_size.getOrElse(5000)
+  def group_commit_policy = config.group_commit_policy.getOrElse("always")
+  def group_commit_interval = config.group_commit_interval.getOrElse(10L)
+  def group_commit_bytes = config.group_commit_bytes.getOrElse(journal_batch_size)
+  def recovery_threads = config.recovery_threads.getOrElse(Runtime.getRuntime.availableProcessors)
+  def recovery_batch_size = config.recovery_batch_size.getOrElse(1000)
 
   private def index_file = indexFileFactory.getTxPageFile()
 
@@ -209,6 +224,8 @@ class HawtDBClient(hawtDBStore: HawtDBStore) {
   }
 
   def stop() = {
+    // don't leave a held group commit behind.
+    write_group
     journal.close
     indexFileFactory.close
     lockFile.unlock
@@ -312,14 +329,14 @@ class HawtDBClient(hawtDBStore: HawtDBStore) {
             group.count += 1
             group.size += entry.getValue.getSize
 
-// TODO:
-//            if(group.expiration == 0){
-//              group.expiration = entry.expiration
-//            } else {
-//              if( entry.expiration != 0 ) {
-//                group.expiration = entry.expiration.min(group.expiration)
-//              }
-//            }
+            val expiration = entry.getValue.getExpiration
+            if(group.expiration == 0){
+              group.expiration = expiration
+            } else {
+              if( expiration != 0 ) {
+                group.expiration = expiration.min(group.expiration)
+              }
+            }
 
             if( group.count == limit) {
               rc += group
@@ -432,7 +449,7 @@ class HawtDBClient(hawtDBStore: HawtDBStore) {
     try {
       load(location) match {
           case (updateType, batch, data) =>
-            val decoded = expected.cast(decode(location, updateType, data))
+            val decoded = expected.cast(decode(location, record_type(updateType), data))
             val rc = Some(decoded)
             rc
       }
@@ -443,17 +460,9 @@ class HawtDBClient(hawtDBStore: HawtDBStore) {
     }
   }
 
-  private def _store(updates: Seq[TypeCreatable], onComplete: Runnable): Unit = {
-    val batch = next_batch_id
-    begin(batch)
-    updates.foreach {
-      update =>
-        _store(batch, update, null)
-    }
-    commit(batch, onComplete)
-  }
+  private def _store(updates: Seq[TypeCreatable], onComplete: Runnable): Unit = group_commit(updates, onComplete)
 
-  private def _store(update: TypeCreatable, onComplete: Runnable): Unit = _store(-1, update, onComplete)
+  private def _store(update: TypeCreatable, onComplete: Runnable): Unit = group_commit(List(update), onComplete)
 
   val metric_journal_append_counter = new TimeCounter
   var metric_journal_append = metric_journal_append_counter(false)
@@ -461,48 +470,164 @@ class HawtDBClient(hawtDBStore: HawtDBStore) {
   val metric_index_update_counter = new TimeCounter
   var metric_index_update = metric_index_update_counter(false)
 
+  /////////////////////////////////////////////////////////////////////
+  //
+  // Group commits
+  //
+  /////////////////////////////////////////////////////////////////////
+
+  // The group commit being built.  Only accessed by the store's executor thread.
+  private var group: DataByteArrayOutputStream = null
+  private var group_size = 0
+  private var group_updates = ListBuffer[TypeCreatable]()
+  private var group_messages = ListBuffer[(TypeCreatable, Buffer)]()
+  private var group_callbacks = ListBuffer[Runnable]()
+  private var group_write_scheduled = false
+  private var group_counter = 0L
+  private var last_group_write = 0L
+
+  val metric_group_commit_size_counter = new HistogramCounter
+  var metric_group_commit_size = metric_group_commit_size_counter(false)
+
+  val metric_group_append_latency_counter = new HistogramCounter
+  var metric_group_append_latency = metric_group_append_latency_counter(false)
+
+  // The messages logged ahead of the group commit which is being indexed.  Only
+  // accessed while indexing.
+  private var logged_messages = ListBuffer[(TypeCreatable, Location)]()
+
   /**
-   * All updated are are funneled through this method. The updates are logged to
-   * the journal and then the indexes are update.  onFlush will be called back once
-   * this all completes and the index has the update.
-   *
-   * @throws IOException
+   * All updated are are funneled through this method.  The updates get added to
+   * the current group commit which gets appended to the journal according to
+   * the group commit policy.  The messages of the group are logged as their own records so
+   * that they can be loaded individually, followed by a single record holding
+   * the other updates.  Once the journal has synced the group the indexes are
+   * updated and the onComplete callbacks are run.
    */
-  private def _store(batch: Int, update: TypeCreatable, onComplete: Runnable): Unit = {
-    val kind = update.asInstanceOf[TypeCreatable]
-    val frozen = update.freeze
-    val baos = new DataByteArrayOutputStream(frozen.serializedSizeFramed + 5)
-    baos.writeByte(kind.toType().getNumber())
-    baos.writeInt(batch)
-    frozen.writeFramed(baos)
-
-    val buffer = baos.toBuffer()
-    append(buffer) { (helper, location) =>
-      metric_index_update_counter.time {
-        executeStore(helper, location, batch, update, onComplete)
+  private def group_commit(updates: Seq[TypeCreatable], onComplete: Runnable): Unit = {
+    if( group == null ) {
+      group = new DataByteArrayOutputStream(1024*4)
+      group.writeByte(GROUP)
+      group.writeInt(-1)
+      group_size = 5
+    }
+    updates.foreach { update =>
+      val frozen = update.freeze
+      if( update.toType == ADD_MESSAGE ) {
+        val baos = new DataByteArrayOutputStream(frozen.serializedSizeFramed + 5)
+        baos.writeByte(GROUP_MESSAGE)
+        baos.writeInt(-1)
+        frozen.writeFramed(baos)
+        group_messages += ((update, baos.toBuffer))
+        group_size += frozen.serializedSizeFramed + 5
+      } else {
+        group.writeByte(update.toType().getNumber())
+        frozen.writeFramed(group)
+        group_size += frozen.serializedSizeFramed + 1
+        group_updates += update
       }
     }
+    if( onComplete != null ) {
+      group_callbacks += onComplete
+    }
+
+    group_commit_policy match {
+      case "interval" =>
+        val elapsed = System.currentTimeMillis - last_group_write
+        if( elapsed >= group_commit_interval ) {
+          write_group
+        } else {
+          schedule_group_write(group_commit_interval - elapsed)
+        }
+      case "bytes" =>
+        if( group_size >= group_commit_bytes ) {
+          write_group
+        } else {
+          schedule_group_write(group_commit_interval)
+        }
+      case _ =>
+        write_group
+    }
   }
 
-  /**
-   */
-  private def begin(batch: Int): Unit = {
-    val baos = new DataByteArrayOutputStream(5)
-    baos.writeByte(BEGIN)
-    baos.writeInt(batch)
-    append(baos.toBuffer) { (helper,location) =>
-      executeBegin(helper, location, batch)
+  private def schedule_group_write(delay: Long) = {
+    if( !group_write_scheduled ) {
+      group_write_scheduled = true
+      val group_id = group_counter
+      dispatchQueue.executeAfter(delay, TimeUnit.MILLISECONDS, ^{
+        val executor = hawtDBStore.executor_pool
+        if( executor != null && !executor.isShutdown ) {
+          executor {
+            // skip it if the group was written in the meantime.
+            if( group_counter == group_id ) {
+              write_group
+            }
+          }
+        }
+      })
+    }
+  }
+
+  private def write_group: Unit = {
+    if( group != null ) {
+      val data = group.toBuffer
+      val updates = group_updates
+      val messages = group_messages
+      val callbacks = group_callbacks.toList
+      group = null
+      group_updates = ListBuffer()
+      group_messages = ListBuffer()
+      group_callbacks = ListBuffer()
+      group_write_scheduled = false
+      group_counter += 1
+      last_group_write = System.currentTimeMillis
+
+      metric_group_commit_size_counter += updates.size + messages.size
+      val start = System.nanoTime
+      // The journal reports the writes synced in the order they were appended,
+      // so the messages are logged before the group gets indexed.
+      messages.foreach { case (update, message) =>
+        append(message) { (helper, location) =>
+          executeGroupMessage(location, update)
+          Nil
+        }
+      }
+      append(data) { (helper, location) =>
+        metric_group_append_latency_counter += System.nanoTime - start
+        metric_index_update_counter.time {
+          executeGroup(helper, location, updates)
+        }
+        callbacks
+      }
     }
   }
 
   /**
+   * Passes the type and framed encoding of each of the updates
+   * in a group commit record to the func.
    */
-  private def commit(batch: Int, onComplete: Runnable): Unit = {
-    val baos = new DataByteArrayOutputStream(5)
-    baos.writeByte(COMMIT)
-    baos.writeInt(batch)
-    append(baos.toBuffer) { (helper,location) =>
-      executeCommit(helper, location, batch, onComplete)
+  private def foreach_group_entry(data: Buffer)(func: (Byte, Buffer) => Unit) = {
+    val bytes = data.data
+    val end = data.offset + data.length
+    var pos = data.offset
+    while( pos < end ) {
+      val updateType = bytes(pos)
+      pos += 1
+
+      // the framed encoding starts with the var int encoded size.
+      var size = 0
+      var shift = 0
+      var cur = pos
+      var b = 0
+      do {
+        b = bytes(cur)
+        size |= (b & 0x7F) << shift
+        shift += 7
+        cur += 1
+      } while( (b & 0x80) != 0 )
+
+      func(updateType, new Buffer(bytes, pos, (cur - pos) + size))
+      pos = cur + size
     }
   }
 
@@ -552,7 +677,7 @@ class HawtDBClient(hawtDBStore: HawtDBStore) {
       }
 
       val end = System.currentTimeMillis()
-      info("Processed %d operations from the journal in %,.3f seconds.", recoveryCounter, ((end - start) / 1000.0f))
+      info("Processed %d operations from the journal in %,.3f seconds (%,.0f records/sec).", recoveryCounter, ((end - start) / 1000.0f), rate(recoveryCounter, end - start))
       onComplete.run
     })
   }
@@ -584,44 +709,116 @@ class HawtDBClient(hawtDBStore: HawtDBStore) {
       nextRecoveryPosition = journal.getNextLocation(lastRecoveryPosition)
     }
 
-    try {
-      recovering = true
+    val executor = Executors.newFixedThreadPool(recovery_threads.max(1), new ThreadFactory(){
+      def newThread(r: Runnable) = {
+        val rc = new Thread(r, "hawtdb recovery")
+        rc.setDaemon(true)
+        rc
+      }
+    })
 
-      // Continue recovering until journal runs out of records.
-      while (nextRecoveryPosition != null) {
-        lastRecoveryPosition = nextRecoveryPosition
-        recover(lastRecoveryPosition)
+    // Reads and decodes the next batch of records on the recovery threads.
+    def read_ahead = {
+      val rc = ListBuffer[Future[RecoveryRecord]]()
+      while (nextRecoveryPosition != null && rc.size < recovery_batch_size) {
+        val location = nextRecoveryPosition
+        rc += executor.submit(new Callable[RecoveryRecord] {
+          def call = read_recovery_record(location)
+        })
+        lastRecoveryPosition = location
         nextRecoveryPosition = journal.getNextLocation(lastRecoveryPosition)
       }
+      rc
+    }
+
+    try {
+      recovering = true
+      val start = System.currentTimeMillis
+      var last_checkpoint = start
+      var last_report = start
+      var counter = 0L
+
+      // Continue recovering until journal runs out of records.  Each batch
+      // gets indexed in a single transaction while the next one is decoded.
+      var batch = read_ahead
+      while (!batch.isEmpty) {
+        val next = read_ahead
+
+        withTx { tx =>
+          val helper = new TxHelper(tx)
+          batch.foreach { record =>
+            val r = try {
+              record.get
+            } catch {
+              case e: ExecutionException => throw e.getCause
+            }
+            recover(helper, r)
+          }
+          helper.storeRootBean
+        }
+        recoveryCounter += batch.size
+        counter += batch.size
+        batch = next
+
+        // Checkpoint the index so that a crash during recovery resumes from here.
+        val now = System.currentTimeMillis
+        if (now - last_checkpoint >= index_flush_interval) {
+          index_file.flush
+          last_checkpoint = now
+        }
+        if (now - last_report >= RECOVERY_REPORT_INTERVAL) {
+          info("Recovered %,d journal records (%,.0f records/sec).", counter, rate(counter, now - start))
+          last_report = now
+        }
+      }
 
     } finally {
       recovering = false
+      executor.shutdownNow
     }
   }
 
+  private def rate(count: Long, millis: Long) = if (millis <= 0) 0f else count * 1000f / millis
+
+  private case class RecoveryRecord(location: Location, updateType: Byte, batch: Int, updates: Seq[TypeCreatable])
+
   /**
-   * Recovers the logged record at the specified location.
+   * Reads and decodes the logged record at the specified location.
    */
-  def recover(location: Location): Unit = {
+  private def read_recovery_record(location: Location): RecoveryRecord = {
     var data = journal.read(location)
 
     val editor = data.bigEndianEditor
     val updateType = editor.readByte()
     val batch = editor.readInt()
 
-    withTx { tx=>
-      val helper = new TxHelper(tx)
-      updateType match {
-        case BEGIN => executeBegin(helper, location, batch)
-        case COMMIT => executeCommit(helper, location, batch, null)
-        case _ =>
-          val update = decode(location, updateType, data)
-          executeStore(helper, location, batch, update, null)
-      }
-      helper.storeRootBean
+    val updates = updateType match {
+      case BEGIN | COMMIT | ROLLBACK => Nil
+      case GROUP =>
+        val rc = ListBuffer[TypeCreatable]()
+        foreach_group_entry(data) { (updateType, framed) =>
+          rc += decode(location, updateType, framed)
+        }
+        rc
+      case _ =>
+        List(decode(location, record_type(updateType), data))
     }
+    RecoveryRecord(location, updateType, batch, updates)
+  }
 
-    recoveryCounter += 1
+  /**
+   * Recovers a logged record.  Records must be recovered in journal order.
+   */
+  private def recover(helper: TxHelper, record: RecoveryRecord): Unit = {
+    import record._
+    updateType match {
+      case BEGIN => executeBegin(helper, location, batch)
+      case COMMIT => executeCommit(helper, location, batch, null)
+      case ROLLBACK => executeRollback(helper, location, batch, null)
+      case GROUP => executeGroup(helper, location, updates)
+      case GROUP_MESSAGE => executeGroupMessage(location, updates.head)
+      case _ => executeStore(helper, location, batch, updates.head, null)
+    }
   }
 
 
@@ -701,6 +898,27 @@ class HawtDBClient(hawtDBStore: HawtDBStore) {
     }
   }
 
+  private def executeGroupMessage(location: Location, update: TypeCreatable): Unit = {
+    // it's indexed with the group.  If the group was never logged, neither is the message.
+    logged_messages += ((update, location))
+  }
+
+  private def executeGroup(helper:TxHelper, location: Location, updates: Seq[TypeCreatable]): Unit = {
+    // The group record commits the messages logged ahead of it, so all it's
+    // updates get applied as a single unit of work.
+    val messages = logged_messages
+    logged_messages = ListBuffer()
+    if (!recovering || isAfterLastUpdateLocation(location)) {
+      messages.foreach { case (update, message_location) =>
+        index(helper, update, message_location)
+      }
+      updates.foreach { update =>
+        index(helper, update, location)
+      }
+      helper.updateLocations(location)
+    }
+  }
+
   private def executeStore(helper:TxHelper, location: Location, batch: Int, update: TypeCreatable, onComplete: Runnable): List[Runnable] = {
     if (batch == -1) {
       // update is not part of the batch..
@@ -1074,19 +1292,6 @@ class HawtDBClient(hawtDBStore: HawtDBStore) {
     }
   }
 
-  // Gets the next batch id.. after a while we may wrap around
-  // start producing batch ids from zero
-  val next_batch_id = {
-    var rc = next_batch_counter.getAndIncrement
-    while (rc < 0) {
-      // We just wrapped around.. reset the counter to 0
-      // Use a CAS operation so that only 1 thread resets the counter
-      next_batch_counter.compareAndSet(rc + 1, 0)
-      rc = next_batch_counter.getAndIncrement
-    }
-    rc
-  }
-
   private def isAfterLastUpdateLocation(location: Location) = {
     val lastUpdate: Location = rootBuffer.getLastUpdateLocation
     lastUpdate.compareTo(location) < 0
@@ -51,6 +51,9 @@ class HawtDBStore(var config:HawtDBStoreDTO) extends DelayingStoreSupport {
   override def toString = "hawtdb store at "+config.directory
 
   def flush_delay = config.flush_delay.getOrElse(100)
+  def flush_delay_min = config.flush_delay_min.getOrElse(0L)
+  def flush_delay_max = config.flush_delay_max.getOrElse(-1L)
+  def commit_latency_target = config.commit_latency_target.getOrElse(-1L)
   
   protected def get_next_msg_key = next_msg_key.getAndIncrement
 
@@ -215,6 +218,8 @@ class HawtDBStore(var config:HawtDBStoreDTO) extends DelayingStoreSupport {
         message_load_latency = message_load_latency_counter(true)
         client.metric_journal_append = client.metric_journal_append_counter(true)
         client.metric_index_update = client.metric_index_update_counter(true)
+        client.metric_group_commit_size = client.metric_group_commit_size_counter(true)
+        client.metric_group_append_latency = client.metric_group_append_latency_counter(true)
         commit_latency = commit_latency_counter(true)
         message_load_batch_size =  message_load_batch_size_counter(true)
 
@@ -233,15 +238,19 @@ class HawtDBStore(var config:HawtDBStoreDTO) extends DelayingStoreSupport {
 
     rc.flush_latency = flush_latency
     rc.message_load_latency = message_load_latency
+    rc.commit_latency = commit_latency
     rc.message_load_batch_size = message_load_batch_size
 
     rc.journal_append_latency = client.metric_journal_append
     rc.index_update_latency = client.metric_index_update
+    rc.group_commit_size = client.metric_group_commit_size
+    rc.group_append_latency = client.metric_group_append_latency
 
     rc.canceled_message_counter = metric_canceled_message_counter
     rc.canceled_enqueue_counter = metric_canceled_enqueue_counter
     rc.flushed_message_counter = metric_flushed_message_counter
     rc.flushed_enqueue_counter = metric_flushed_enqueue_counter
+    rc.flush_delay = current_flush_delay
 
     callback(rc)
   }
@@ -62,6 +62,7 @@ object Helpers {
     rc.attachment = pb.getAttachment
     rc.size = pb.getSize
     rc.redeliveries = pb.getRedeliveries.toShort
+    rc.expiration = pb.getExpiration
     rc
   }
 
@@ -73,6 +74,7 @@ object Helpers {
     pb.setAttachment(v.attachment)
     pb.setSize(v.size)
     pb.setRedeliveries(v.redeliveries)
+    pb.setExpiration(v.expiration)
     pb
   }
 
@@ -58,6 +58,44 @@ public class HawtDBStoreDTO extends StoreDTO {
     @XmlAttribute(name="fail_if_locked")
     public Boolean fail_if_locked;
 
+    /**
+     * When the updates accumulated in the current group commit get appended
+     * to the journal: "always" after every store operation, "interval" when
+     * group_commit_interval has elapsed since the last append, or "bytes" once
+     * group_commit_bytes have accumulated.  The journal syncs the appended
+     * records on its own.  Defaults to "always".
+     */
+    @XmlAttribute(name="group_commit_policy")
+    public String group_commit_policy;
+
+    /**
+     * The maximum time in milliseconds a group commit is held open by the
+     * "interval" and "bytes" group commit policies.  Defaults to 10.
+     */
+    @XmlAttribute(name="group_commit_interval")
+    public Long group_commit_interval;
+
+    /**
+     * The number of bytes that closes a group commit with the "bytes"
+     * group commit policy.  Defaults to the journal_batch_size.
+     */
+    @XmlAttribute(name="group_commit_bytes")
+    public Integer group_commit_bytes;
+
+    /**
+     * The number of threads used to read and decode the journal
+     * records during recovery.  Defaults to the number of processors.
+     */
+    @XmlAttribute(name="recovery_threads")
+    public Integer recovery_threads;
+
+    /**
+     * The number of journal records that get indexed in a single index
+     * transaction during recovery.  Defaults to 1000.
+     */
+    @XmlAttribute(name="recovery_batch_size")
+    public Integer recovery_batch_size;
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -83,6 +121,16 @@ public class HawtDBStoreDTO extends StoreDTO {
             return false;
         if (journal_log_size != null ? !journal_log_size.equals(that.journal_log_size) : that.journal_log_size != null)
             return false;
+        if (group_commit_policy != null ? !group_commit_policy.equals(that.group_commit_policy) : that.group_commit_policy != null)
+            return false;
+        if (group_commit_interval != null ? !group_commit_interval.equals(that.group_commit_interval) : that.group_commit_interval != null)
+            return false;
+        if (group_commit_bytes != null ? !group_commit_bytes.equals(that.group_commit_bytes) : that.group_commit_bytes != null)
+            return false;
+        if (recovery_threads != null ? !recovery_threads.equals(that.recovery_threads) : that.recovery_threads != null)
+            return false;
+        if (recovery_batch_size != null ? !recovery_batch_size.equals(that.recovery_batch_size) : that.recovery_batch_size != null)
+            return false;
 
         return true;
     }
@@ -99,6 +147,11 @@ public class HawtDBStoreDTO extends StoreDTO {
         result = 31 * result + (index_cache_size != null ? index_cache_size.hashCode() : 0);
         result = 31 * result + (index_page_size != null ? index_page_size.hashCode() : 0);
         result = 31 * result + (fail_if_locked != null ? fail_if_locked.hashCode() : 0);
+        result = 31 * result + (group_commit_policy != null ? group_commit_policy.hashCode() : 0);
+        result = 31 * result + (group_commit_interval != null ? group_commit_interval.hashCode() : 0);
+        result = 31 * result + (group_commit_bytes != null ? group_commit_bytes.hashCode() : 0);
+        result = 31 * result + (recovery_threads != null ? recovery_threads.hashCode() : 0);
+        result = 31 * result + (recovery_batch_size != null ? recovery_batch_size.hashCode() : 0);
         return result;
     }
 }
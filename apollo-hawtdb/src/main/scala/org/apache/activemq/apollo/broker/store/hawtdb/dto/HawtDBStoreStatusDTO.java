@@ -16,6 +16,7 @@
  */
 package org.apache.activemq.apollo.broker.store.hawtdb.dto;
 
+import org.apache.activemq.apollo.dto.HistogramDTO;
 import org.apache.activemq.apollo.dto.IntMetricDTO;
 import org.apache.activemq.apollo.dto.StoreStatusDTO;
 import org.apache.activemq.apollo.dto.TimeMetricDTO;
@@ -41,4 +42,17 @@ public class HawtDBStoreStatusDTO extends StoreStatusDTO {
     @XmlElement(name="message_load_batch_size")
     public IntMetricDTO message_load_batch_size;
 
+    /**
+     * The number of updates written in each group commit.
+     */
+    @XmlElement(name="group_commit_size")
+    public HistogramDTO group_commit_size;
+
+    /**
+     * The time in nanoseconds from appending a group commit to the
+     * journal until the journal reports it written.
+     */
+    @XmlElement(name="group_append_latency")
+    public HistogramDTO group_append_latency;
+
 }
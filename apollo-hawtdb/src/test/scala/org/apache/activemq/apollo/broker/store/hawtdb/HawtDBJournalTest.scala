@@ -0,0 +1,256 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker.store.hawtdb
+
+import dto.HawtDBStoreDTO
+import org.apache.activemq.apollo.broker.store._
+import org.apache.activemq.apollo.util.{LoggingTracker, FunSuiteSupport}
+import org.apache.activemq.apollo.util.FileSupport._
+import org.scalatest.matchers.ShouldMatchers
+import org.fusesource.hawtbuf.AsciiBuffer._
+import java.util.concurrent.{TimeUnit, CountDownLatch}
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Checks that the records the store logs to the journal can be loaded
+ * back once the store is reopened.
+ */
+class HawtDBJournalTest extends FunSuiteSupport with ShouldMatchers {
+
+  def directory(name:String) = basedir / "target" / "journal" / name
+
+  def create_store(name:String)(configure:HawtDBStoreDTO=>Unit):HawtDBStore = {
+    val config = new HawtDBStoreDTO
+    config.directory = directory(name)
+    configure(config)
+    val rc = new HawtDBStore(config)
+    rc.config.flush_delay = 0
+    val tracker = new LoggingTracker("store startup")
+    tracker.start(rc)
+    tracker.await
+    rc
+  }
+
+  def stop(store:Store) = {
+    val tracker = new LoggingTracker("store stop")
+    tracker.stop(store)
+    tracker.await
+  }
+
+  def CB[T](func: (T=>Unit)=>Unit ) = {
+    var rc:Option[T] = None
+    val cd = new CountDownLatch(1)
+    func { x =>
+      rc = Some(x)
+      cd.countDown
+    }
+    cd.await
+    rc.get
+  }
+
+  def add_queue(store:Store, key:Long) = {
+    val queue = new QueueRecord
+    queue.key = key
+    queue.binding_kind = ascii("test")
+    queue.binding_data = ascii("queue-"+key)
+    CB[Boolean](cb => store.add_queue(queue)(cb)) should be(true)
+  }
+
+  def entry(queue_key:Long, seq:Long, message_key:Long) = {
+    val rc = new QueueEntryRecord
+    rc.queue_key = queue_key
+    rc.entry_seq = seq
+    rc.message_key = message_key
+    rc
+  }
+
+  /**
+   * Stores the messages in units of work of per_uow messages, releasing all the
+   * units of work before waiting for them so that they can share group commits.
+   * @return the (seq, message key, body) of the stored entries.
+   */
+  def populate(store:Store, queue_key:Long, first_seq:Long, count:Int, per_uow:Int) = {
+    val uows = (0 until count).grouped(per_uow).toList
+    val done = new CountDownLatch(uows.size)
+    val rc = uows.flatMap { batch =>
+      val uow = store.create_uow
+      val stored = batch.map { i =>
+        val seq = first_seq + i
+        val message = new MessageRecord
+        message.protocol = ascii("test-protocol")
+        message.buffer = ascii("message "+seq).buffer
+        message.size = message.buffer.length
+        val key = uow.store(message)
+        uow.enqueue(entry(queue_key, seq, key))
+        (seq, key, "message "+seq)
+      }
+      uow.on_complete(done.countDown)
+      uow.release
+      stored
+    }
+    done.await(30, TimeUnit.SECONDS) should be(true)
+    rc
+  }
+
+  def dequeue(store:Store, queue_key:Long, entries:Seq[(Long, Long, String)]) = {
+    val uow = store.create_uow
+    entries.foreach { case (seq, key, _) =>
+      uow.dequeue(entry(queue_key, seq, key))
+    }
+    CB[Unit] { cb =>
+      uow.on_complete(cb())
+      uow.release
+    }
+  }
+
+  def contents(store:Store, queue_key:Long) = {
+    val entries = CB[Seq[QueueEntryRecord]](cb => store.list_queue_entries(queue_key, 0, Long.MaxValue)(cb))
+    entries.map { entry =>
+      val message = CB[Option[MessageRecord]](cb => store.load_message(entry.message_key, new AtomicLong())(cb))
+      (entry.entry_seq, entry.message_key, message.get.buffer.ascii.toString)
+    }.toList
+  }
+
+  def check_group_commits(name:String)(configure:HawtDBStoreDTO=>Unit) = {
+    directory(name).recursive_delete
+    var store = create_store(name)(configure)
+    val remaining = try {
+      add_queue(store, 1)
+      val stored = populate(store, 1, 1, 200, 10)
+      contents(store, 1) should be(stored)
+
+      // a group commit which holds no messages.
+      dequeue(store, 1, stored.filter(_._1 % 2 == 0))
+      val rc = stored.filter(_._1 % 2 == 1)
+      contents(store, 1) should be(rc)
+      rc
+    } finally {
+      stop(store)
+    }
+
+    store = create_store(name)(configure)
+    try {
+      contents(store, 1) should be(remaining)
+    } finally {
+      stop(store)
+    }
+  }
+
+  test("group commits with the always policy") {
+    check_group_commits("always") { config =>
+      config.group_commit_policy = "always"
+    }
+  }
+
+  test("group commits with the interval policy") {
+    check_group_commits("interval") { config =>
+      config.group_commit_policy = "interval"
+      config.group_commit_interval = 20L
+    }
+  }
+
+  test("group commits with the bytes policy") {
+    check_group_commits("bytes") { config =>
+      config.group_commit_policy = "bytes"
+      config.group_commit_bytes = 2*1024
+      config.group_commit_interval = 20L
+    }
+  }
+
+  /**
+   * Group commits so that the journal holds GROUP and GROUP_MESSAGE
+   * records, and recovers them in many small batches on several threads
+   * checkpointing the index as it goes.
+   */
+  def recovery_config(config:HawtDBStoreDTO) = {
+    config.group_commit_policy = "interval"
+    config.group_commit_interval = 20L
+    config.recovery_threads = 4
+    config.recovery_batch_size = 7
+    config.index_flush_interval = 1L
+  }
+
+  test("recovers the whole journal when the index was lost") {
+    val name = "lost-index"
+    directory(name).recursive_delete
+    var store = create_store(name)(recovery_config)
+    val remaining = try {
+      add_queue(store, 1)
+      val stored = populate(store, 1, 1, 500, 10)
+      dequeue(store, 1, stored.filter(_._1 % 3 == 0))
+      stored.filter(_._1 % 3 != 0)
+    } finally {
+      stop(store)
+    }
+
+    // without its index the store has to replay every record of the journal.
+    (directory(name) / "db").delete should be(true)
+
+    store = create_store(name)(recovery_config)
+    try {
+      contents(store, 1) should be(remaining)
+    } finally {
+      stop(store)
+    }
+  }
+
+  test("resumes recovering from an older index checkpoint") {
+    val name = "stale-index"
+    val checkpoint = directory(name+"-checkpoint")
+    directory(name).recursive_delete
+    checkpoint.recursive_delete
+    checkpoint.mkdirs
+
+    var store = create_store(name)(recovery_config)
+    val first = try {
+      add_queue(store, 1)
+      populate(store, 1, 1, 500, 10)
+    } finally {
+      stop(store)
+    }
+    (directory(name) / "db").copy_to(checkpoint / "db")
+
+    store = create_store(name)(recovery_config)
+    val remaining = try {
+      val second = populate(store, 1, 501, 500, 10)
+      dequeue(store, 1, first.filter(_._1 % 2 == 0))
+      first.filter(_._1 % 2 == 1) ::: second
+    } finally {
+      stop(store)
+    }
+
+    // a crash before the index got flushed leaves an older index behind,
+    // like a crash in the middle of a recovery does.
+    (checkpoint / "db").copy_to(directory(name) / "db")
+
+    store = create_store(name)(recovery_config)
+    try {
+      contents(store, 1) should be(remaining)
+    } finally {
+      stop(store)
+    }
+
+    // and the index the recovery checkpointed gets used on the next start.
+    store = create_store(name)(recovery_config)
+    try {
+      contents(store, 1) should be(remaining)
+    } finally {
+      stop(store)
+    }
+  }
+
+}
@@ -0,0 +1,137 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker.store.hawtdb
+
+import dto.HawtDBStoreDTO
+import org.apache.activemq.apollo.broker.store._
+import org.apache.activemq.apollo.util.{LoggingTracker, FunSuiteSupport}
+import org.apache.activemq.apollo.util.FileSupport._
+import org.scalatest.matchers.ShouldMatchers
+import org.fusesource.hawtbuf.AsciiBuffer._
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.atomic.AtomicLong
+
+class HawtDBStoreMigrationTest extends FunSuiteSupport with ShouldMatchers {
+
+  def create_store(name:String):Store = {
+    val rc = new HawtDBStore({
+      val rc = new HawtDBStoreDTO
+      rc.directory = basedir / "target" / "migration" / name
+      rc
+    })
+    rc.config.flush_delay = 0
+    val tracker = new LoggingTracker("store startup")
+    tracker.start(rc)
+    tracker.await
+    rc
+  }
+
+  def stop(store:Store) = {
+    val tracker = new LoggingTracker("store stop")
+    tracker.stop(store)
+    tracker.await
+  }
+
+  def CB[T](func: (T=>Unit)=>Unit ) = {
+    var rc:Option[T] = None
+    val cd = new CountDownLatch(1)
+    func { x =>
+      rc = Some(x)
+      cd.countDown
+    }
+    cd.await
+    rc.get
+  }
+
+  def populate(store:Store, queues:Int, messages:Int) = {
+    CB[Unit](cb => store.purge(cb()))
+    for( q <- 1 to queues ) {
+      val queue = new QueueRecord
+      queue.key = q
+      queue.binding_kind = ascii("test")
+      queue.binding_data = ascii("queue-"+q)
+      CB[Boolean](cb => store.add_queue(queue)(cb)) should be(true)
+    }
+    val uow = store.create_uow
+    for( i <- 1 to messages ) {
+      val message = new MessageRecord
+      message.protocol = ascii("test-protocol")
+      message.buffer = ascii("message "+i).buffer
+      message.size = message.buffer.length
+      val key = uow.store(message)
+      // every message is shared by all the queues.
+      for( q <- 1 to queues ) {
+        val entry = new QueueEntryRecord
+        entry.queue_key = q
+        entry.entry_seq = i
+        entry.message_key = key
+        entry.size = message.size
+        uow.enqueue(entry)
+      }
+    }
+    CB[Unit] { cb =>
+      uow.on_complete(cb())
+      uow.release
+    }
+  }
+
+  def contents(store:Store, queue_key:Long) = {
+    val entries = CB[Seq[QueueEntryRecord]](cb => store.list_queue_entries(queue_key, 0, Long.MaxValue)(cb))
+    entries.map { entry =>
+      val message = CB[Option[MessageRecord]](cb => store.load_message(entry.message_key, new AtomicLong())(cb))
+      (entry.entry_seq, message.get.buffer.ascii.toString)
+    }
+  }
+
+  test("queues, entries and messages are copied") {
+    val source = create_store("source")
+    val target = create_store("target")
+    try {
+      populate(source, 3, 250)
+      val migration = new StoreMigration(source, target, basedir / "target" / "migration" / "progress")
+      migration.parallelism = 3
+      migration.batch_size = 100
+      migration.run(false)
+
+      migration.migrated_queues.get should be(3)
+      migration.migrated_entries.get should be(750)
+      migration.migrated_messages.get should be(250)
+
+      // the queues share the copied messages.
+      val message_keys = (1 to 3).flatMap { q =>
+        CB[Seq[QueueEntryRecord]](cb => target.list_queue_entries(q, 0, Long.MaxValue)(cb)).map(_.message_key)
+      }
+      message_keys.size should be(750)
+      message_keys.distinct.size should be(250)
+      CB[Seq[Long]](cb => target.list_queues(cb)) should be(List(1L, 2L, 3L))
+      for( q <- 1 to 3 ) {
+        CB[Option[QueueRecord]](cb => target.get_queue(q)(cb)).get.binding_data should be(ascii("queue-"+q))
+        contents(target, q) should be(contents(source, q))
+      }
+
+      // resuming a completed migration does not copy anything again.
+      val resumed = new StoreMigration(source, target, basedir / "target" / "migration" / "progress")
+      resumed.run(true)
+      resumed.migrated_entries.get should be(0)
+      contents(target, 1).size should be(250)
+    } finally {
+      stop(source)
+      stop(target)
+    }
+  }
+
+}
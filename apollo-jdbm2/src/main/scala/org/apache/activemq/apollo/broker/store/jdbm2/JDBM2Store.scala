@@ -50,6 +50,9 @@ class JDBM2Store(var config:JDBM2StoreDTO) extends DelayingStoreSupport {
   override def toString = "jdbm2 store at "+config.directory
 
   def flush_delay = config.flush_delay.getOrElse(100)
+  def flush_delay_min = config.flush_delay_min.getOrElse(0L)
+  def flush_delay_max = config.flush_delay_max.getOrElse(-1L)
+  def commit_latency_target = config.commit_latency_target.getOrElse(-1L)
   
   protected def get_next_msg_key = next_msg_key.getAndIncrement
 
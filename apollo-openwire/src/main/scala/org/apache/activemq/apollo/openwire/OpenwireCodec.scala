@@ -22,7 +22,7 @@ import org.apache.activemq.apollo.transport.ProtocolCodec
 import OpenwireConstants._
 import java.nio.ByteBuffer
 import java.nio.channels.{SocketChannel, WritableByteChannel, ReadableByteChannel}
-import java.io.EOFException
+import java.io.{IOException, EOFException}
 import org.fusesource.hawtbuf.{BufferEditor, DataByteArrayOutputStream, Buffer}
 import org.apache.activemq.apollo.broker.{Sizer, Message}
 import org.apache.activemq.apollo.openwire.codec.OpenWireFormat
@@ -35,11 +35,48 @@ import org.apache.activemq.apollo.openwire.command._
  * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
  */
 object OpenwireCodec extends Sizer[Command] {
+
+  /**
+   * The number of frames that have to fit in the configured read buffer size
+   * before a read buffer which was grown for a large frame is shrunk back.
+   */
+  val READ_BUFFER_SHRINK_FRAMES = 64
+
+  // Stored messages use a format which does not depend on the marshalling
+  // cache of a connection.  The formats are not thread safe, so each thread
+  // gets its own.
+  val store_format = new ThreadLocal[OpenWireFormat]() {
+    override def initialValue = {
+      val rc = new OpenWireFormat
+      rc.setCacheEnabled(false)
+      rc.setTightEncodingEnabled(false)
+      rc.setSizePrefixDisabled(true)
+      rc
+    }
+  }
+
+  def marshal(message:ActiveMQMessage):Buffer = {
+    // the format re-uses it's output buffer, so we need to copy.
+    store_format.get.marshal(message).deepCopy
+  }
+
+  def unmarshal(buffer:Buffer):ActiveMQMessage = {
+    store_format.get.unmarshal(buffer).asInstanceOf[ActiveMQMessage]
+  }
+
   def encode(message: Message):MessageRecord = {
-    throw new UnsupportedOperationException
+    val msg = message.asInstanceOf[OpenwireMessage]
+    val rc = new MessageRecord
+    rc.protocol = PROTOCOL
+    rc.buffer = msg.encoded
+    rc.size = msg.size
+    rc.expiration = msg.expiration
+    rc
   }
+
   def decode(message: MessageRecord) = {
-    throw new UnsupportedOperationException
+    // defer unmarshalling the message until it's needed.
+    new OpenwireMessage(null, message.buffer, message.size, message.expiration)
   }
 
   def size(value: Command) = {
@@ -120,10 +157,20 @@ class OpenwireCodec extends ProtocolCodec {
   var read_buffer_size = 1024*64
   var read_channel:ReadableByteChannel = null
 
-  var read_buffer:ByteBuffer = ByteBuffer.allocate(4)
-  var read_waiting_on = 4
-
-  var next_action:()=>Command = read_header
+  // The read buffer is re-used for all the frames read from the connection.
+  // Unmarshalling copies out the data it keeps, so frames are unmarshalled
+  // in place and several of them can be processed from a single socket read.
+  // The buffer only grows past read_buffer_size to hold a frame which does
+  // not fit, and shrinks back once large frames stop arriving.
+  var read_buffer = ByteBuffer.allocate(read_buffer_size)
+  // where the data which has not been unmarshalled yet starts.
+  var read_start = 0
+  // the size of the frame at read_start, or 0 if its header has not been read yet.
+  var read_frame_size = 0
+  // the number of frames read since the last one that did not fit in read_buffer_size.
+  var small_frame_counter = 0
+
+  var last_read_io_size = 0
 
   def setReadableByteChannel(channel: ReadableByteChannel) = {
     this.read_channel = channel
@@ -134,77 +181,107 @@ class OpenwireCodec extends ProtocolCodec {
 
   def unread(buffer: Buffer) = {
     assert(read_counter == 0)
-    read_buffer = buffer.toByteBuffer
-    read_buffer.position(read_buffer.limit)
-    read_counter += buffer.length
-    read_waiting_on -= buffer.length
-    if ( read_waiting_on <= 0 ) {
-      read_buffer.flip
+    if( read_buffer.remaining < buffer.length ) {
+      resize_read_buffer(read_buffer.position + buffer.length)
     }
+    read_buffer.put(buffer.data, buffer.offset, buffer.length)
+    read_counter += buffer.length
   }
 
   def getReadCounter = read_counter
 
   override def read():Object = {
-
     var command:Object = null
     while( command==null ) {
-      // do we need to read in more data???
-      if ( read_waiting_on > 0 ) {
+      command = read_frame
+      if( command==null ) {
+        make_read_room
 
         // Try to fill the buffer with data from the socket..
-        var p = read_buffer.position()
-        var count = read_channel.read(read_buffer)
-        if (count == -1) {
-            throw new EOFException("Peer disconnected")
-        } else if (count == 0) {
-            return null
+        last_read_io_size = read_channel.read(read_buffer)
+        if (last_read_io_size == -1) {
+          throw new EOFException("Peer disconnected")
+        } else if (last_read_io_size == 0) {
+          return null
         }
-        read_counter += count
-        read_waiting_on -= count
+        read_counter += last_read_io_size
+      }
+    }
+    command
+  }
 
-        if ( read_waiting_on <= 0 ) {
-          read_buffer.flip
-        }
+  /**
+   * Unmarshalls the frame at read_start if it has been fully read.
+   */
+  def read_frame:Command = {
+    val available = read_buffer.position - read_start
+    if( read_frame_size == 0 ) {
+      if( available < 4 ) {
+        return null
+      }
+      val size = read_buffer.getInt(read_start)
+      if( size < 0 || size > format.getMaxFrameSize ) {
+        throw new IOException("Frame size of %d bytes is larger than the max allowed of %d bytes".format(size, format.getMaxFrameSize))
+      }
+      read_frame_size = size + 4
+    }
+    if( available < read_frame_size ) {
+      return null
+    }
 
+    val rc = format.unmarshal(new Buffer(read_buffer.array, read_start, read_frame_size)).asInstanceOf[Command]
+    if( read_frame_size > read_buffer_size ) {
+      small_frame_counter = 0
+    } else {
+      small_frame_counter += 1
+    }
+    read_start += read_frame_size
+    read_frame_size = 0
+
+    if( read_start == read_buffer.position ) {
+      // everything read got unmarshalled, so we can start over at
+      // the beginning of the buffer.
+      read_start = 0
+      if( read_buffer.capacity > read_buffer_size && small_frame_counter >= OpenwireCodec.READ_BUFFER_SHRINK_FRAMES ) {
+        read_buffer = ByteBuffer.allocate(read_buffer_size)
       } else {
-        command = next_action()
-        if ( read_waiting_on > 0 ) {
-          val next_buffer = ByteBuffer.allocate(read_buffer.remaining+read_waiting_on)
-          next_buffer.put(read_buffer)
-          read_buffer = next_buffer
-        }
+        read_buffer.clear
       }
     }
-    return command
+    rc
   }
 
-  def read_header:()=>Command = ()=> {
-
-    read_buffer.mark
-    val size = read_buffer.getInt
-    read_buffer.reset
-
-    read_waiting_on += (size)
-
-    next_action = read_command(size+4)
-    null
+  /**
+   * Makes sure the read buffer has room for the rest of the
+   * frame being read.
+   */
+  def make_read_room = {
+    val needed = read_frame_size.max(4)
+    if( read_buffer.remaining == 0 || read_start + needed > read_buffer.capacity ) {
+      if( needed > read_buffer.capacity ) {
+        resize_read_buffer(needed)
+      } else {
+        // move the partial frame to the start of the buffer.
+        val size = read_buffer.position - read_start
+        System.arraycopy(read_buffer.array, read_start, read_buffer.array, 0, size)
+        read_buffer.clear
+        read_buffer.position(size)
+        read_start = 0
+      }
+    }
   }
 
-  def read_command(size:Int) = ()=> {
-
-    val buf = new Buffer(read_buffer.array, read_buffer.position, size)
-    val rc = format.unmarshal(buf)
-    read_buffer.position(read_buffer.position+size)
-
-    read_waiting_on += 4
-    next_action = read_header
-    rc.asInstanceOf[Command]
+  private def resize_read_buffer(capacity:Int) = {
+    val size = read_buffer.position - read_start
+    val next = ByteBuffer.allocate(capacity)
+    next.put(read_buffer.array, read_start, size)
+    read_buffer = next
+    read_start = 0
   }
 
   def getLastWriteSize = 0
 
-  def getLastReadSize = 0
+  def getLastReadSize = last_read_io_size
 
   def getWriteBufferSize = write_buffer_size
 
@@ -30,9 +30,54 @@ import command.{ActiveMQBytesMessage, ActiveMQTextMessage, ActiveMQMessage}
  *
  * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
  */
-class OpenwireMessage(val message:ActiveMQMessage) extends BaseRetained with Message {
+class OpenwireMessage(initial_message:ActiveMQMessage, initial_encoded:Buffer, val size:Int, val expiration:Long) extends BaseRetained with Message {
 
-  val _id = ascii(message.getMessageId.toString)
+  def this(message:ActiveMQMessage) = this(message, null, message.getSize, message.getExpiration)
+
+  // The message can be shared by several deliveries running on different
+  // threads, so the lazy conversions are done under the message's lock.
+  @volatile
+  private var _message = initial_message
+  @volatile
+  private var _encoded = initial_encoded
+
+  /**
+   * The message.  Messages loaded from the store only get
+   * unmarshalled once they are accessed.
+   */
+  def message = {
+    var rc = _message
+    if( rc == null ) {
+      this.synchronized {
+        rc = _message
+        if( rc == null ) {
+          rc = OpenwireCodec.unmarshal(_encoded)
+          _message = rc
+        }
+      }
+    }
+    rc
+  }
+
+  /**
+   * The store encoding of the message.  Messages loaded from the
+   * store keep their encoding so they don't get marshalled again.
+   */
+  def encoded = {
+    var rc = _encoded
+    if( rc == null ) {
+      this.synchronized {
+        rc = _encoded
+        if( rc == null ) {
+          rc = OpenwireCodec.marshal(_message)
+          _encoded = rc
+        }
+      }
+    }
+    rc
+  }
+
+  lazy val _id = ascii(message.getMessageId.toString)
 
   def getProperty(name: String) = message.getProperty(name)
 
@@ -48,9 +93,14 @@ class OpenwireMessage(val message:ActiveMQMessage) extends BaseRetained with Mes
 
   def id = _id
 
-  def expiration = message.getExpiration
+  override def destination = message.getDestination.toDestination
+
+  override def properties = {
+    import collection.JavaConversions._
+    message.getProperties.toList.map { case (name, value) => (name, String.valueOf(value)) }
+  }
 
-  def destination = message.getDestination.toDestination
+  override def is_text_body = message.isInstanceOf[ActiveMQTextMessage]
 
   def getBodyAs[T](toType : Class[T]) = {
     (message match {
@@ -67,7 +117,11 @@ class OpenwireMessage(val message:ActiveMQMessage) extends BaseRetained with Mes
           null
         }
       case x:ActiveMQBytesMessage =>
-        null
+        if (toType == classOf[Buffer]) {
+          x.getContent
+        } else {
+          null
+        }
       case x:ActiveMQMessage =>
         if( toType == classOf[String] ) {
           ""
@@ -23,6 +23,11 @@ import org.apache.activemq.apollo.broker.Message
 import OpenwireConstants._
 import org.apache.activemq.apollo.transport.ProtocolCodecFactory
 import org.fusesource.hawtbuf.Buffer
+import org.apache.activemq.apollo.broker.DestinationParser
+import org.apache.activemq.apollo.dto.{TopicDestinationDTO, QueueDestinationDTO}
+import command.{ActiveMQBytesMessage, ActiveMQTextMessage, ActiveMQQueue, ActiveMQTopic, MessageId, ProducerId}
+import java.util.concurrent.atomic.AtomicLong
+import collection.JavaConversions._
 
 /**
  * <p>
@@ -59,6 +64,45 @@ object OpenwireProtocol extends OpenwireProtocolCodecFactory with Protocol {
   def decode(message: MessageRecord) = {
     OpenwireCodec.decode(message)
   }
+
+  // the producer of the messages converted from other protocols.
+  val converted_producer_id = new ProducerId("ID:apollo-converted:0:0")
+  val converted_counter = new AtomicLong
+
+  override def convert(message: Message):Message = {
+    val body = message.getBodyAs(classOf[Buffer])
+    if( body==null ) {
+      return null
+    }
+
+    val rc = if( message.is_text_body ) {
+      val text = new ActiveMQTextMessage
+      text.setText(body.utf8.toString)
+      text
+    } else {
+      val bytes = new ActiveMQBytesMessage
+      bytes.setContent(body)
+      bytes
+    }
+    rc.setProducerId(converted_producer_id)
+    rc.setMessageId(new MessageId(converted_producer_id, converted_counter.incrementAndGet))
+    rc.setTimestamp(System.currentTimeMillis)
+    Option(message.destination).flatMap(_.headOption).foreach { destination =>
+      val name = DestinationParser.OPENWIRE_PARSER.encode_path(destination.path.toIterable)
+      destination match {
+        case x:QueueDestinationDTO => rc.setDestination(new ActiveMQQueue(name))
+        case x:TopicDestinationDTO => rc.setDestination(new ActiveMQTopic(name))
+        case _ =>
+      }
+    }
+    rc.setPriority(message.priority)
+    rc.setExpiration(message.expiration)
+    rc.setPersistent(message.persistent)
+    message.properties.foreach { case (name, value) =>
+      rc.setProperty(name, value)
+    }
+    new OpenwireMessage(rc)
+  }
 }
 
 /**
@@ -31,8 +31,8 @@ import org.apache.activemq.apollo.filter.{BooleanExpression, FilterException}
 import org.apache.activemq.apollo.transport._
 import org.apache.activemq.apollo.broker.store._
 import org.apache.activemq.apollo.util._
+import org.apache.activemq.apollo.util.list.{LinkedNodeList, LinkedNode}
 import java.util.concurrent.TimeUnit
-import java.util.Map.Entry
 import protocol._
 import scala.util.continuations._
 import security.SecurityContext
@@ -84,9 +84,10 @@ class OpenwireProtocolHandler extends ProtocolHandler {
     last_command_id
   }
 
-  var producerRoutes = new LRUCache[List[DestinationDTO], DeliveryProducerRoute](10) {
-    override def onCacheEviction(eldest: Entry[List[DestinationDTO], DeliveryProducerRoute]) = {
-      host.router.disconnect(eldest.getKey.toArray, eldest.getValue)
+  val producerRoutes = new ProducerRouteCache {
+    def dispatch_queue = OpenwireProtocolHandler.this.queue
+    def evicted(key:List[DestinationDTO], route:DeliveryProducerRoute) = {
+      host.router.disconnect(key.toArray, route)
     }
   }
 
@@ -115,6 +116,11 @@ class OpenwireProtocolHandler extends ProtocolHandler {
     rc.user = login.map(_.toString).getOrElse(null)
     rc.subscription_count = all_consumers.size
     rc.waiting_on = waiting_on
+    rc.outstanding_acks = all_consumers.values.foldLeft(0)(_ + _.ack_handler.size)
+    rc.route_cache_size = producerRoutes.size
+    rc.route_cache_hits = producerRoutes.hits
+    rc.route_cache_misses = producerRoutes.misses
+    rc.route_cache_evictions = producerRoutes.evictions
     rc
   }
 
@@ -128,6 +134,8 @@ class OpenwireProtocolHandler extends ProtocolHandler {
 //    protocol_filters = ProtocolFilter.create_filters(config.protocol_filters.toList, this)
 //
     import OptionSupport._
+    config.route_cache_size.foreach( producerRoutes.max_size = _ )
+    config.route_idle_timeout.foreach( producerRoutes.idle_timeout = _ )
 
 //    config.max_data_length.foreach( codec.max_data_length = _ )
 //    config.max_header_length.foreach( codec.max_header_length = _ )
@@ -717,7 +725,7 @@ class OpenwireProtocolHandler extends ProtocolHandler {
         case null=> null
         case x=>
           try {
-            SelectorParser.parse(x)
+            SelectorParser.compile(x)
           } catch {
             case e:FilterException =>
               fail("Invalid selector expression: "+e.getMessage)
@@ -773,10 +781,17 @@ class OpenwireProtocolHandler extends ProtocolHandler {
 
     def is_persistent = false
 
+    override def message_selector = selector_expression
+    override def selector_protocol = OpenwireProtocol
+
+    // messages of other protocols get converted.
+    override def selector_view(delivery:Delivery) = delivery.message.convert_to(OpenwireProtocol, connection.connector.conversions)
+
     def matches(delivery:Delivery) = {
-      if( delivery.message.protocol eq OpenwireProtocol ) {
+      val message = selector_view(delivery)
+      if( message!=null ) {
         if( selector_expression!=null ) {
-          selector_expression.matches(delivery.message)
+          selector_expression.matches(message)
         } else {
           true
         }
@@ -836,13 +851,16 @@ class OpenwireProtocolHandler extends ProtocolHandler {
         if( outbound_session.full ) {
           false
         } else {
-          var msg = delivery.message.asInstanceOf[OpenwireMessage].message
+          var msg = delivery.message.convert_to(OpenwireProtocol, connection.connector.conversions).asInstanceOf[OpenwireMessage].message
           ack_handler.track(msg.getMessageId, delivery.ack)
           val dispatch = new MessageDispatch
           dispatch.setConsumerId(info.getConsumerId)
           dispatch.setDestination(msg.getDestination)
           dispatch.setMessage(msg)
 
+          if( delivery.trace!=null ) {
+            delivery.trace.stamp(DeliveryTrace.TRANSPORT)
+          }
           val rc = outbound_session.offer(dispatch)
           assert(rc, "offer should be accepted since it was not full")
           true
@@ -850,39 +868,60 @@ class OpenwireProtocolHandler extends ProtocolHandler {
       }
     }
 
+    class TrackedAck(val seq:Long, val id:MessageId, val callback:(DeliveryResult, StoreUOW)=>Unit) extends LinkedNode[TrackedAck]
+
     object ack_handler {
 
-      // TODO: Need to validate all the range ack cases...
-      var consumer_acks = ListBuffer[(MessageId, (DeliveryResult, StoreUOW)=>Unit)]()
+      // The deliveries waiting to be acked in the order they were dispatched.
+      // They are indexed by message id so that an ack only has to visit
+      // the deliveries it acks.
+      val consumer_acks = new LinkedNodeList[TrackedAck]
+      val consumer_acks_index = new java.util.HashMap[MessageId, TrackedAck]
+      var next_seq = 0L
+
+      def size = consumer_acks_index.size
 
       def track(id:MessageId, callback:(DeliveryResult, StoreUOW)=>Unit) = {
         queue {
-          consumer_acks += (( id, callback ))
+          val tracked = new TrackedAck(next_seq, id, callback)
+          next_seq += 1
+          consumer_acks.addLast(tracked)
+          consumer_acks_index.put(id, tracked)
         }
       }
 
       def apply(messageAck: MessageAck, uow:StoreUOW=null) = {
-
-        var found = false
-        val (acked, not_acked) = consumer_acks.partition{ case (id, _)=>
-          if( found ) {
-            false
+        val last = consumer_acks_index.get(messageAck.getLastMessageId)
+        if( last == null ) {
+          async_fail("ACK failed, invalid message id: %s".format(messageAck.getLastMessageId), messageAck)
+        } else {
+          val first = if( messageAck.isIndividualAck ) {
+            last
           } else {
-            if( id == messageAck.getLastMessageId ) {
-              found = true
+            // Range acks start at the first message id, all others ack
+            // everything dispatched up to the last message id.
+            val rc = messageAck.getFirstMessageId match {
+              case null => null
+              case id => consumer_acks_index.get(id)
+            }
+            if( rc!=null && rc.seq <= last.seq ) {
+              rc
+            } else {
+              consumer_acks.getHead
             }
-            true
           }
-        }
 
-        if( acked.isEmpty ) {
-          async_fail("ACK failed, invalid message id: %s".format(messageAck.getLastMessageId), messageAck)
-        } else {
-          consumer_acks = not_acked
-          acked.foreach{case (_, callback)=>
-            if( callback!=null ) {
-              callback(Delivered, uow)
+          var cur = first
+          var done = false
+          while( !done ) {
+            val next = cur.getNext
+            done = cur eq last
+            cur.unlink
+            consumer_acks_index.remove(cur.id)
+            if( cur.callback!=null ) {
+              cur.callback(Delivered, uow)
             }
+            cur = next
           }
         }
       }
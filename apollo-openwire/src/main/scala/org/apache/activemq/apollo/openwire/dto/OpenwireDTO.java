@@ -42,6 +42,19 @@ public class OpenwireDTO extends ProtocolDTO {
     @XmlAttribute(name="any_descendant_wildcard")
     public String any_descendant_wildcard;
 
+    /**
+     * The maximum number of producer routes a connection caches.
+     */
+    @XmlAttribute(name="route_cache_size")
+    public Integer route_cache_size;
+
+    /**
+     * How long in milliseconds a cached producer route can stay
+     * unused before it's evicted.
+     */
+    @XmlAttribute(name="route_idle_timeout")
+    public Long route_idle_timeout;
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -59,6 +72,10 @@ public class OpenwireDTO extends ProtocolDTO {
             return false;
         if (path_separator != null ? !path_separator.equals(openwireDTO.path_separator) : openwireDTO.path_separator != null)
             return false;
+        if (route_cache_size != null ? !route_cache_size.equals(openwireDTO.route_cache_size) : openwireDTO.route_cache_size != null)
+            return false;
+        if (route_idle_timeout != null ? !route_idle_timeout.equals(openwireDTO.route_idle_timeout) : openwireDTO.route_idle_timeout != null)
+            return false;
 
         return true;
     }
@@ -70,6 +87,8 @@ public class OpenwireDTO extends ProtocolDTO {
         result = 31 * result + (path_separator != null ? path_separator.hashCode() : 0);
         result = 31 * result + (any_child_wildcard != null ? any_child_wildcard.hashCode() : 0);
         result = 31 * result + (any_descendant_wildcard != null ? any_descendant_wildcard.hashCode() : 0);
+        result = 31 * result + (route_cache_size != null ? route_cache_size.hashCode() : 0);
+        result = 31 * result + (route_idle_timeout != null ? route_idle_timeout.hashCode() : 0);
         return result;
     }
 }
@@ -0,0 +1,122 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.openwire
+
+import org.scalatest.matchers.ShouldMatchers
+import org.apache.activemq.apollo.util.FunSuiteSupport
+import java.nio.ByteBuffer
+import java.nio.channels.ReadableByteChannel
+import org.fusesource.hawtbuf.{Buffer, DataByteArrayOutputStream}
+import codec.OpenWireFormat
+import command.{Command, ActiveMQBytesMessage, ActiveMQQueue, MessageId}
+import collection.mutable.ListBuffer
+
+/**
+ * Helpers for feeding encoded frames to the codec.
+ */
+object OpenwireCodecTest {
+
+  /**
+   * Hands out the data in chunks of at most chunk_size bytes, and
+   * then acts like a socket which has no more data available.
+   */
+  class ChunkedChannel(data:Buffer, chunk_size:Int) extends ReadableByteChannel {
+    var pos = data.offset
+    var reads = 0
+
+    def read(dst: ByteBuffer) = {
+      val count = (data.offset + data.length - pos).min(chunk_size).min(dst.remaining)
+      if( count > 0 ) {
+        dst.put(data.data, pos, count)
+        pos += count
+        reads += 1
+      }
+      count
+    }
+
+    def isOpen = true
+    def close = {}
+  }
+
+  def frames(count:Int, body_size:Int) = {
+    val format = new OpenWireFormat
+    val out = new DataByteArrayOutputStream
+    for( i <- 0 until count ) {
+      val message = new ActiveMQBytesMessage
+      message.setMessageId(new MessageId("ID:test-1:1:1", i))
+      message.setDestination(new ActiveMQQueue("test"))
+      message.setContent(new Buffer(new Array[Byte](body_size)))
+      format.marshal(message, out)
+    }
+    out.toBuffer
+  }
+
+  def read_all(codec:OpenwireCodec) = {
+    val rc = ListBuffer[Command]()
+    var command = codec.read
+    while( command!=null ) {
+      rc += command.asInstanceOf[Command]
+      command = codec.read
+    }
+    rc.toList
+  }
+
+  def codec(channel:ReadableByteChannel) = {
+    val rc = new OpenwireCodec
+    rc.setReadableByteChannel(channel)
+    rc
+  }
+
+}
+
+class OpenwireCodecTest extends FunSuiteSupport with ShouldMatchers {
+
+  import OpenwireCodecTest._
+
+  test("several frames are read from a single socket read") {
+    val data = frames(10, 100)
+    val channel = new ChunkedChannel(data, 64*1024)
+    val commands = read_all(codec(channel))
+    commands.size should be(10)
+    channel.reads should be(1)
+  }
+
+  test("frames split across socket reads") {
+    val data = frames(10, 100)
+    val commands = read_all(codec(new ChunkedChannel(data, 7)))
+    commands.size should be(10)
+    commands.foreach { command =>
+      command.asInstanceOf[ActiveMQBytesMessage].getContent.length should be(100)
+    }
+  }
+
+  test("the read buffer grows for a large frame and shrinks back") {
+    val large = frames(1, 256*1024)
+    val small = frames(OpenwireCodec.READ_BUFFER_SHRINK_FRAMES, 100)
+    val data = new DataByteArrayOutputStream
+    data.write(large.data, large.offset, large.length)
+    data.write(small.data, small.offset, small.length)
+
+    val c = codec(new ChunkedChannel(data.toBuffer, 64*1024))
+    c.read.asInstanceOf[ActiveMQBytesMessage].getContent.length should be(256*1024)
+    c.read_buffer.capacity should be > (c.read_buffer_size)
+
+    read_all(c).size should be(OpenwireCodec.READ_BUFFER_SHRINK_FRAMES)
+    c.read_buffer.capacity should be(c.read_buffer_size)
+  }
+
+}
@@ -20,13 +20,15 @@ package org.apache.activemq.apollo.openwire
 import org.scalatest.matchers.ShouldMatchers
 import org.scalatest.BeforeAndAfterEach
 import java.lang.String
-import org.apache.activemq.apollo.broker.{KeyStorage, Broker, BrokerFactory}
+import org.apache.activemq.apollo.broker.{KeyStorage, Broker, BrokerFactory, LocalRouter, Queue}
 import org.apache.activemq.apollo.util.{FileSupport, Logging, FunSuiteSupport, ServiceControl}
 import FileSupport._
 import javax.jms.Connection
 import org.apache.activemq.ActiveMQConnectionFactory
 import org.apache.activemq.command.{ActiveMQTopic, ActiveMQQueue}
 import java.net.InetSocketAddress
+import java.util.concurrent.{TimeUnit, CountDownLatch}
+import org.fusesource.hawtdispatch._
 
 class OpenwireTestSupport extends FunSuiteSupport with ShouldMatchers with BeforeAndAfterEach with Logging {
   var broker: Broker = null
@@ -77,4 +79,47 @@ class OpenwireTestSupport extends FunSuiteSupport with ShouldMatchers with Befor
     connection
   }
 
-}
\ No newline at end of file
+  /**
+   * Runs the function on the dispatch queue and waits for its result.
+   */
+  def sync[T](dispatch_queue:DispatchQueue)(func: =>T):T = {
+    val latch = new CountDownLatch(1)
+    var rc:Either[Throwable, T] = null
+    dispatch_queue {
+      rc = try {
+        Right(func)
+      } catch {
+        case e:Throwable => Left(e)
+      }
+      latch.countDown()
+    }
+    latch.await(10, TimeUnit.SECONDS) should be(true)
+    rc match {
+      case Left(e) => throw e
+      case Right(value) => value
+    }
+  }
+
+  /**
+   * Inspects the named broker side queue on its dispatch queue.
+   */
+  def queue_state[T](name:String)(func: Queue=>T):T = {
+    val router = broker.default_virtual_host.router.asInstanceOf[LocalRouter]
+    val queue = sync(router.dispatch_queue) {
+      router.queues_by_id.get(name).getOrElse(fail("queue not found: "+name))
+    }
+    sync(queue.dispatch_queue) { func(queue) }
+  }
+
+  /**
+   * Waits up to the timeout for the condition to hold.
+   */
+  def within(seconds:Int)(condition: =>Boolean) = {
+    val deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(seconds)
+    while( !condition && System.currentTimeMillis() < deadline ) {
+      Thread.sleep(100)
+    }
+    condition should be(true)
+  }
+
+}
@@ -0,0 +1,91 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.openwire
+
+import javax.jms.{DeliveryMode, TextMessage, Session}
+
+class PersistentQueueTest extends OpenwireTestSupport {
+
+  override val broker_config_uri = "xml:classpath:apollo-openwire-bdb.xml"
+
+  test("Persistent messages are stored and delivered") {
+    connect()
+    val session = default_connection.createSession(false, Session.AUTO_ACKNOWLEDGE)
+    val producer = session.createProducer(queue("persistent"))
+    producer.setDeliveryMode(DeliveryMode.PERSISTENT)
+
+    def put(id:Int) {
+      val message = session.createTextMessage("message:"+id)
+      message.setStringProperty("color", "red")
+      producer.send(message)
+    }
+
+    (1 to 100).foreach(put _)
+
+    val consumer = session.createConsumer(queue("persistent"))
+
+    def get(id:Int) {
+      val m = consumer.receive().asInstanceOf[TextMessage]
+      m.getJMSDestination should equal(queue("persistent"))
+      m.getJMSDeliveryMode should equal(DeliveryMode.PERSISTENT)
+      m.getStringProperty("color") should equal("red")
+      m.getText should equal ("message:"+id)
+    }
+
+    (1 to 100).foreach(get _)
+  }
+
+  def check_priority_dispatch(name:String, low_count:Int, body:String) = {
+    // the client must not re-order the messages it prefetched.
+    val factory = create_connection_factory
+    factory.setMessagePrioritySupported(false)
+    val connection = factory.createConnection
+    connections ::= connection
+    connection.start()
+
+    val session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE)
+    val producer = session.createProducer(queue(name))
+
+    def put(id:Int, priority:Int) {
+      producer.send(session.createTextMessage("message:"+id+body), DeliveryMode.PERSISTENT, priority, 0)
+    }
+
+    (1 to low_count).foreach(put(_, 1))
+    (low_count+1 to low_count+10).foreach(put(_, 9))
+
+    val consumer = session.createConsumer(queue(name))
+
+    def get(id:Int, priority:Int) {
+      val m = consumer.receive(5000).asInstanceOf[TextMessage]
+      m should not be(null)
+      m.getJMSPriority should equal(priority)
+      m.getText should equal ("message:"+id+body)
+    }
+
+    (low_count+1 to low_count+10).foreach(get(_, 9))
+    (1 to low_count).foreach(get(_, 1))
+  }
+
+  test("Higher priority messages are dispatched first") {
+    check_priority_dispatch("priority.loaded", 20, "")
+  }
+
+  test("Higher priority messages are dispatched ahead of swapped out messages") {
+    check_priority_dispatch("priority.swapped", 500, ":"+("x" * 1024))
+  }
+
+}
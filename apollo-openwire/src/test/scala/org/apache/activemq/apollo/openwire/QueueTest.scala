@@ -17,6 +17,7 @@
 package org.apache.activemq.apollo.openwire
 
 import javax.jms.{Message, TextMessage, Session}
+import org.apache.activemq.ActiveMQSession
 
 class QueueTest extends OpenwireTestSupport {
 
@@ -95,6 +96,26 @@ class QueueTest extends OpenwireTestSupport {
     get(3)
   }
 
+  test("Individually acked messages are not redelivered") {
+    connect()
+
+    var session = default_connection.createSession(false, ActiveMQSession.INDIVIDUAL_ACKNOWLEDGE)
+    val producer = session.createProducer(queue("individual"))
+    List(1,2,3).foreach(id=> producer.send(session.createTextMessage("message:"+id)))
+
+    var consumer = session.createConsumer(queue("individual"))
+    val received = List(1,2,3).map(_=> consumer.receive(1000).asInstanceOf[TextMessage])
+    received.map(_.getText) should equal (List("message:1", "message:2", "message:3"))
+    received(1).acknowledge()
+    session.close()
+
+    session = default_connection.createSession(false, Session.AUTO_ACKNOWLEDGE)
+    consumer = session.createConsumer(queue("individual"))
+    consumer.receive(1000).asInstanceOf[TextMessage].getText should equal ("message:1")
+    consumer.receive(1000).asInstanceOf[TextMessage].getText should equal ("message:3")
+    consumer.receive(500) should be(null)
+  }
+
   test("Receive then Browse and then Receive again") {
     connect()
 
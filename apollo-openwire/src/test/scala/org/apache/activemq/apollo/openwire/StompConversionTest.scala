@@ -0,0 +1,135 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.openwire
+
+import javax.jms.{DeliveryMode, TextMessage, Session}
+import java.net.InetSocketAddress
+import org.apache.activemq.apollo.stomp.StompClient
+
+/**
+ * Exchanges messages between openwire and stomp clients.
+ */
+class StompConversionTest extends OpenwireTestSupport {
+
+  override val broker_config_uri = "xml:classpath:apollo-openwire-stomp.xml"
+
+  var stomp_port = 0
+  var stomp_clients = List[StompClient]()
+
+  def connector_port(id:String) = broker.connectors.get(id).get.socket_address.asInstanceOf[InetSocketAddress].getPort
+
+  override protected def beforeAll() {
+    super.beforeAll()
+    port = connector_port("openwire")
+    stomp_port = connector_port("stomp")
+  }
+
+  override protected def afterEach() {
+    super.afterEach()
+    stomp_clients.foreach(_.close())
+    stomp_clients = Nil
+  }
+
+  def stomp_connect(version:String) = {
+    val client = new StompClient
+    client.open("localhost", stomp_port)
+    stomp_clients ::= client
+    if( version == "1.0" ) {
+      client.write("CONNECT\n\n")
+    } else {
+      client.write("CONNECT\naccept-version:"+version+"\nhost:localhost\n\n")
+    }
+    client.receive() should startWith("CONNECTED\n")
+    client
+  }
+
+  def stomp_subscribe(client:StompClient, destination:String) = {
+    client.write(
+      "SUBSCRIBE\n" +
+      "destination:"+destination+"\n" +
+      "id:0\n" +
+      "receipt:0\n" +
+      "\n")
+    client.wait_for_receipt("0")
+  }
+
+  test("Messages sent by stomp clients are received by openwire clients") {
+    connect()
+    val session = default_connection.createSession(false, Session.AUTO_ACKNOWLEDGE)
+    val consumer = session.createConsumer(queue("conversion.to_openwire"))
+
+    val client = stomp_connect("1.1")
+    client.write(
+      "SEND\n" +
+      "destination:/queue/conversion.to_openwire\n" +
+      "priority:7\n" +
+      "persistent:true\n" +
+      "color:red\n" +
+      "receipt:1\n" +
+      "\n" +
+      "Hello World")
+    client.wait_for_receipt("1")
+
+    val m = consumer.receive(5000).asInstanceOf[TextMessage]
+    m should not be(null)
+    m.getJMSDestination should equal(queue("conversion.to_openwire"))
+    m.getJMSPriority should equal(7)
+    m.getJMSDeliveryMode should equal(DeliveryMode.PERSISTENT)
+    m.getStringProperty("color") should equal("red")
+    m.getText should equal("Hello World")
+  }
+
+  test("Messages sent by openwire clients are received by stomp clients") {
+    val client = stomp_connect("1.1")
+    stomp_subscribe(client, "/queue/conversion.to_stomp")
+
+    connect()
+    val session = default_connection.createSession(false, Session.AUTO_ACKNOWLEDGE)
+    val producer = session.createProducer(queue("conversion.to_stomp"))
+    val message = session.createTextMessage("Hello World")
+    message.setStringProperty("color", "red")
+    message.setStringProperty("ratio", "1:2")
+    producer.send(message, DeliveryMode.PERSISTENT, 7, 0)
+
+    val frame = client.receive()
+    frame should startWith("MESSAGE\n")
+    frame should include("destination:/queue/conversion.to_stomp\n")
+    frame should include("priority:7\n")
+    frame should include("persistent:true\n")
+    frame should include("color:red\n")
+    frame should include("ratio:1\\c2\n")
+    frame should endWith("\n\nHello World")
+  }
+
+  test("Stomp 1.0 clients get the properties of converted messages unescaped") {
+    val client_1_1 = stomp_connect("1.1")
+    stomp_subscribe(client_1_1, "/topic/conversion.versions")
+    val client_1_0 = stomp_connect("1.0")
+    stomp_subscribe(client_1_0, "/topic/conversion.versions")
+
+    connect()
+    val session = default_connection.createSession(false, Session.AUTO_ACKNOWLEDGE)
+    val producer = session.createProducer(topic("conversion.versions"))
+    val message = session.createTextMessage("Hello World")
+    message.setStringProperty("ratio", "1:2")
+    producer.send(message)
+
+    client_1_1.receive() should include("ratio:1\\c2\n")
+    client_1_0.receive() should include("ratio:1:2\n")
+  }
+
+}
@@ -0,0 +1,207 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.openwire
+
+import javax.jms.{DeliveryMode, TextMessage, Session}
+import org.apache.activemq.apollo.broker.{Subscription, Queue}
+
+/**
+ * Exercises the swap planner of queues which hold more than their
+ * queue_buffer.  The swap.** queues are configured with a 64k buffer
+ * and a swap_range_size of 50 in apollo-openwire-bdb.xml.  The read_ahead.**
+ * queues also have an 8k consumer_buffer and a 16k read_ahead_size.
+ */
+class SwapTest extends OpenwireTestSupport {
+
+  override val broker_config_uri = "xml:classpath:apollo-openwire-bdb.xml"
+
+  val body = "x" * 1024
+
+  def produce(name:String, ids:Range, ttl:Long=0) = {
+    val session = default_connection.createSession(false, Session.AUTO_ACKNOWLEDGE)
+    val producer = session.createProducer(queue(name))
+    producer.setDeliveryMode(DeliveryMode.PERSISTENT)
+    producer.setTimeToLive(ttl)
+    ids.foreach { id =>
+      producer.send(session.createTextMessage(id+":"+body))
+    }
+    session.close()
+  }
+
+  def consume(name:String, ids:Range) = {
+    val session = default_connection.createSession(false, Session.AUTO_ACKNOWLEDGE)
+    val consumer = session.createConsumer(queue(name))
+    ids.foreach { id =>
+      val m = consumer.receive(5000).asInstanceOf[TextMessage]
+      m should not be(null)
+      m.getText should equal(id+":"+body)
+    }
+    consumer.receive(500) should be(null)
+    session.close()
+  }
+
+  case class EntryStates(loaded:Int, swapped:Int, swapped_ranges:Int)
+
+  def entry_states(queue:Queue) = {
+    var loaded, swapped, swapped_ranges = 0
+    var cur = queue.head_entry.getNext
+    while( cur!=null ) {
+      if( cur.is_loaded ) {
+        loaded += 1
+      } else if( cur.is_swapped ) {
+        swapped += 1
+      } else if( cur.is_swapped_range ) {
+        swapped_ranges += 1
+      }
+      cur = cur.getNext
+    }
+    EntryStates(loaded, swapped, swapped_ranges)
+  }
+
+  test("Entries past the queue buffer get swapped and combined into ranges") {
+    connect()
+    produce("swap.combine", 1 to 2000)
+
+    within(10) {
+      queue_state("swap.combine") { queue =>
+        val states = entry_states(queue)
+        queue.swapped_in_size <= queue.swapped_in_size_max &&
+        states.swapped_ranges > 0 &&
+        queue.individual_swapped_items <= queue.tune_swap_range_size*2
+      }
+    }
+
+    queue_state("swap.combine") { queue =>
+      queue.queue_items should be(2000)
+      val states = entry_states(queue)
+      // most of the entries only exist in the store now
+      states.loaded should be < (100)
+      states.swapped_ranges should be < (2000 / queue.tune_swap_range_size * 2)
+    }
+
+    consume("swap.combine", 1 to 2000)
+  }
+
+  test("Expired entries are removed without a full pass") {
+    connect()
+    val full_passes = queue_state("swap.expiring") { _.swap_planner.full_pass_counter }
+    produce("swap.expiring", 1 to 200, 2000)
+    produce("swap.expiring", 201 to 1200)
+
+    within(10) {
+      queue_state("swap.expiring") { queue =>
+        queue.expired_item_counter == 200 && queue.queue_items == 1000
+      }
+    }
+
+    queue_state("swap.expiring") { queue =>
+      queue.swap_planner.full_pass_counter should be(full_passes)
+      queue.swap_planner.expiring_entries should be(0)
+    }
+
+    consume("swap.expiring", 201 to 1200)
+  }
+
+  test("Swap passes visit a bounded number of entries on a deep queue") {
+    connect()
+    produce("swap.deep", 1 to 3000)
+
+    within(10) {
+      queue_state("swap.deep") { queue =>
+        queue.individual_swapped_items <= queue.tune_swap_range_size*2
+      }
+    }
+
+    val (passes, visited) = queue_state("swap.deep") { queue =>
+      (queue.swap_planner.pass_counter, queue.swap_planner.total_visited)
+    }
+
+    // let the periodic maintenance run a few passes.
+    within(10) {
+      queue_state("swap.deep") { _.swap_planner.pass_counter >= passes + 3 }
+    }
+
+    queue_state("swap.deep") { queue =>
+      val planner = queue.swap_planner
+      planner.full_pass_counter should be(0)
+      val per_pass = (planner.total_visited - visited) / (planner.pass_counter - passes)
+      per_pass should be < (300L)
+      planner.last_visited should be < (300L)
+    }
+
+    consume("swap.deep", 1 to 3000)
+  }
+
+  def subscription(queue:Queue):Subscription = {
+    queue.all_subscriptions.size should be(1)
+    queue.all_subscriptions.valuesIterator.next
+  }
+
+  test("Subscriptions load the entries ahead of them on a swapped queue") {
+    connect()
+    produce("read_ahead.deep", 1 to 2000)
+    within(10) {
+      queue_state("read_ahead.deep") { queue => entry_states(queue).swapped_ranges > 0 }
+    }
+
+    // keep the client from prefetching the whole queue.
+    val factory = create_connection_factory
+    factory.getPrefetchPolicy.setQueuePrefetch(10)
+    val connection = factory.createConnection
+    connections ::= connection
+    connection.start()
+    val session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE)
+    val consumer = session.createConsumer(queue("read_ahead.deep"))
+
+    def get(id:Int) = {
+      val m = consumer.receive(5000).asInstanceOf[TextMessage]
+      m should not be(null)
+      m.getText should equal(id+":"+body)
+    }
+
+    (1 to 1000).foreach(get _)
+
+    within(10) {
+      queue_state("read_ahead.deep") { queue =>
+        val sub = subscription(queue)
+        // count the entries of the prefetch window which got loaded.
+        var loaded_ahead = 0
+        var cur = sub.pos
+        while( cur!=null && cur.seq <= sub.prefetch_end_seq ) {
+          if( cur.is_loaded ) {
+            loaded_ahead += 1
+          }
+          cur = cur.getNext
+        }
+        queue.swap_in_latency > 0 && loaded_ahead > 0
+      }
+    }
+
+    queue_state("read_ahead.deep") { queue =>
+      val sub = subscription(queue)
+      // the read ahead is predicted from the swap in latency, up to the configured size.
+      sub.read_ahead_size should be <= (queue.tune_read_ahead_size)
+      sub.predicted_read_ahead_size should be <= (queue.tune_read_ahead_size)
+      // it had to wait on the store to load the swapped entries at least once.
+      sub.total_stall_count should be > (0L)
+      sub.stall_time should be > (0L)
+    }
+
+    (1001 to 2000).foreach(get _)
+  }
+
+}
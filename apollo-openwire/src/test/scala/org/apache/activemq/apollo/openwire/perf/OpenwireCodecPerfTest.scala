@@ -0,0 +1,49 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.openwire.perf
+
+import org.apache.activemq.apollo.util.FunSuiteSupport
+import org.apache.activemq.apollo.openwire.OpenwireCodecTest._
+
+/**
+ * Measures how fast the OpenWire codec reads frames.
+ */
+class OpenwireCodecPerfTest extends FunSuiteSupport {
+
+  /**
+   * Reports how fast the codec reads frames which were
+   * delivered in socket sized chunks.
+   */
+  def benchmark(name:String, count:Int, body_size:Int, iterations:Int) = {
+    val data = frames(count, body_size)
+    var frames_read = 0L
+    val start = System.nanoTime
+    for( i <- 0 until iterations ) {
+      frames_read += read_all(codec(new ChunkedChannel(data, 64*1024))).size
+    }
+    val elapsed = (System.nanoTime - start).max(1)
+    val rate = frames_read * 1000000000L / elapsed
+    val mb_rate = (data.length.toLong * iterations * 1000000000L / elapsed) / (1024*1024)
+    println("%s frames: %,d frames/s, %,d MB/s".format(name, rate, mb_rate))
+  }
+
+  test("read throughput") {
+    benchmark("small", 10000, 100, 10)
+    benchmark("256KB", 50, 256*1024, 10)
+  }
+
+}
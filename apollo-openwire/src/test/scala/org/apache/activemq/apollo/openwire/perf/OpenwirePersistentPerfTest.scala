@@ -0,0 +1,88 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.openwire.perf
+
+import org.apache.activemq.apollo.openwire.OpenwireTestSupport
+import javax.jms.{DeliveryMode, Session}
+import java.util.concurrent.atomic.{AtomicBoolean, AtomicLong}
+
+/**
+ * Measures the throughput of persistent OpenWire messages sent through
+ * a queue backed by the BDB store.
+ */
+class OpenwirePersistentPerfTest extends OpenwireTestSupport {
+
+  override val broker_config_uri = "xml:classpath:apollo-openwire-bdb.xml"
+
+  val warmup = 5
+  val duration = 30
+
+  def scenario(payload_size:Int) = {
+    val body = "x" * payload_size
+    val done = new AtomicBoolean()
+    val produced = new AtomicLong()
+    val consumed = new AtomicLong()
+    val destination = queue("perf."+payload_size)
+    val producer_session = connect().createSession(false, Session.AUTO_ACKNOWLEDGE)
+    val consumer_session = connect().createSession(false, Session.AUTO_ACKNOWLEDGE)
+
+    val producer_thread = new Thread("producer") {
+      override def run = {
+        val session = producer_session
+        val producer = session.createProducer(destination)
+        producer.setDeliveryMode(DeliveryMode.PERSISTENT)
+        while( !done.get ) {
+          producer.send(session.createTextMessage(body))
+          produced.incrementAndGet
+        }
+      }
+    }
+
+    val consumer_thread = new Thread("consumer") {
+      override def run = {
+        val consumer = consumer_session.createConsumer(destination)
+        while( !done.get ) {
+          if( consumer.receive(500)!=null ) {
+            consumed.incrementAndGet
+          }
+        }
+      }
+    }
+
+    producer_thread.start
+    consumer_thread.start
+
+    Thread.sleep(warmup*1000)
+    val p_start = produced.get
+    val c_start = consumed.get
+    Thread.sleep(duration*1000)
+    val p_rate = (produced.get - p_start) / duration
+    val c_rate = (consumed.get - c_start) / duration
+    done.set(true)
+    producer_thread.join
+    consumer_thread.join
+
+    println("persistent %,d byte messages: %,d produced/s, %,d consumed/s".format(payload_size, p_rate, c_rate))
+  }
+
+  test("persistent queue throughput") {
+    scenario(20)
+    scenario(1024)
+    scenario(256*1024)
+  }
+
+}
@@ -0,0 +1,657 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.filter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Compiles a parsed selector into a tree of type specialized nodes
+ * which evaluate faster than the interpreted expressions:
+ * <ul>
+ * <li>sub expressions which do not depend on the message get folded into constants</li>
+ * <li>comparisons of a property against a numeric or string literal compare
+ *     primitive values instead of going through the generic type conversions</li>
+ * <li>nested AND and OR expressions get flattened and their operands ordered so
+ *     that the cheapest and most selective ones are evaluated first</li>
+ * </ul>
+ * Expressions which cannot be specialized, and property values of a type a
+ * specialized node was not compiled for, are evaluated by the interpreter.
+ * <p>
+ * The interpreted AND and OR expressions do not treat FALSE and UNKNOWN the
+ * same way when their operands are swapped.  Since that only shows when the
+ * result gets negated, operands are only reordered where just the TRUE
+ * results matter: at the root of the selector and below other AND and OR
+ * expressions, but not below a NOT.
+ * </p>
+ */
+public final class SelectorCompiler {
+
+    static final int FALSE = 0;
+    static final int TRUE = 1;
+    static final int UNKNOWN = -1;
+
+    static final int EQUAL = 0;
+    static final int GREATER_THAN = 1;
+    static final int GREATER_THAN_EQUAL = 2;
+    static final int LESS_THAN = 3;
+    static final int LESS_THAN_EQUAL = 4;
+
+    private SelectorCompiler() {
+    }
+
+    /**
+     * @return an expression which evaluates to the same results as the
+     *         original expression.
+     */
+    public static BooleanExpression compile(BooleanExpression expression) {
+        if (expression instanceof CompiledExpression) {
+            return expression;
+        }
+        return new CompiledExpression(expression, compileNode(expression, false));
+    }
+
+    /**
+     * The result of a compilation.  It's equal to and prints like the
+     * original expression.
+     */
+    public static final class CompiledExpression implements BooleanExpression {
+
+        private final BooleanExpression original;
+        private final Node root;
+
+        CompiledExpression(BooleanExpression original, Node root) {
+            this.original = original;
+            this.root = root;
+        }
+
+        public BooleanExpression getOriginal() {
+            return original;
+        }
+
+        public Object evaluate(Filterable message) throws FilterException {
+            // the compiled tree only preserves the TRUE results.
+            return original.evaluate(message);
+        }
+
+        public boolean matches(Filterable message) throws FilterException {
+            return root.eval(message) == TRUE;
+        }
+
+        public String toString() {
+            return original.toString();
+        }
+
+        public int hashCode() {
+            return original.hashCode();
+        }
+
+        public boolean equals(Object o) {
+            if (o instanceof CompiledExpression) {
+                return original.equals(((CompiledExpression)o).original);
+            }
+            return false;
+        }
+    }
+
+    static int toTriState(Object value) {
+        if (value == null) {
+            return UNKNOWN;
+        }
+        if (value instanceof Boolean) {
+            return ((Boolean)value).booleanValue() ? TRUE : FALSE;
+        }
+        return FALSE;
+    }
+
+    /**
+     * A compiled boolean expression.  Evaluates to TRUE, FALSE or UNKNOWN.
+     */
+    abstract static class Node {
+
+        abstract int eval(Filterable message) throws FilterException;
+
+        /**
+         * @return the relative cost of evaluating the node.
+         */
+        abstract double cost();
+
+        /**
+         * @return the estimated probability that the node evaluates to TRUE.
+         */
+        abstract double selectivity();
+    }
+
+    static final class Constant extends Node {
+        static final Constant TRUE_NODE = new Constant(TRUE);
+        static final Constant FALSE_NODE = new Constant(FALSE);
+        static final Constant UNKNOWN_NODE = new Constant(UNKNOWN);
+
+        final int value;
+
+        private Constant(int value) {
+            this.value = value;
+        }
+
+        static Constant valueOf(int value) {
+            switch (value) {
+            case TRUE:
+                return TRUE_NODE;
+            case FALSE:
+                return FALSE_NODE;
+            default:
+                return UNKNOWN_NODE;
+            }
+        }
+
+        int eval(Filterable message) {
+            return value;
+        }
+
+        double cost() {
+            return 0;
+        }
+
+        double selectivity() {
+            return value == TRUE ? 1 : 0;
+        }
+    }
+
+    /**
+     * Falls back to evaluating the original expression.
+     */
+    static final class Interpreted extends Node {
+        final Expression expression;
+        final double cost;
+        final double selectivity;
+
+        Interpreted(Expression expression) {
+            this.expression = expression;
+            if (expression instanceof XPathExpression || expression instanceof XQueryExpression) {
+                cost = 100;
+                selectivity = 0.5;
+            } else if (expression instanceof ComparisonExpression.LikeExpression) {
+                cost = 5;
+                selectivity = 0.25;
+            } else {
+                cost = 3;
+                selectivity = 0.5;
+            }
+        }
+
+        int eval(Filterable message) throws FilterException {
+            return toTriState(expression.evaluate(message));
+        }
+
+        double cost() {
+            return cost;
+        }
+
+        double selectivity() {
+            return selectivity;
+        }
+    }
+
+    static final class Not extends Node {
+        final Node operand;
+
+        Not(Node operand) {
+            this.operand = operand;
+        }
+
+        int eval(Filterable message) throws FilterException {
+            int rc = operand.eval(message);
+            return rc == UNKNOWN ? UNKNOWN : TRUE - rc;
+        }
+
+        double cost() {
+            return operand.cost();
+        }
+
+        double selectivity() {
+            return 1 - operand.selectivity();
+        }
+    }
+
+    static final class And extends Node {
+        final Node[] operands;
+
+        And(Node[] operands) {
+            this.operands = operands;
+        }
+
+        int eval(Filterable message) throws FilterException {
+            // like the interpreter, the result is the first one which is not TRUE.
+            for (Node operand : operands) {
+                int value = operand.eval(message);
+                if (value != TRUE) {
+                    return value;
+                }
+            }
+            return TRUE;
+        }
+
+        double cost() {
+            // later operands only get evaluated if the previous ones were not false.
+            double rc = 0;
+            double reached = 1;
+            for (Node operand : operands) {
+                rc += reached * operand.cost();
+                reached *= operand.selectivity();
+            }
+            return rc;
+        }
+
+        double selectivity() {
+            double rc = 1;
+            for (Node operand : operands) {
+                rc *= operand.selectivity();
+            }
+            return rc;
+        }
+    }
+
+    static final class Or extends Node {
+        final Node[] operands;
+
+        Or(Node[] operands) {
+            this.operands = operands;
+        }
+
+        int eval(Filterable message) throws FilterException {
+            // like the interpreter, the result is TRUE or the result of the last operand.
+            int last = operands.length - 1;
+            for (int i = 0; i < last; i++) {
+                if (operands[i].eval(message) == TRUE) {
+                    return TRUE;
+                }
+            }
+            return operands[last].eval(message);
+        }
+
+        double cost() {
+            // later operands only get evaluated if the previous ones were not true.
+            double rc = 0;
+            double reached = 1;
+            for (Node operand : operands) {
+                rc += reached * operand.cost();
+                reached *= 1 - operand.selectivity();
+            }
+            return rc;
+        }
+
+        double selectivity() {
+            double none = 1;
+            for (Node operand : operands) {
+                none *= 1 - operand.selectivity();
+            }
+            return 1 - none;
+        }
+    }
+
+    /**
+     * Base class for the nodes which test the value of a single property.
+     */
+    abstract static class PropertyNode extends Node {
+        final String name;
+        final Expression fallback;
+
+        PropertyNode(String name, Expression fallback) {
+            this.name = name;
+            this.fallback = fallback;
+        }
+
+        int interpret(Filterable message) throws FilterException {
+            return toTriState(fallback.evaluate(message));
+        }
+
+        double cost() {
+            return 1;
+        }
+    }
+
+    static boolean test(int op, int comparison) {
+        switch (op) {
+        case EQUAL:
+            return comparison == 0;
+        case GREATER_THAN:
+            return comparison > 0;
+        case GREATER_THAN_EQUAL:
+            return comparison >= 0;
+        case LESS_THAN:
+            return comparison < 0;
+        default:
+            return comparison <= 0;
+        }
+    }
+
+    static double comparisonSelectivity(int op) {
+        return op == EQUAL ? 0.1 : 0.33;
+    }
+
+    /**
+     * Compares a property to an integer literal.
+     */
+    static final class LongComparison extends PropertyNode {
+        final int op;
+        final long value;
+
+        LongComparison(String name, int op, long value, Expression fallback) {
+            super(name, fallback);
+            this.op = op;
+            this.value = value;
+        }
+
+        int eval(Filterable message) throws FilterException {
+            Object v = message.getProperty(name);
+            if (v == null) {
+                return op == EQUAL ? FALSE : UNKNOWN;
+            }
+            Class<?> c = v.getClass();
+            if (c == Integer.class || c == Long.class || c == Short.class || c == Byte.class) {
+                long l = ((Number)v).longValue();
+                return test(op, l < value ? -1 : (l == value ? 0 : 1)) ? TRUE : FALSE;
+            }
+            if (c == Double.class) {
+                return test(op, Double.compare(((Double)v).doubleValue(), (double)value)) ? TRUE : FALSE;
+            }
+            return interpret(message);
+        }
+
+        double selectivity() {
+            return comparisonSelectivity(op);
+        }
+    }
+
+    /**
+     * Compares a property to a floating point literal.
+     */
+    static final class DoubleComparison extends PropertyNode {
+        final int op;
+        final double value;
+
+        DoubleComparison(String name, int op, double value, Expression fallback) {
+            super(name, fallback);
+            this.op = op;
+            this.value = value;
+        }
+
+        int eval(Filterable message) throws FilterException {
+            Object v = message.getProperty(name);
+            if (v == null) {
+                return op == EQUAL ? FALSE : UNKNOWN;
+            }
+            Class<?> c = v.getClass();
+            if (c == Double.class || c == Float.class || c == Integer.class || c == Long.class || c == Short.class || c == Byte.class) {
+                return test(op, Double.compare(((Number)v).doubleValue(), value)) ? TRUE : FALSE;
+            }
+            return interpret(message);
+        }
+
+        double selectivity() {
+            return comparisonSelectivity(op);
+        }
+    }
+
+    /**
+     * Checks if a property is equal to a string literal.
+     */
+    static final class StringEquals extends PropertyNode {
+        final String value;
+
+        StringEquals(String name, String value, Expression fallback) {
+            super(name, fallback);
+            this.value = value;
+        }
+
+        int eval(Filterable message) throws FilterException {
+            Object v = message.getProperty(name);
+            if (v == null) {
+                return FALSE;
+            }
+            if (v.getClass() == String.class) {
+                return value.equals(v) ? TRUE : FALSE;
+            }
+            return interpret(message);
+        }
+
+        double selectivity() {
+            return 0.1;
+        }
+    }
+
+    static final class IsNull extends PropertyNode {
+
+        IsNull(String name, Expression fallback) {
+            super(name, fallback);
+        }
+
+        int eval(Filterable message) {
+            return message.getProperty(name) == null ? TRUE : FALSE;
+        }
+
+        double selectivity() {
+            return 0.5;
+        }
+    }
+
+    /**
+     * A property used as a boolean value.
+     */
+    static final class BooleanProperty extends PropertyNode {
+
+        BooleanProperty(String name, Expression fallback) {
+            super(name, fallback);
+        }
+
+        int eval(Filterable message) {
+            Object v = message.getProperty(name);
+            if (v == null) {
+                return UNKNOWN;
+            }
+            if (v.getClass() == Boolean.class) {
+                return ((Boolean)v).booleanValue() ? TRUE : FALSE;
+            }
+            return FALSE;
+        }
+
+        double selectivity() {
+            return 0.5;
+        }
+    }
+
+    /**
+     * @param exact if the node has to tell FALSE and UNKNOWN results apart.
+     */
+    static Node compileNode(Expression expression, boolean exact) {
+        if (isConstant(expression)) {
+            try {
+                return Constant.valueOf(toTriState(expression.evaluate(null)));
+            } catch (Throwable e) {
+                return new Interpreted(expression);
+            }
+        }
+
+        if (expression instanceof LogicExpression) {
+            return compileLogic((LogicExpression)expression, exact);
+        }
+
+        if (expression instanceof UnaryExpression && expression instanceof BooleanExpression) {
+            UnaryExpression unary = (UnaryExpression)expression;
+            String symbol = unary.getExpressionSymbol();
+            if ("NOT".equals(symbol)) {
+                Node operand = compileNode(unary.getRight(), true);
+                if (operand instanceof Constant) {
+                    int value = ((Constant)operand).value;
+                    return Constant.valueOf(value == UNKNOWN ? UNKNOWN : TRUE - value);
+                }
+                if (operand instanceof Not) {
+                    return ((Not)operand).operand;
+                }
+                return new Not(operand);
+            }
+            if ("".equals(symbol) && unary.getRight() instanceof PropertyExpression) {
+                return new BooleanProperty(((PropertyExpression)unary.getRight()).getName(), expression);
+            }
+        }
+
+        if (expression instanceof ComparisonExpression) {
+            Node rc = compileComparison((ComparisonExpression)expression);
+            if (rc != null) {
+                return rc;
+            }
+        }
+
+        return new Interpreted(expression);
+    }
+
+    /**
+     * @return true if the expression does not depend on the message.
+     */
+    static boolean isConstant(Expression expression) {
+        if (expression instanceof ConstantExpression) {
+            return true;
+        }
+        if (expression instanceof BinaryExpression) {
+            BinaryExpression binary = (BinaryExpression)expression;
+            return isConstant(binary.getLeft()) && isConstant(binary.getRight());
+        }
+        if (expression instanceof UnaryExpression) {
+            return isConstant(((UnaryExpression)expression).getRight());
+        }
+        return false;
+    }
+
+    private static Node compileLogic(LogicExpression expression, boolean exact) {
+        final boolean and = "AND".equals(expression.getExpressionSymbol());
+
+        // flatten the nested expressions of the same kind.
+        List<Node> operands = new ArrayList<Node>();
+        if (!collectOperands(expression, expression.getExpressionSymbol(), exact, operands)) {
+            return new Interpreted(expression);
+        }
+        if (exact) {
+            return newLogicNode(and, operands);
+        }
+
+        // fold the constant operands.
+        List<Node> remaining = new ArrayList<Node>(operands.size());
+        for (Node operand : operands) {
+            if (operand instanceof Constant) {
+                boolean isTrue = ((Constant)operand).value == TRUE;
+                if (and && !isTrue) {
+                    return Constant.FALSE_NODE;
+                }
+                if (!and && isTrue) {
+                    return Constant.TRUE_NODE;
+                }
+            } else {
+                remaining.add(operand);
+            }
+        }
+        if (remaining.isEmpty()) {
+            return and ? Constant.TRUE_NODE : Constant.FALSE_NODE;
+        }
+
+        // Evaluate the operands which are cheap and most likely to
+        // decide the result first.
+        Collections.sort(remaining, new Comparator<Node>() {
+            public int compare(Node a, Node b) {
+                return Double.compare(rank(a), rank(b));
+            }
+
+            private double rank(Node node) {
+                double decides = and ? 1 - node.selectivity() : node.selectivity();
+                return node.cost() / Math.max(decides, 0.000001);
+            }
+        });
+        return newLogicNode(and, remaining);
+    }
+
+    private static Node newLogicNode(boolean and, List<Node> operands) {
+        if (operands.size() == 1) {
+            return operands.get(0);
+        }
+        Node[] array = operands.toArray(new Node[operands.size()]);
+        return and ? new And(array) : new Or(array);
+    }
+
+    private static boolean collectOperands(Expression expression, String symbol, boolean exact, List<Node> operands) {
+        if (expression instanceof LogicExpression && symbol.equals(((LogicExpression)expression).getExpressionSymbol())) {
+            LogicExpression logic = (LogicExpression)expression;
+            return collectOperands(logic.getLeft(), symbol, exact, operands) && collectOperands(logic.getRight(), symbol, exact, operands);
+        }
+        if (!(expression instanceof BooleanExpression)) {
+            return false;
+        }
+        operands.add(compileNode(expression, exact));
+        return true;
+    }
+
+    private static Node compileComparison(ComparisonExpression expression) {
+        int op;
+        String symbol = expression.getExpressionSymbol();
+        if ("=".equals(symbol)) {
+            op = EQUAL;
+        } else if (">".equals(symbol)) {
+            op = GREATER_THAN;
+        } else if (">=".equals(symbol)) {
+            op = GREATER_THAN_EQUAL;
+        } else if ("<".equals(symbol)) {
+            op = LESS_THAN;
+        } else if ("<=".equals(symbol)) {
+            op = LESS_THAN_EQUAL;
+        } else {
+            return null;
+        }
+
+        // Only comparisons with the property on the left hand side get
+        // specialized, since the interpreter's type conversions are not
+        // symmetric.
+        Expression left = expression.getLeft();
+        Expression right = expression.getRight();
+        if (!(left instanceof PropertyExpression) || !isConstant(right)) {
+            return null;
+        }
+
+        String name = ((PropertyExpression)left).getName();
+        Object value;
+        try {
+            value = right.evaluate(null);
+        } catch (Throwable e) {
+            return null;
+        }
+
+        if (value == null) {
+            return op == EQUAL ? new IsNull(name, expression) : null;
+        }
+        Class<?> c = value.getClass();
+        if (c == Integer.class || c == Long.class) {
+            return new LongComparison(name, op, ((Number)value).longValue(), expression);
+        }
+        if (c == Double.class) {
+            return new DoubleComparison(name, op, ((Double)value).doubleValue(), expression);
+        }
+        if (c == String.class && op == EQUAL) {
+            return new StringEquals(name, (String)value, expression);
+        }
+        return null;
+    }
+
+}
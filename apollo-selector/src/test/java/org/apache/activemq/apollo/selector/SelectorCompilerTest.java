@@ -0,0 +1,183 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.selector;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.activemq.apollo.filter.BooleanExpression;
+import org.apache.activemq.apollo.filter.FilterException;
+import org.apache.activemq.apollo.filter.Filterable;
+import org.apache.activemq.apollo.filter.SelectorCompiler;
+
+public class SelectorCompilerTest extends TestCase {
+
+    static class MockMessage implements Filterable {
+
+        HashMap<String, Object> properties = new HashMap<String, Object>();
+
+        MockMessage set(String key, Object value) {
+            properties.put(key, value);
+            return this;
+        }
+
+        public <T> T getBodyAs(Class<T> type) throws FilterException {
+            return null;
+        }
+
+        public Object getProperty(String name) {
+            return properties.get(name);
+        }
+
+        public Object getLocalConnectionId() {
+            return null;
+        }
+    }
+
+    static final String[] SELECTORS = new String[] {
+        "name = 'James'",
+        "name <> 'James'",
+        "rank > 100",
+        "rank >= 123 AND rank < 200",
+        "rank = 123",
+        "price < 10.5",
+        "price = 2",
+        "version = 2.0",
+        "big > 3",
+        "tiny = 1",
+        "flag",
+        "NOT flag",
+        "missing IS NULL",
+        "missing IS NOT NULL",
+        "name IS NULL OR rank > 1",
+        "NOT (missing = 1 AND rank > 1)",
+        "NOT (rank > 1 AND missing = 1)",
+        "NOT (missing = 1 OR rank < 1)",
+        "NOT (rank < 1 OR missing = 1)",
+        "NOT NOT (missing > 1)",
+        "missing = 1 OR flag",
+        "name LIKE 'J%' AND rank > 100",
+        "name IN ('James', 'Hiram') OR price > 100",
+        "rank BETWEEN 100 AND 200",
+        "rank + 1 = 124",
+        "1 = 1 AND rank > 5",
+        "1 = 2 OR name = 'Hiram'",
+        "NOT (1 = 2 AND missing = 1)",
+        "name = 'James' AND rank > 100 AND price < 10 OR flag AND tiny = 1",
+    };
+
+    static List<MockMessage> createMessages() {
+        ArrayList<MockMessage> rc = new ArrayList<MockMessage>();
+        rc.add(new MockMessage()
+            .set("name", "James").set("rank", 123).set("price", 2.0d).set("version", 2.0f)
+            .set("big", 4L).set("tiny", (byte) 1).set("flag", true));
+        rc.add(new MockMessage()
+            .set("name", "Hiram").set("rank", 99L).set("price", 200).set("version", "2.0")
+            .set("big", (short) 2).set("tiny", 1).set("flag", false));
+        rc.add(new MockMessage()
+            .set("rank", "123").set("price", Double.NaN).set("flag", "true"));
+        rc.add(new MockMessage());
+        return rc;
+    }
+
+    public void testCompiledSelectorsAgreeWithTheInterpreter() throws Exception {
+        List<MockMessage> messages = createMessages();
+        for (String selector : SELECTORS) {
+            BooleanExpression interpreted = SelectorParser.parse(selector);
+            BooleanExpression compiled = SelectorParser.compile(selector);
+            for (MockMessage message : messages) {
+                String context = selector + " with " + message.properties;
+                assertEquals(context, interpreted.matches(message), compiled.matches(message));
+                assertEquals(context, interpreted.evaluate(message), compiled.evaluate(message));
+            }
+        }
+    }
+
+    public void testCompiledSelectorKeepsTheOriginal() throws Exception {
+        BooleanExpression interpreted = SelectorParser.parse("rank > 100");
+        BooleanExpression compiled = SelectorParser.compile("rank > 100");
+        assertTrue(compiled instanceof SelectorCompiler.CompiledExpression);
+        assertSame(interpreted, ((SelectorCompiler.CompiledExpression) compiled).getOriginal());
+        assertEquals(interpreted.toString(), compiled.toString());
+        assertEquals(compiled, SelectorParser.compile("rank > 100"));
+    }
+
+    public void testConstantSelectorsFold() throws Exception {
+        MockMessage message = new MockMessage();
+        assertTrue(SelectorParser.compile("1 = 1 OR missing = 1").matches(message));
+        assertFalse(SelectorParser.compile("1 = 2 AND missing = 1").matches(message));
+    }
+
+    /**
+     * Creates selectors which combine string, numeric and boolean comparisons.
+     */
+    public static BooleanExpression[] createSelectors(Random random, int count) throws Exception {
+        BooleanExpression rc[] = new BooleanExpression[count];
+        for (int i = 0; i < count; i++) {
+            rc[i] = SelectorParser.parse("region = 'r" + random.nextInt(20) + "' AND price > " + random.nextInt(100)
+                + " AND (priority >= " + random.nextInt(10) + " OR urgent)");
+        }
+        return rc;
+    }
+
+    public static BooleanExpression[] compile(BooleanExpression expressions[]) {
+        BooleanExpression rc[] = new BooleanExpression[expressions.length];
+        for (int i = 0; i < expressions.length; i++) {
+            rc[i] = SelectorCompiler.compile(expressions[i]);
+        }
+        return rc;
+    }
+
+    public static Filterable[] createMessages(Random random, int count) {
+        Filterable rc[] = new Filterable[count];
+        for (int i = 0; i < count; i++) {
+            rc[i] = new MockMessage()
+                .set("region", "r" + random.nextInt(20))
+                .set("price", random.nextInt(100))
+                .set("priority", random.nextInt(10))
+                .set("urgent", random.nextBoolean());
+        }
+        return rc;
+    }
+
+    public static int countMatches(BooleanExpression expressions[], Filterable messages[]) throws FilterException {
+        int rc = 0;
+        for (Filterable message : messages) {
+            for (BooleanExpression expression : expressions) {
+                if (expression.matches(message)) {
+                    rc++;
+                }
+            }
+        }
+        return rc;
+    }
+
+    public void testCompiledSelectorsMatchTheSameMessages() throws Exception {
+        Random random = new Random(42);
+        BooleanExpression interpreted[] = createSelectors(random, 1000);
+        BooleanExpression compiled[] = compile(interpreted);
+        Filterable messages[] = createMessages(random, 100);
+        int matches = countMatches(interpreted, messages);
+        assertTrue(matches > 0);
+        assertEquals(matches, countMatches(compiled, messages));
+    }
+
+}
@@ -0,0 +1,64 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.selector.perf;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.activemq.apollo.filter.BooleanExpression;
+import org.apache.activemq.apollo.filter.FilterException;
+import org.apache.activemq.apollo.filter.Filterable;
+
+import static org.apache.activemq.apollo.selector.SelectorCompilerTest.*;
+
+/**
+ * Compares how fast the interpreted and the compiled selectors
+ * match a stream of messages.
+ */
+public class SelectorCompilerPerfTest extends TestCase {
+
+    /**
+     * Matches a stream of messages against 1000 selectors using the interpreter and
+     * the compiled expressions.
+     */
+    public void testSelectorEvaluationRate() throws Exception {
+        Random random = new Random(42);
+        BooleanExpression interpreted[] = createSelectors(random, 1000);
+        BooleanExpression compiled[] = compile(interpreted);
+        Filterable messages[] = createMessages(random, 100);
+
+        // warm up
+        countMatches(interpreted, messages);
+        countMatches(compiled, messages);
+
+        double interpretedRate = rate(interpreted, messages);
+        double compiledRate = rate(compiled, messages);
+        System.out.println(String.format("interpreted: %,.0f evaluations/sec, compiled: %,.0f evaluations/sec", interpretedRate, compiledRate));
+    }
+
+    private static double rate(BooleanExpression expressions[], Filterable messages[]) throws FilterException {
+        int rounds = 10;
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            countMatches(expressions, messages);
+        }
+        long duration = System.nanoTime() - start;
+        return (double) rounds * messages.length * expressions.length * 1000000000L / duration;
+    }
+
+}
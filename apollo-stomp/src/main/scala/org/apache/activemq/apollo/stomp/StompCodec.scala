@@ -25,7 +25,7 @@ import Stomp._
 import BufferConversions._
 import _root_.scala.collection.JavaConversions._
 import java.io.{EOFException, DataOutput, DataInput, IOException}
-import java.nio.channels.{SocketChannel, WritableByteChannel, ReadableByteChannel}
+import java.nio.channels.{GatheringByteChannel, SocketChannel, WritableByteChannel, ReadableByteChannel}
 import org.apache.activemq.apollo.transport._
 import _root_.org.fusesource.hawtbuf._
 import Buffer._
@@ -37,6 +37,29 @@ object StompCodec extends Log {
 
   var max_command_length = 20
 
+  /**
+   * Bodies at least this big are written from their own
+   * buffer instead of getting copied into the write buffer.
+   */
+  val DIRECT_WRITE_THRESHOLD = 1024*4
+
+  /**
+   * The max number of buffers passed to a single gathering write.
+   */
+  val MAX_GATHER = 64
+
+  /**
+   * The max number of zero copy bodies which can be waiting to be written.
+   */
+  val MAX_PENDING_ZERO_COPY_WRITES = 4
+
+  /**
+   * A zero copy body waiting to be written.
+   */
+  class ZeroCopyWrite(val buffer:ZeroCopyBuffer) {
+    var pos = 0
+  }
+
   def encode(message: StompFrameMessage):MessageRecord = {
     val frame = message.frame
 
@@ -55,6 +78,10 @@ object StompCodec extends Log {
     frame.action.writeTo(os)
     os.write(NEWLINE)
 
+    if( frame.header_template!=null ) {
+      frame.header_template.writeTo(os)
+    }
+
     // Write any updated headers first...
     if( !frame.updated_headers.isEmpty ) {
       for( (key, value) <- frame.updated_headers ) {
@@ -109,6 +136,7 @@ object StompCodec extends Log {
     val action = read_line
 
     val headers = new HeaderMapBuffer()
+    val header_table = new StompHeaderTable()
 
     var line = read_line
     while( line.length() > 0 ) {
@@ -120,6 +148,7 @@ object StompCodec extends Log {
           var name = line.slice(0, seperatorIndex)
           var value = line.slice(seperatorIndex + 1, line.length)
           headers.add((name, value))
+          header_table.add(name, value)
       } catch {
           case e:Exception=>
             e.printStackTrace
@@ -128,11 +157,13 @@ object StompCodec extends Log {
       line = read_line
     }
 
-    if( message.zero_copy_buffer==null ) {
-      new StompFrameMessage(new StompFrame(action, headers.toList, BufferContent(buffer)))
+    val frame = if( message.zero_copy_buffer==null ) {
+      new StompFrame(action, headers.toList, BufferContent(buffer))
     } else {
-      new StompFrameMessage(new StompFrame(action, headers.toList, ZeroCopyContent(message.zero_copy_buffer)))
+      new StompFrame(action, headers.toList, ZeroCopyContent(message.zero_copy_buffer))
     }
+    frame.header_table = header_table
+    new StompFrameMessage(frame)
   }
 
 }
@@ -165,15 +196,17 @@ class StompCodec extends ProtocolCodec {
   var write_channel:WritableByteChannel = null
 
   var next_write_buffer = new DataByteArrayOutputStream(write_buffer_size)
-  var next_write_direct:ZeroCopyBuffer = null
 
-  var write_buffer = ByteBuffer.allocate(0)
-  var write_direct:ZeroCopyBuffer = null
-  var write_direct_pos = 0
+  // The encoded data waiting to be written in order, holds ByteBuffers and ZeroCopyWrites.
+  val write_queue = new java.util.ArrayDeque[AnyRef]()
+  var write_queue_size = 0
+  var pending_zero_copy_writes = 0
   var last_write_io_size = 0
 
-  def full = next_write_direct!=null || next_write_buffer.size >= (write_buffer_size >> 1)
-  def is_empty = write_buffer.remaining == 0 && write_direct==null
+  private val gather_buffers = new Array[ByteBuffer](MAX_GATHER)
+
+  def full = write_queue_size + next_write_buffer.size >= write_buffer_size || pending_zero_copy_writes >= MAX_PENDING_ZERO_COPY_WRITES
+  def is_empty = write_queue.isEmpty && next_write_buffer.size == 0
 
   def setWritableByteChannel(channel: WritableByteChannel) = {
     this.write_channel = channel
@@ -195,7 +228,7 @@ class StompCodec extends ProtocolCodec {
         case buffer:Buffer=>
           buffer.writeTo(next_write_buffer.asInstanceOf[DataOutput])        
         case frame:StompFrame=>
-          encode(frame, next_write_buffer);
+          encode(frame)
       }
       if( was_empty ) {
         ProtocolCodec.BufferState.WAS_EMPTY
@@ -205,10 +238,39 @@ class StompCodec extends ProtocolCodec {
     }
   }
 
-  def encode(frame:StompFrame, os:DataOutput) = {
+  /**
+   * Queues what was encoded into the next_write_buffer so far for writing.
+   */
+  private def seal_write_buffer = {
+    val size = next_write_buffer.size
+    if( size != 0 ) {
+      write_queue.add(next_write_buffer.toBuffer.toByteBuffer)
+      write_queue_size += size
+      // size of next buffer is based on how much was used in the previous buffer.
+      next_write_buffer = new DataByteArrayOutputStream((size+512).max(512).min(write_buffer_size))
+    }
+  }
+
+  /**
+   * Queues the buffer so that it gets written without being copied.
+   */
+  private def write_direct(buffer:Buffer) = {
+    seal_write_buffer
+    write_queue.add(wrap(buffer))
+    write_queue_size += buffer.length
+  }
+
+  def encode(frame:StompFrame):Unit = {
+    // the write buffer gets replaced when bodies are queued for direct writes.
+    def os:DataOutput = next_write_buffer
+
     frame.action.writeTo(os)
     os.write(NEWLINE)
 
+    if( frame.header_template!=null ) {
+      frame.header_template.writeTo(os)
+    }
+
     // Write any updated headers first...
     if( !frame.updated_headers.isEmpty ) {
       for( (key, value) <- frame.updated_headers ) {
@@ -226,7 +288,11 @@ class StompCodec extends ProtocolCodec {
       val buffer1 = frame.headers.head._1;
       val buffer2 = frame.content.asInstanceOf[BufferContent].content;
       val length = (buffer2.offset-buffer1.offset)+buffer2.length
-      os.write( buffer1.data, offset, length)
+      if( length >= DIRECT_WRITE_THRESHOLD ) {
+        write_direct(new Buffer(buffer1.data, offset, length))
+      } else {
+        os.write( buffer1.data, offset, length)
+      }
       END_OF_FRAME_BUFFER.writeTo(os)
 
     } else {
@@ -240,10 +306,16 @@ class StompCodec extends ProtocolCodec {
 
       frame.content match {
         case x:ZeroCopyContent=>
-          assert(next_write_direct==null)
-          next_write_direct = x.zero_copy_buffer
+          seal_write_buffer
+          write_queue.add(new ZeroCopyWrite(x.zero_copy_buffer))
+          pending_zero_copy_writes += 1
+          END_OF_FRAME_BUFFER.writeTo(os)
         case x:BufferContent=>
-          x.content.writeTo(os)
+          if( x.content.length >= DIRECT_WRITE_THRESHOLD ) {
+            write_direct(x.content)
+          } else {
+            x.content.writeTo(os)
+          }
           END_OF_FRAME_BUFFER.writeTo(os)
         case _=>
           END_OF_FRAME_BUFFER.writeTo(os)
@@ -253,46 +325,53 @@ class StompCodec extends ProtocolCodec {
 
 
   def flush():ProtocolCodec.BufferState = {
-    while(true) {
-      // if we have a pending write that is being sent over the socket...
-      if ( write_buffer.remaining() != 0 ) {
-        last_write_io_size = write_channel.write(write_buffer)
-        if ( last_write_io_size==0 )
-          return ProtocolCodec.BufferState.NOT_EMPTY
-        else
-          write_counter += last_write_io_size
-      } else {
-        if ( write_direct!=null ) {
-          last_write_io_size = write_direct.read(write_direct_pos, write_channel)
-          if ( last_write_io_size==0 )
+    seal_write_buffer
+    while( !write_queue.isEmpty ) {
+      write_queue.peekFirst match {
+        case x:ZeroCopyWrite =>
+          last_write_io_size = x.buffer.read(x.pos, write_channel)
+          if ( last_write_io_size==0 ) {
             return ProtocolCodec.BufferState.NOT_EMPTY
-          else {
-            write_direct_pos += last_write_io_size
-            write_counter += last_write_io_size
-
-            if( write_direct.remaining(write_direct_pos) == 0 ) {
-              write_direct.release
-              write_direct = null
-              write_direct_pos = 0
-              write_buffer = ByteBuffer.wrap(END_OF_FRAME_BUFFER.data)
+          }
+          x.pos += last_write_io_size
+          write_counter += last_write_io_size
+          if( x.buffer.remaining(x.pos) == 0 ) {
+            x.buffer.release
+            write_queue.removeFirst
+            pending_zero_copy_writes -= 1
+          }
+        case _ =>
+          // Write all the buffers up to the next zero copy body in one go.
+          var count = 0
+          val i = write_queue.iterator
+          var done = false
+          while( !done && count < MAX_GATHER && i.hasNext ) {
+            i.next match {
+              case x:ByteBuffer =>
+                gather_buffers(count) = x
+                count += 1
+              case _ =>
+                done = true
             }
           }
-        } else {
-          if( next_write_buffer.size()==0 ) {
-            return ProtocolCodec.BufferState.EMPTY
-          } else {
-            // size of next buffer is based on how much was used in the previous buffer.
-            val prev_size = (write_buffer.position()+512).max(512).min(write_buffer_size)
-            write_buffer = next_write_buffer.toBuffer().toByteBuffer()
-            write_direct = next_write_direct
-
-            next_write_buffer = new DataByteArrayOutputStream(prev_size)
-            next_write_direct = null
+          last_write_io_size = write_channel match {
+            case channel:GatheringByteChannel if count > 1 =>
+              channel.write(gather_buffers, 0, count).toInt
+            case channel =>
+              channel.write(gather_buffers(0))
+          }
+          java.util.Arrays.fill(gather_buffers.asInstanceOf[Array[AnyRef]], 0, count, null)
+          if ( last_write_io_size==0 ) {
+            return ProtocolCodec.BufferState.NOT_EMPTY
+          }
+          write_counter += last_write_io_size
+          write_queue_size -= last_write_io_size
+          while( !write_queue.isEmpty && write_queue.peekFirst.isInstanceOf[ByteBuffer] && write_queue.peekFirst.asInstanceOf[ByteBuffer].remaining == 0 ) {
+            write_queue.removeFirst
           }
-        }
       }
     }
-    ProtocolCodec.BufferState.NOT_EMPTY
+    ProtocolCodec.BufferState.EMPTY
   }
 
 
@@ -433,7 +512,7 @@ class StompCodec extends ProtocolCodec {
     null
   }
 
-  def read_headers(action:AsciiBuffer, headers:HeaderMapBuffer=new HeaderMapBuffer()):FrameReader = (buffer)=> {
+  def read_headers(action:AsciiBuffer, headers:HeaderMapBuffer=new HeaderMapBuffer(), header_table:StompHeaderTable=new StompHeaderTable()):FrameReader = (buffer)=> {
     var rc:StompFrame = null
     val line = read_line(buffer, max_header_length, "The maximum header length was exceeded")
     if( line !=null ) {
@@ -456,7 +535,9 @@ class StompCodec extends ProtocolCodec {
             if( trim ) {
                 value = value.trim()
             }
-            headers.add((ascii(name), ascii(value)))
+            val header = (ascii(name), ascii(value))
+            headers.add(header)
+            header_table.add(header._1, header._2)
         } catch {
             case e:Exception=>
               e.printStackTrace
@@ -464,12 +545,12 @@ class StompCodec extends ProtocolCodec {
         }
 
       } else {
-        val contentLength = get(headers, CONTENT_LENGTH)
-        if (contentLength.isDefined) {
+        val contentLength = header_table.get(CONTENT_LENGTH)
+        if (contentLength!=null) {
           // Bless the client, he's telling us how much data to read in.
           var length=0
           try {
-              length = Integer.parseInt(contentLength.get.trim().toString())
+              length = Integer.parseInt(contentLength.trim().toString())
           } catch {
             case e:NumberFormatException=>
               throw new IOException("Specified content-length is not a valid integer")
@@ -498,13 +579,13 @@ class StompCodec extends ProtocolCodec {
             buffer.position(buffer.position - read_direct_pos)
             read_end = read_start
 
-            next_action = read_binary_body_direct(action, headers, length)
+            next_action = read_binary_body_direct(action, headers, header_table, length)
           } else {
-            next_action = read_binary_body(action, headers, length)
+            next_action = read_binary_body(action, headers, header_table, length)
           }
 
         } else {
-          next_action = read_text_body(action, headers)
+          next_action = read_text_body(action, headers, header_table)
         }
       }
     }
@@ -522,24 +603,30 @@ class StompCodec extends ProtocolCodec {
     None
   }
 
-  def read_binary_body_direct(action:AsciiBuffer, headers:HeaderMapBuffer, contentLength:Int):FrameReader = (buffer)=> {
+  def read_binary_body_direct(action:AsciiBuffer, headers:HeaderMapBuffer, header_table:StompHeaderTable, contentLength:Int):FrameReader = (buffer)=> {
     if( read_direct.remaining(read_direct_pos)==0 ) {
-      next_action = read_direct_terminator(action, headers, contentLength, read_direct)
+      next_action = read_direct_terminator(action, headers, header_table, contentLength, read_direct)
       read_direct = null
       read_direct_pos = 0
     }
     null
   }
 
-  def read_direct_terminator(action:AsciiBuffer, headers:HeaderMapBuffer, contentLength:Int, ma:ZeroCopyBuffer):FrameReader = (buffer)=> {
+  def read_direct_terminator(action:AsciiBuffer, headers:HeaderMapBuffer, header_table:StompHeaderTable, contentLength:Int, ma:ZeroCopyBuffer):FrameReader = (buffer)=> {
     if( read_frame_terminator(buffer, contentLength) ) {
       next_action = read_action
-      new StompFrame(ascii(action), headers.toList, ZeroCopyContent(ma))
+      new_frame(action, headers, header_table, ZeroCopyContent(ma))
     } else {
       null
     }
   }
 
+  def new_frame(action:AsciiBuffer, headers:HeaderMapBuffer, header_table:StompHeaderTable, content:StompContent) = {
+    val rc = new StompFrame(ascii(action), headers.toList, content)
+    rc.header_table = header_table
+    rc
+  }
+
   def read_frame_terminator(buffer:ByteBuffer, contentLength:Int):Boolean = {
       val read_limit = buffer.position
       if( (read_limit-read_start) < 1 ) {
@@ -555,11 +642,11 @@ class StompCodec extends ProtocolCodec {
       }
   }
 
-  def read_binary_body(action:AsciiBuffer, headers:HeaderMapBuffer, contentLength:Int):FrameReader = (buffer)=> {
+  def read_binary_body(action:AsciiBuffer, headers:HeaderMapBuffer, header_table:StompHeaderTable, contentLength:Int):FrameReader = (buffer)=> {
     val content:Buffer=read_content(buffer, contentLength)
     if( content != null ) {
       next_action = read_action
-      new StompFrame(ascii(action), headers.toList, BufferContent(content))
+      new_frame(action, headers, header_table, BufferContent(content))
     } else {
       null
     }
@@ -596,11 +683,11 @@ class StompCodec extends ProtocolCodec {
   }
 
 
-  def read_text_body(action:AsciiBuffer, headers:HeaderMapBuffer):FrameReader = (buffer)=> {
+  def read_text_body(action:AsciiBuffer, headers:HeaderMapBuffer, header_table:StompHeaderTable):FrameReader = (buffer)=> {
     val content:Buffer=read_to_null(buffer)
     if( content != null ) {
       next_action = read_action
-      new StompFrame(ascii(action), headers.toList, BufferContent(content))
+      new_frame(action, headers, header_table, BufferContent(content))
     } else {
       null
     }
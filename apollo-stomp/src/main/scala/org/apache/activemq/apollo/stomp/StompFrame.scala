@@ -65,18 +65,35 @@ case class StompFrameMessage(frame:StompFrame) extends Message {
    */
   var persistent = false
 
-  for( header <- (frame.updated_headers ::: frame.headers).reverse ) {
-    header match {
-      case (MESSAGE_ID, value) =>
-        id = value
-      case (PRIORITY, value) =>
-        priority = java.lang.Integer.parseInt(value).toByte
-      case (EXPIRES, value) =>
-        expiration = java.lang.Long.parseLong(value)
-      case (PERSISTENT, value) =>
-        persistent = java.lang.Boolean.parseBoolean(value)
-      case _ =>
+  /**
+   * The headers of the frame with the updated headers taking precedence.
+   */
+  val header_table = {
+    val rc = if( frame.header_table!=null ) {
+      // the codec indexed the headers while reading them.
+      if( frame.updated_headers.isEmpty ) frame.header_table else frame.header_table.copy
+    } else {
+      StompHeaderTable(frame.headers)
     }
+    frame.updated_headers.reverse.foreach { case (name, value) => rc.put(name, value) }
+    rc
+  }
+
+  header_table.get(MESSAGE_ID) match {
+    case null =>
+    case value => id = value
+  }
+  header_table.get(PRIORITY) match {
+    case null =>
+    case value => priority = java.lang.Integer.parseInt(value).toByte
+  }
+  header_table.get(EXPIRES) match {
+    case null =>
+    case value => expiration = java.lang.Long.parseLong(value)
+  }
+  header_table.get(PERSISTENT) match {
+    case null =>
+    case value => persistent = java.lang.Boolean.parseBoolean(value)
   }
 
   def getBodyAs[T](toType : Class[T]) = {
@@ -116,27 +133,31 @@ case class StompFrameMessage(frame:StompFrame) extends Message {
     id.slice(id.offset, pos).toString
   }
 
-  /* avoid paying the price of creating the header index. lots of times we don't need it */
-  lazy val headerIndex: Map[AsciiBuffer, AsciiBuffer] =  {
-    var rc = Map[AsciiBuffer, AsciiBuffer]()
-    for( header <- (frame.updated_headers ::: frame.headers).reverse ) {
-      rc += (header._1 -> header._2)
+  override def destination = header_table.get(DESTINATION) match {
+    case null => null
+    case x => destination_parser.decode_destination(x.toString)
+  }
+
+  override def properties = {
+    (frame.updated_headers ::: frame.headers).filterNot(x=> RESERVED_HEADERS.contains(x._1)).map { x=>
+      (x._1.utf8.toString, x._2.utf8.toString)
     }
-    rc
+  }
+
+  override def is_text_body = header_table.get(CONTENT_TYPE) match {
+    case null => header_table.get(CONTENT_LENGTH)==null
+    case x => x.toString.startsWith("text/")
   }
 
   def getProperty(name: String):AnyRef = {
-    (name match {
+    name match {
       // TODO: handle more of the JMS Types that ActiveMQ 5 supports.
       case "JMSMessageID" =>
-        Some(id)
+        if( id==null ) null else id.utf8.toString
       case "JMSType" =>
-        headerIndex.get(ascii("type"))
+        header_table.decoded("type")
       case _=>
-        headerIndex.get(ascii(name))
-    }) match {
-      case Some(rc) => rc.utf8.toString
-      case None => null
+        header_table.decoded(name)
     }
   }
 
@@ -156,6 +177,184 @@ object StompFrame extends Sizer[StompFrame] {
   def size(value:StompFrame) = value.size
 }
 
+object StompHeaderTable {
+
+  /**
+   * Encodes the headers the way they are written in a frame so that
+   * they can be used as a StompFrame.header_template.
+   */
+  def encode_template(headers:HeaderMap):Buffer = {
+    val os = new DataByteArrayOutputStream
+    headers.foreach { case (name, value) =>
+      os.write(name.data, name.offset, name.length)
+      os.write(COLON)
+      os.write(value.data, value.offset, value.length)
+      os.write(NEWLINE)
+    }
+    os.toBuffer
+  }
+
+  def apply(headers:HeaderMap) = {
+    val rc = new StompHeaderTable()
+    headers.foreach { case (name, value) => rc.add(name, value) }
+    rc
+  }
+
+  private def hash(name:AsciiBuffer) = {
+    var rc = 0
+    var i = name.offset
+    val end = name.offset + name.length
+    while( i < end ) {
+      rc = 31 * rc + (name.data(i) & 0xFF)
+      i += 1
+    }
+    rc
+  }
+
+  // Hashes the name the same way as the AsciiBuffer created from it.
+  private def hash(name:String) = {
+    var rc = 0
+    var i = 0
+    while( i < name.length ) {
+      rc = 31 * rc + (name.charAt(i).toByte & 0xFF)
+      i += 1
+    }
+    rc
+  }
+
+  private def same(key:AsciiBuffer, name:String):Boolean = {
+    if( key.length != name.length ) {
+      return false
+    }
+    var i = 0
+    while( i < name.length ) {
+      if( key.data(key.offset + i) != name.charAt(i).toByte ) {
+        return false
+      }
+      i += 1
+    }
+    true
+  }
+}
+
+/**
+ * <p>
+ * An open addressed hash table of the headers of a frame.  Like the STOMP
+ * spec requires, the first header added for a name is the one that is used.
+ * </p>
+ * <p>
+ * Lookups by String name and the decoded values are done without allocating,
+ * which keeps selector evaluation cheap.  The table must be fully built
+ * before it's shared with other threads, after that only the cache of
+ * decoded values gets updated which is safe since Strings are immutable.
+ * </p>
+ */
+class StompHeaderTable(initial_capacity:Int=16) {
+  import StompHeaderTable._
+
+  assert( Integer.bitCount(initial_capacity)==1, "the capacity must be a power of 2")
+
+  private var names = new Array[AsciiBuffer](initial_capacity)
+  private var values = new Array[AsciiBuffer](initial_capacity)
+  private var decoded_values = new Array[String](initial_capacity)
+  private var count = 0
+
+  def size = count
+
+  private def mask = names.length - 1
+
+  private def slot(name:AsciiBuffer) = {
+    var i = hash(name) & mask
+    while( names(i)!=null && names(i)!=name ) {
+      i = (i + 1) & mask
+    }
+    i
+  }
+
+  private def slot(name:String) = {
+    var i = hash(name) & mask
+    while( names(i)!=null && !same(names(i), name) ) {
+      i = (i + 1) & mask
+    }
+    i
+  }
+
+  /**
+   * Adds the header unless a header with the same name was already added.
+   */
+  def add(name:AsciiBuffer, value:AsciiBuffer):Unit = {
+    val i = slot(name)
+    if( names(i)==null ) {
+      set(i, name, value)
+    }
+  }
+
+  /**
+   * Adds the header replacing any previous header with the same name.
+   */
+  def put(name:AsciiBuffer, value:AsciiBuffer):Unit = {
+    set(slot(name), name, value)
+  }
+
+  private def set(i:Int, name:AsciiBuffer, value:AsciiBuffer) = {
+    if( names(i)==null ) {
+      count += 1
+    }
+    names(i) = name
+    values(i) = value
+    decoded_values(i) = null
+    // keep the table at most half full.
+    if( count*2 > names.length ) {
+      resize(names.length*2)
+    }
+  }
+
+  private def resize(capacity:Int) = {
+    val old_names = names
+    val old_values = values
+    val old_decoded_values = decoded_values
+    names = new Array[AsciiBuffer](capacity)
+    values = new Array[AsciiBuffer](capacity)
+    decoded_values = new Array[String](capacity)
+    var i = 0
+    while( i < old_names.length ) {
+      if( old_names(i)!=null ) {
+        val j = slot(old_names(i))
+        names(j) = old_names(i)
+        values(j) = old_values(i)
+        decoded_values(j) = old_decoded_values(i)
+      }
+      i += 1
+    }
+  }
+
+  def get(name:AsciiBuffer):AsciiBuffer = values(slot(name))
+
+  def get(name:String):AsciiBuffer = values(slot(name))
+
+  /**
+   * The UTF-8 decoded value of the header or null if the header is not set.
+   */
+  def decoded(name:String):String = {
+    val i = slot(name)
+    var rc = decoded_values(i)
+    if( rc==null && values(i)!=null ) {
+      rc = values(i).utf8.toString
+      decoded_values(i) = rc
+    }
+    rc
+  }
+
+  def copy = {
+    val rc = new StompHeaderTable(names.length)
+    System.arraycopy(names, 0, rc.names, 0, names.length)
+    System.arraycopy(values, 0, rc.values, 0, names.length)
+    System.arraycopy(decoded_values, 0, rc.decoded_values, 0, names.length)
+    rc.count = count
+    rc
+  }
+}
+
 /**
  * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
  */
@@ -229,8 +428,40 @@ case class ZeroCopyContent(zero_copy_buffer:ZeroCopyBuffer) extends StompContent
  */
 case class StompFrame(action:AsciiBuffer, headers:HeaderMap=Nil, content:StompContent=NilContent, updated_headers:HeaderMap=Nil) {
 
+  /**
+   * An index of the headers (not the updated_headers) which the
+   * codec builds while reading the frame, null if the frame was not read.
+   */
+  var header_table:StompHeaderTable = null
+
+  /**
+   * Pre-encoded header lines which get written before the updated_headers,
+   * null if there are none.  Used for the headers which are the same on
+   * all the messages sent to a subscription.
+   */
+  var header_template:Buffer = null
+
+  /**
+   * Creates a frame with the same headers which shares the header_table.
+   */
+  def with_headers(action:AsciiBuffer, content:StompContent, updated_headers:HeaderMap=Nil) = {
+    val rc = StompFrame(action, headers, content, updated_headers)
+    rc.header_table = header_table
+    rc.header_template = header_template
+    rc
+  }
+
+  /**
+   * Creates a copy of the frame which gets the template's header lines written first.
+   */
+  def with_header_template(template:Buffer) = {
+    val rc = with_headers(action, content, updated_headers)
+    rc.header_template = template
+    rc
+  }
+
   def size_of_updated_headers = {
-    size_of(updated_headers)
+    size_of(updated_headers) + (if( header_template==null ) 0 else header_template.length)
   }
 
   def size_of_original_headers = {
@@ -267,7 +498,7 @@ case class StompFrame(action:AsciiBuffer, headers:HeaderMap=Nil, content:StompCo
   def size:Int = {
      content match {
        case x:BufferContent =>
-         if( (action.data eq x.content.data) && updated_headers==Nil ) {
+         if( (action.data eq x.content.data) && updated_headers==Nil && header_template==null ) {
             return (x.content.offset-action.offset)+x.content.length
          }
        case _ =>
@@ -284,7 +515,7 @@ case class StompFrame(action:AsciiBuffer, headers:HeaderMap=Nil, content:StompCo
     ).map(_._2).getOrElse(null)
   }
 
-  def append_headers(value:HeaderMap) = StompFrame(action, headers, content, value ::: updated_headers)
+  def append_headers(value:HeaderMap) = with_headers(action, content, value ::: updated_headers)
 
   def retain = content.retain
   def release = content.release
@@ -328,6 +559,22 @@ object Stomp {
   val COLON_ESCAPE_SEQ = ascii("""\c""")
   val NEWLINE_ESCAPE_SEQ = ascii("""\n""")
 
+  /**
+   * Encodes a header name or value escaping the characters which
+   * STOMP 1.1 does not allow in headers.
+   */
+  def encode_header(value:String):AsciiBuffer = {
+    val data = value.getBytes("UTF-8")
+    var rc = new ByteArrayOutputStream(data.length)
+    data.foreach {
+      case ESCAPE  => rc.write(ESCAPE_ESCAPE_SEQ)
+      case COLON   => rc.write(COLON_ESCAPE_SEQ)
+      case NEWLINE => rc.write(NEWLINE_ESCAPE_SEQ)
+      case c       => rc.write(c)
+    }
+    rc.toBuffer.ascii
+  }
+
 
   ///////////////////////////////////////////////////////////////////
   // Frame Commands
@@ -431,6 +678,10 @@ object Stomp {
 
   val TEXT_PLAIN = ascii("text/plain")
 
+  // headers which are not carried over as properties when messages get converted to other protocols.
+  val RESERVED_HEADERS = Set(DESTINATION, MESSAGE_ID, PRIORITY, EXPIRES, PERSISTENT, SUBSCRIPTION,
+    CONTENT_LENGTH, CONTENT_TYPE, RECEIPT_REQUESTED, TRANSACTION, REDELIVERED, ACK_MODE)
+
 
   //	public enum Transformations {
   //		JMS_BYTE, JMS_OBJECT_XML, JMS_OBJECT_JSON, JMS_MAP_XML, JMS_MAP_JSON
@@ -17,6 +17,7 @@
 package org.apache.activemq.apollo.stomp
 
 import _root_.org.fusesource.hawtbuf._
+import Buffer._
 import org.apache.activemq.apollo.broker._
 import java.lang.String
 import protocol.{ProtocolFactory, Protocol}
@@ -78,6 +79,40 @@ object StompProtocol extends StompProtocolCodecFactory with Protocol {
     StompCodec.decode(message)
   }
 
+  override def convert(message: Message):Message = {
+    val body = message.getBodyAs(classOf[Buffer])
+    if( body==null ) {
+      return null
+    }
+
+    var headers:HeaderMap = Nil
+    val destination = message.destination
+    if( destination!=null ) {
+      headers ::= (DESTINATION, ascii(destination_parser.encode_destination(destination)))
+    }
+    headers ::= (MESSAGE_ID, message.id)
+    if( message.priority != 4 ) {
+      headers ::= (PRIORITY, ascii(message.priority.toString))
+    }
+    if( message.expiration != 0 ) {
+      headers ::= (EXPIRES, ascii(message.expiration.toString))
+    }
+    if( message.persistent ) {
+      headers ::= (PERSISTENT, TRUE)
+    }
+    if( !message.is_text_body ) {
+      headers ::= (CONTENT_LENGTH, ascii(body.length.toString))
+    }
+    message.properties.foreach { case (name, value) =>
+      val header = encode_header(name)
+      // don't let a property override the headers set above.
+      if( !RESERVED_HEADERS.contains(header) ) {
+        headers ::= (header, encode_header(value))
+      }
+    }
+    StompFrameMessage(StompFrame(MESSAGE, headers.reverse, BufferContent(body)))
+  }
+
 }
 
 
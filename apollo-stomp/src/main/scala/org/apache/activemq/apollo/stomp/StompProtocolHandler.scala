@@ -23,7 +23,7 @@ import org.fusesource.hawtdispatch._
 import org.apache.activemq.apollo.broker._
 import Buffer._
 import java.lang.String
-import protocol.{ProtocolFilter, HeartBeatMonitor, ProtocolHandler}
+import protocol.{ProducerRouteCache, ProtocolFilter, HeartBeatMonitor, ProtocolHandler}
 import security.SecurityContext
 import Stomp._
 import org.apache.activemq.apollo.selector.SelectorParser
@@ -31,7 +31,6 @@ import org.apache.activemq.apollo.filter.{BooleanExpression, FilterException}
 import org.apache.activemq.apollo.broker.store._
 import org.apache.activemq.apollo.util._
 import java.util.concurrent.TimeUnit
-import java.util.Map.Entry
 import path.PathParser
 import scala.util.continuations._
 import org.apache.activemq.apollo.dto._
@@ -106,22 +105,35 @@ class StompProtocolHandler extends ProtocolHandler {
     new String(rc.toByteArray, "UTF-8")
   }
 
+  def conversions = connection.connector.conversions
+
   def encode_header(value:String) = {
     protocol_version match {
       case null => utf8(value).ascii
       case V1_0 => utf8(value).ascii
-      case _ =>
-
-        val data = value.getBytes("UTF-8")
-        var rc = new ByteArrayOutputStream(data.length)
-        data.foreach {
-          case ESCAPE  => rc.write(ESCAPE_ESCAPE_SEQ)
-          case COLON   => rc.write(COLON_ESCAPE_SEQ)
-          case NEWLINE => rc.write(COLON_ESCAPE_SEQ)
-          case c       => rc.write(c)
+      case _ => Stomp.encode_header(value)
+    }
+  }
 
+  /**
+   * Messages converted from other protocols are shared by all the STOMP
+   * consumers and have their properties escaped with the STOMP 1.1 rules.
+   * STOMP 1.0 consumers get a copy of the frame with the properties unescaped.
+   */
+  def converted_for_version(frame:StompFrame) = {
+    def escaped(header:(AsciiBuffer, AsciiBuffer)) = {
+      !RESERVED_HEADERS.contains(header._1) && (header._1.indexOf(ESCAPE) >= 0 || header._2.indexOf(ESCAPE) >= 0)
+    }
+    if( (protocol_version!=null && protocol_version!=V1_0) || !frame.headers.exists(escaped _) ) {
+      frame
+    } else {
+      frame.copy(headers=frame.headers.map { header =>
+        if( escaped(header) ) {
+          (encode_header(decode_header(header._1)), encode_header(decode_header(header._2)))
+        } else {
+          header
         }
-        rc.toBuffer.ascii
+      })
     }
   }
 
@@ -329,14 +341,24 @@ class StompProtocolHandler extends ProtocolHandler {
         die("Unsuported ack mode: "+ack);
     }
 
+    // The subscription header is the same on all the messages so it only gets encoded once.
+    val header_template = subscription_id.map(id => StompHeaderTable.encode_template((SUBSCRIPTION, id)::Nil)).getOrElse(null)
+
     val consumer_sink = sink_manager.open()
     val credit_window_filter = new CreditWindowFilter[Delivery](consumer_sink.map { delivery =>
       ack_handler.track(delivery)
-      var frame = delivery.message.asInstanceOf[StompFrameMessage].frame
-      if( subscription_id != None ) {
-        frame = frame.append_headers((SUBSCRIPTION, subscription_id.get)::Nil)
+      if( delivery.trace!=null ) {
+        delivery.trace.stamp(DeliveryTrace.TRANSPORT)
+      }
+      var frame = delivery.message.convert_to(StompProtocol, conversions).asInstanceOf[StompFrameMessage].frame
+      if( delivery.message.protocol ne StompProtocol ) {
+        frame = converted_for_version(frame)
+      }
+      if( header_template!=null ) {
+        frame.with_header_template(header_template)
+      } else {
+        frame
       }
-      frame
     }, Delivery)
 
     credit_window_filter.credit(initial_credit_window._1, initial_credit_window._2)
@@ -355,10 +377,17 @@ class StompProtocolHandler extends ProtocolHandler {
 
     def is_persistent = false
 
+    override def message_selector = if( selector!=null ) selector._2 else null
+    override def selector_protocol = StompProtocol
+
+    // messages of other protocols get converted.
+    override def selector_view(delivery:Delivery) = delivery.message.convert_to(StompProtocol, conversions)
+
     def matches(delivery:Delivery) = {
-      if( delivery.message.protocol eq StompProtocol ) {
+      val message = selector_view(delivery)
+      if( message!=null ) {
         if( selector!=null ) {
-          selector._2.matches(delivery.message)
+          selector._2.matches(message)
         } else {
           true
         }
@@ -457,9 +486,10 @@ class StompProtocolHandler extends ProtocolHandler {
   var closed = false
   var consumers = Map[AsciiBuffer, StompConsumer]()
 
-  var producerRoutes = new LRUCache[List[DestinationDTO], DeliveryProducerRoute](10) {
-    override def onCacheEviction(eldest: Entry[List[DestinationDTO], DeliveryProducerRoute]) = {
-      host.router.disconnect(eldest.getKey.toArray, eldest.getValue)
+  val producerRoutes = new ProducerRouteCache {
+    def dispatch_queue = StompProtocolHandler.this.queue
+    def evicted(key:List[DestinationDTO], route:DeliveryProducerRoute) = {
+      host.router.disconnect(key.toArray, route)
     }
   }
 
@@ -505,6 +535,8 @@ class StompProtocolHandler extends ProtocolHandler {
     config.max_data_length.foreach( codec.max_data_length = _ )
     config.max_header_length.foreach( codec.max_header_length = _ )
     config.max_headers.foreach( codec.max_headers = _ )
+    config.route_cache_size.foreach( producerRoutes.max_size = _ )
+    config.route_idle_timeout.foreach( producerRoutes.idle_timeout = _ )
 
     if( config.queue_prefix!=null ||
         config.topic_prefix!=null ||
@@ -536,6 +568,10 @@ class StompProtocolHandler extends ProtocolHandler {
     rc.user = security_context.user
     rc.subscription_count = consumers.size
     rc.waiting_on = waiting_on
+    rc.route_cache_size = producerRoutes.size
+    rc.route_cache_hits = producerRoutes.hits
+    rc.route_cache_misses = producerRoutes.misses
+    rc.route_cache_evictions = producerRoutes.evictions
     rc
   }
 
@@ -950,9 +986,9 @@ class StompProtocolHandler extends ProtocolHandler {
       // We may need to add some headers..
       var message = updated_headers(frame.headers) match {
         case Nil=>
-          StompFrameMessage(StompFrame(MESSAGE, frame.headers, frame.content))
+          StompFrameMessage(frame.with_headers(MESSAGE, frame.content))
         case updated_headers =>
-          StompFrameMessage(StompFrame(MESSAGE, frame.headers, frame.content, updated_headers))
+          StompFrameMessage(frame.with_headers(MESSAGE, frame.content, updated_headers))
       }
 
       val delivery = new Delivery
@@ -1038,7 +1074,7 @@ class StompProtocolHandler extends ProtocolHandler {
       case Some(x)=> x
         try {
           val s = decode_header(x)
-          (s, SelectorParser.parse(s))
+          (s, SelectorParser.compile(s))
         } catch {
           case e:FilterException =>
             die("Invalid selector expression: "+e.getMessage)
@@ -33,4 +33,28 @@ import javax.xml.bind.annotation.XmlRootElement;
 @XmlAccessorType(XmlAccessType.FIELD)
 public class StompConnectionStatusDTO extends ConnectionStatusDTO {
 
+    /**
+     * The number of producer routes cached by the connection.
+     */
+    @XmlAttribute(name="route_cache_size")
+    public int route_cache_size;
+
+    /**
+     * The number of messages sent over a cached producer route.
+     */
+    @XmlAttribute(name="route_cache_hits")
+    public long route_cache_hits;
+
+    /**
+     * The number of messages which needed a new producer route.
+     */
+    @XmlAttribute(name="route_cache_misses")
+    public long route_cache_misses;
+
+    /**
+     * The number of producer routes evicted from the cache.
+     */
+    @XmlAttribute(name="route_cache_evictions")
+    public long route_cache_evictions;
+
 }
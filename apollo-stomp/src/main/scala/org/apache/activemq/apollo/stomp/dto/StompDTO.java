@@ -80,6 +80,19 @@ public class StompDTO extends ProtocolDTO {
     @XmlAttribute(name="regex_wildcard_end")
     public String regex_wildcard_end;
 
+    /**
+     * The maximum number of producer routes a connection caches.
+     */
+    @XmlAttribute(name="route_cache_size")
+    public Integer route_cache_size;
+
+    /**
+     * How long in milliseconds a cached producer route can stay
+     * unused before it's evicted.
+     */
+    @XmlAttribute(name="route_idle_timeout")
+    public Long route_idle_timeout;
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -114,6 +127,10 @@ public class StompDTO extends ProtocolDTO {
             return false;
         if (regex_wildcard_start != null ? !regex_wildcard_start.equals(stompDTO.regex_wildcard_start) : stompDTO.regex_wildcard_start != null)
             return false;
+        if (route_cache_size != null ? !route_cache_size.equals(stompDTO.route_cache_size) : stompDTO.route_cache_size != null)
+            return false;
+        if (route_idle_timeout != null ? !route_idle_timeout.equals(stompDTO.route_idle_timeout) : stompDTO.route_idle_timeout != null)
+            return false;
         if (topic_prefix != null ? !topic_prefix.equals(stompDTO.topic_prefix) : stompDTO.topic_prefix != null)
             return false;
 
@@ -137,6 +154,8 @@ public class StompDTO extends ProtocolDTO {
         result = 31 * result + (any_descendant_wildcard != null ? any_descendant_wildcard.hashCode() : 0);
         result = 31 * result + (regex_wildcard_start != null ? regex_wildcard_start.hashCode() : 0);
         result = 31 * result + (regex_wildcard_end != null ? regex_wildcard_end.hashCode() : 0);
+        result = 31 * result + (route_cache_size != null ? route_cache_size.hashCode() : 0);
+        result = 31 * result + (route_idle_timeout != null ? route_idle_timeout.hashCode() : 0);
         return result;
     }
 }
@@ -0,0 +1,114 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.stomp
+
+import org.scalatest.matchers.ShouldMatchers
+import org.apache.activemq.apollo.util.FunSuiteSupport
+import org.apache.activemq.apollo.transport.ProtocolCodec
+import java.nio.ByteBuffer
+import java.nio.channels.GatheringByteChannel
+import org.fusesource.hawtbuf.{Buffer, DataByteArrayOutputStream}
+import org.fusesource.hawtbuf.Buffer._
+import Stomp._
+
+class StompCodecTest extends FunSuiteSupport with ShouldMatchers {
+
+  /**
+   * Accepts at most chunk_size bytes per write call, like a
+   * socket with a small send buffer.
+   */
+  class ChunkedChannel(chunk_size:Int) extends GatheringByteChannel {
+    val out = new DataByteArrayOutputStream
+    var writes = 0
+
+    def write(src: ByteBuffer):Int = write(Array(src), 0, 1).toInt
+
+    def write(srcs: Array[ByteBuffer]):Long = write(srcs, 0, srcs.length)
+
+    def write(srcs: Array[ByteBuffer], offset: Int, length: Int):Long = {
+      writes += 1
+      var rc = 0
+      var i = offset
+      while( i < offset+length && rc < chunk_size ) {
+        val src = srcs(i)
+        val count = src.remaining.min(chunk_size - rc)
+        val data = new Array[Byte](count)
+        src.get(data)
+        out.write(data)
+        rc += count
+        i += 1
+      }
+      rc
+    }
+
+    def isOpen = true
+    def close = {}
+  }
+
+  def frame(i:Int, body_size:Int) = {
+    val body = new Buffer(Array.fill[Byte](body_size)(('a' + (i % 26)).toByte))
+    StompFrame(MESSAGE, List(MESSAGE_ID->ascii("id:"+i), DESTINATION->ascii("/queue/test")), BufferContent(body))
+  }
+
+  def expected(frames:Seq[StompFrame]) = {
+    val out = new DataByteArrayOutputStream
+    def write(buffer:Buffer) = out.write(buffer.data, buffer.offset, buffer.length)
+    frames.foreach { frame =>
+      write(frame.action)
+      out.write(NEWLINE)
+      frame.headers.foreach { case (name, value) =>
+        write(name)
+        out.write(COLON)
+        write(value)
+        out.write(NEWLINE)
+      }
+      out.write(NEWLINE)
+      write(frame.content.asInstanceOf[BufferContent].content)
+      write(END_OF_FRAME_BUFFER)
+    }
+    out.toBuffer
+  }
+
+  def write_all(frames:Seq[StompFrame], channel:ChunkedChannel) = {
+    val codec = new StompCodec
+    codec.setWritableByteChannel(channel)
+    frames.foreach { frame =>
+      while( codec.write(frame) == ProtocolCodec.BufferState.FULL ) {
+        codec.flush
+      }
+    }
+    while( codec.flush != ProtocolCodec.BufferState.EMPTY ) {}
+    codec
+  }
+
+  test("small and large frames are written in order") {
+    val frames = (0 until 50).map(i => frame(i, if( i%5==0 ) 10*1024 else 100))
+    val channel = new ChunkedChannel(1000)
+    val codec = write_all(frames, channel)
+    channel.out.toBuffer should be(expected(frames))
+    codec.getWriteCounter should be(channel.out.size)
+  }
+
+  test("many small frames share a write") {
+    val frames = (0 until 100).map(i => frame(i, 10))
+    val channel = new ChunkedChannel(1024*1024)
+    write_all(frames, channel)
+    channel.out.toBuffer should be(expected(frames))
+    channel.writes should be(1)
+  }
+
+}
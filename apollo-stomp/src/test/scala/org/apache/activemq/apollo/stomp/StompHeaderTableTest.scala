@@ -0,0 +1,65 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.stomp
+
+import org.scalatest.matchers.ShouldMatchers
+import org.apache.activemq.apollo.util.FunSuiteSupport
+import org.fusesource.hawtbuf.AsciiBuffer
+import org.fusesource.hawtbuf.Buffer._
+import Stomp._
+
+class StompHeaderTableTest extends FunSuiteSupport with ShouldMatchers {
+
+  test("the first header added for a name is used") {
+    val table = StompHeaderTable(List(ascii("color")->ascii("red"), ascii("color")->ascii("blue")))
+    table.size should be(1)
+    table.get(ascii("color")) should be(ascii("red"))
+    table.decoded("color") should be("red")
+    table.put(ascii("color"), ascii("green"))
+    table.decoded("color") should be("green")
+  }
+
+  test("the table grows") {
+    val table = new StompHeaderTable(2)
+    for( i <- 0 until 100 ) {
+      table.add(ascii("header-"+i), ascii("value-"+i))
+    }
+    table.size should be(100)
+    for( i <- 0 until 100 ) {
+      table.get(ascii("header-"+i)) should be(ascii("value-"+i))
+      table.decoded("header-"+i) should be("value-"+i)
+    }
+    table.get("missing") should be(null)
+    table.decoded("missing") should be(null)
+  }
+
+  test("names are matched against slices of the frame") {
+    val line = new AsciiBuffer("xxtype:foo")
+    val table = new StompHeaderTable()
+    table.add(line.slice(2, 6).ascii, line.slice(7, 10).ascii)
+    table.decoded("type") should be("foo")
+  }
+
+  test("messages see the updated headers first") {
+    val frame = StompFrame(MESSAGE, List(ascii("type")->ascii("a"), MESSAGE_ID->ascii("id:1")), NilContent, List(ascii("type")->ascii("b")))
+    val message = StompFrameMessage(frame)
+    message.getProperty("JMSType") should be("b")
+    message.getProperty("JMSMessageID") should be("id:1")
+    message.getProperty("missing") should be(null)
+  }
+
+}
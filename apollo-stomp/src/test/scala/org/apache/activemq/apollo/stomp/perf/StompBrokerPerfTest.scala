@@ -18,6 +18,7 @@ package org.apache.activemq.apollo.stomp.perf
 
 import _root_.org.apache.activemq.apollo.broker.perf._
 import java.io.File
+import java.net.URL
 import org.apache.activemq.apollo.dto.BrokerDTO
 import org.apache.activemq.apollo.broker.store.bdb.dto.BDBStoreDTO
 
@@ -33,6 +34,41 @@ class DeepQueueBDBTest extends BasicScenarios with LargeInitialDB with BDBScenar
   override def description = "Using the STOMP protocol over TCP persisting to the BerkleyDB store that contains 1M messages in a queue."
 }
 
+/**
+ * Measures how many MESSAGE frames per second the broker sends to
+ * the subscriptions of a topic, overall and per core.
+ */
+class TopicFanoutTest extends BrokerPerfSupport with StompScenario {
+  override def description = "Using the STOMP protocol over TCP to fan out small messages to many topic subscriptions"
+
+  def reportResourceTemplate():URL = { classOf[BasicScenarios].getResource("report.html") }
+
+  test("topic 20b 1->1->10 outbound frames") {
+    PTP = false
+    MESSAGE_SIZE = 20
+    producerCount = 1
+    destCount = 1
+    consumerCount = 10
+
+    createConnections()
+    startClients()
+    try {
+      reportRates()
+
+      // sample one more period to get the outbound frame rate.
+      totalConsumerRate.reset()
+      val start = System.nanoTime
+      Thread.sleep(SAMPLE_PERIOD)
+      val frames = totalConsumerRate.reset()
+      val rate = frames * 1000000000.0 / (System.nanoTime - start)
+      val cores = Runtime.getRuntime.availableProcessors
+      println("outbound frames/sec: %,.0f, per core: %,.0f".format(rate, rate / cores))
+    } finally {
+      stopServices()
+    }
+  }
+}
+
 trait StompScenario extends BrokerPerfSupport {
   override def createProducer() = new StompRemoteProducer()
 
@@ -0,0 +1,101 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.util
+
+object HistogramCounter {
+  val BUCKETS = 64
+
+  /**
+   * The index of the bucket which counts the value.  Bucket 0 counts the
+   * values below 1 and bucket i counts the values in [2^(i-1), 2^i).
+   */
+  def bucket(value:Long) = if( value < 1 ) 0 else 64 - java.lang.Long.numberOfLeadingZeros(value)
+}
+
+/**
+ * <p>Produces a Histogram which counts values in power of two buckets.</p>
+ */
+class HistogramCounter extends MetricProducer[Histogram] {
+  import HistogramCounter._
+
+  private val histogram = new LogHistogram
+
+  def apply(reset: Boolean):Histogram = {
+    val h = histogram
+    val rc = if(h.count==0) {
+      Histogram(0, 0, 0, 0, new Array[Long](0))
+    } else {
+      val counts = new Array[Long](bucket(h.max)+1)
+      var i = 0
+      while( i < LogHistogram.BUCKETS ) {
+        val count = h(i)
+        if( count!=0 ) {
+          counts(bucket(LogHistogram.upper_bound(i))) += count
+        }
+        i += 1
+      }
+      Histogram(h.count, h.total, h.min, h.max, counts, h.p50, h.p99, h.p999)
+    }
+    if (reset) {
+      clear()
+    }
+    rc
+  }
+
+  def clear() = histogram.clear()
+
+  /**
+   * Adds the values counted by another counter.
+   */
+  def merge(other:HistogramCounter) = histogram.merge(other.histogram)
+
+  def +=(value: Long): Unit = histogram += value
+
+}
+
+/**
+ * @param buckets the counts of the power of two buckets, trailing empty buckets are dropped.
+ * @param p50 the 50th percentile of the values
+ * @param p99 the 99th percentile of the values
+ * @param p999 the 99.9th percentile of the values
+ */
+case class Histogram(count:Long, total:Long, min:Long, max:Long, buckets:Array[Long], p50:Long=0, p99:Long=0, p999:Long=0) {
+
+  def avg = if( count==0 ) 0f else total.toFloat / count
+
+  /**
+   * An upper bound of the value at the percentile (0 to 1.0).  Only as precise as
+   * the bucket which holds it.
+   */
+  def percentile(p:Double):Long = {
+    if( count==0 ) {
+      0
+    } else {
+      val target = math.ceil(count * p).toLong.max(1)
+      var seen = 0L
+      var i = 0
+      while( i < buckets.length ) {
+        seen += buckets(i)
+        if( seen >= target ) {
+          return if( i==0 ) 0L else ((1L << i) - 1).min(max)
+        }
+        i += 1
+      }
+      max
+    }
+  }
+}
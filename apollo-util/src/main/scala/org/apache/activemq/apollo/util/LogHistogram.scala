@@ -0,0 +1,141 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.util
+
+object LogHistogram {
+
+  /**
+   * Every power of two range is split into 2^SUB_BUCKET_BITS linear
+   * sub buckets so the percentiles are within 1/8 of the recorded values.
+   */
+  val SUB_BUCKET_BITS = 3
+  val SUB_BUCKETS = 1 << SUB_BUCKET_BITS
+  val BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS
+
+  /**
+   * The index of the bucket which counts the value.  The values below
+   * SUB_BUCKETS get a bucket each, negative values are counted as 0.
+   */
+  def bucket(value:Long):Int = {
+    if( value < SUB_BUCKETS ) {
+      if( value < 0 ) 0 else value.toInt
+    } else {
+      val shift = 63 - java.lang.Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS
+      ((shift + 1) << SUB_BUCKET_BITS) + ((value >>> shift).toInt & (SUB_BUCKETS - 1))
+    }
+  }
+
+  /**
+   * The largest value counted by the bucket.
+   */
+  def upper_bound(bucket:Int):Long = {
+    if( bucket < SUB_BUCKETS ) {
+      bucket
+    } else {
+      val shift = (bucket >>> SUB_BUCKET_BITS) - 1
+      val sub_bucket = bucket & (SUB_BUCKETS - 1)
+      // wraps around to Long.MaxValue for the last bucket.
+      ((SUB_BUCKETS + sub_bucket + 1).toLong << shift) - 1
+    }
+  }
+}
+
+/**
+ * <p>
+ * Records values into log bucketed counts so that the percentiles of
+ * the recorded values can be estimated.  Recording a value does not
+ * allocate, the counts are allocated once when the histogram is created.
+ * </p>
+ * <p>
+ * The histogram is not thread safe.  Threads which record concurrently
+ * should use a histogram each and merge them when the values are reported.
+ * </p>
+ */
+class LogHistogram {
+  import LogHistogram._
+
+  private val counts = new Array[Long](BUCKETS)
+  var count = 0L
+  var total = 0L
+  var min = Long.MaxValue
+  var max = Long.MinValue
+
+  def +=(value:Long):Unit = {
+    counts(bucket(value)) += 1
+    count += 1
+    total += value
+    min = value min min
+    max = value max max
+  }
+
+  /**
+   * Adds the values recorded by the other histogram to this one.
+   */
+  def merge(other:LogHistogram):Unit = {
+    if( other.count > 0 ) {
+      var i = 0
+      while( i < BUCKETS ) {
+        counts(i) += other.counts(i)
+        i += 1
+      }
+      count += other.count
+      total += other.total
+      min = other.min min min
+      max = other.max max max
+    }
+  }
+
+  def clear():Unit = {
+    java.util.Arrays.fill(counts, 0L)
+    count = 0
+    total = 0
+    min = Long.MaxValue
+    max = Long.MinValue
+  }
+
+  /**
+   * An estimate of the value at the percentile (0 to 1.0) which is no
+   * smaller than the actual value.  Returns 0 if no values were recorded.
+   */
+  def percentile(p:Double):Long = {
+    if( count==0 ) {
+      0
+    } else {
+      val target = math.ceil(count * p).toLong.max(1)
+      var seen = 0L
+      var i = 0
+      while( i < BUCKETS ) {
+        seen += counts(i)
+        if( seen >= target ) {
+          return upper_bound(i).min(max).max(min)
+        }
+        i += 1
+      }
+      max
+    }
+  }
+
+  def p50 = percentile(0.50)
+  def p99 = percentile(0.99)
+  def p999 = percentile(0.999)
+
+  /**
+   * The number of values counted in the bucket.
+   */
+  def apply(bucket:Int) = counts(bucket)
+
+}
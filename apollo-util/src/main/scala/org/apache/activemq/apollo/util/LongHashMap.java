@@ -0,0 +1,159 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.util;
+
+/**
+ * <p>
+ * A hash map keyed by primitive longs.  It uses open addressing
+ * with linear probing so that puts, gets and removes don't
+ * allocate any entry or boxed key objects.
+ * </p>
+ * <p>
+ * Null values are not supported.  This class is not thread safe.
+ * </p>
+ */
+public class LongHashMap<V> {
+
+    private long keys[];
+    private Object values[];
+    private int mask;
+    private int size;
+
+    public LongHashMap() {
+        this(16);
+    }
+
+    public LongHashMap(int capacity) {
+        allocate(tableSizeFor(capacity));
+    }
+
+    static int tableSizeFor(int capacity) {
+        int rc = 16;
+        while (rc < capacity * 2) {
+            rc <<= 1;
+        }
+        return rc;
+    }
+
+    static int hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+    private void allocate(int length) {
+        keys = new long[length];
+        values = new Object[length];
+        mask = length - 1;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    private int slot(long key) {
+        int i = hash(key) & mask;
+        while (values[i] != null) {
+            if (keys[i] == key) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+        return ~i;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        int i = slot(key);
+        return i < 0 ? null : (V) values[i];
+    }
+
+    public boolean containsKey(long key) {
+        return slot(key) >= 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+        if (value == null) {
+            throw new IllegalArgumentException("null values are not supported");
+        }
+        int i = slot(key);
+        if (i >= 0) {
+            V rc = (V) values[i];
+            values[i] = value;
+            return rc;
+        }
+        keys[~i] = key;
+        values[~i] = value;
+        size++;
+        // keep the load factor under 1/2 so probe sequences stay short.
+        if (size * 2 > values.length) {
+            rehash(values.length * 2);
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        int i = slot(key);
+        if (i < 0) {
+            return null;
+        }
+        V rc = (V) values[i];
+        size--;
+
+        // Shift back the following entries of the probe sequence
+        // so that lookups don't need tombstones.
+        int gap = i;
+        int next = (gap + 1) & mask;
+        while (values[next] != null) {
+            int home = hash(keys[next]) & mask;
+            if (((next - home) & mask) >= ((next - gap) & mask)) {
+                keys[gap] = keys[next];
+                values[gap] = values[next];
+                gap = next;
+            }
+            next = (next + 1) & mask;
+        }
+        values[gap] = null;
+        return rc;
+    }
+
+    public void clear() {
+        java.util.Arrays.fill(values, null);
+        size = 0;
+    }
+
+    private void rehash(int length) {
+        long oldKeys[] = keys;
+        Object oldValues[] = values;
+        allocate(length);
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] != null) {
+                int j = ~slot(oldKeys[i]);
+                keys[j] = oldKeys[i];
+                values[j] = oldValues[i];
+            }
+        }
+    }
+
+}
@@ -0,0 +1,151 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.util;
+
+/**
+ * <p>
+ * A hash map keyed by a pair of primitive longs.  Like the {@link LongHashMap}
+ * it uses open addressing with linear probing so that puts, gets and removes
+ * don't allocate any entry, tuple or boxed key objects.
+ * </p>
+ * <p>
+ * Null values are not supported.  This class is not thread safe.
+ * </p>
+ */
+public class LongPairHashMap<V> {
+
+    private long firstKeys[];
+    private long secondKeys[];
+    private Object values[];
+    private int mask;
+    private int size;
+
+    public LongPairHashMap() {
+        this(16);
+    }
+
+    public LongPairHashMap(int capacity) {
+        allocate(LongHashMap.tableSizeFor(capacity));
+    }
+
+    static int hash(long first, long second) {
+        return LongHashMap.hash(first * 31 + second);
+    }
+
+    private void allocate(int length) {
+        firstKeys = new long[length];
+        secondKeys = new long[length];
+        values = new Object[length];
+        mask = length - 1;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    private int slot(long first, long second) {
+        int i = hash(first, second) & mask;
+        while (values[i] != null) {
+            if (firstKeys[i] == first && secondKeys[i] == second) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+        return ~i;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(long first, long second) {
+        int i = slot(first, second);
+        return i < 0 ? null : (V) values[i];
+    }
+
+    public boolean containsKey(long first, long second) {
+        return slot(first, second) >= 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V put(long first, long second, V value) {
+        if (value == null) {
+            throw new IllegalArgumentException("null values are not supported");
+        }
+        int i = slot(first, second);
+        if (i >= 0) {
+            V rc = (V) values[i];
+            values[i] = value;
+            return rc;
+        }
+        firstKeys[~i] = first;
+        secondKeys[~i] = second;
+        values[~i] = value;
+        size++;
+        if (size * 2 > values.length) {
+            rehash(values.length * 2);
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V remove(long first, long second) {
+        int i = slot(first, second);
+        if (i < 0) {
+            return null;
+        }
+        V rc = (V) values[i];
+        size--;
+
+        int gap = i;
+        int next = (gap + 1) & mask;
+        while (values[next] != null) {
+            int home = hash(firstKeys[next], secondKeys[next]) & mask;
+            if (((next - home) & mask) >= ((next - gap) & mask)) {
+                firstKeys[gap] = firstKeys[next];
+                secondKeys[gap] = secondKeys[next];
+                values[gap] = values[next];
+                gap = next;
+            }
+            next = (next + 1) & mask;
+        }
+        values[gap] = null;
+        return rc;
+    }
+
+    public void clear() {
+        java.util.Arrays.fill(values, null);
+        size = 0;
+    }
+
+    private void rehash(int length) {
+        long oldFirstKeys[] = firstKeys;
+        long oldSecondKeys[] = secondKeys;
+        Object oldValues[] = values;
+        allocate(length);
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] != null) {
+                int j = ~slot(oldFirstKeys[i], oldSecondKeys[i]);
+                firstKeys[j] = oldFirstKeys[i];
+                secondKeys[j] = oldSecondKeys[i];
+                values[j] = oldValues[i];
+            }
+        }
+    }
+
+}
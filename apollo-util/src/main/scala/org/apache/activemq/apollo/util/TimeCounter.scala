@@ -25,16 +25,14 @@ import java.util.concurrent.TimeUnit
  */
 class TimeCounter extends MetricProducer[TimeMetric] {
 
-  private var max = Long.MinValue
-  private var min = Long.MaxValue
-  private var total = 0L
-  private var count = 0
+  private val histogram = new LogHistogram
 
   def apply(reset: Boolean):TimeMetric = {
-    val rc = if(count==0) {
+    val rc = if(histogram.count==0) {
       TimeMetric(0, 0, 0, 0)
     } else {
-      TimeMetric(count, total, min, max)
+      val h = histogram
+      TimeMetric(h.count.toInt, h.total, h.min, h.max, h.p50, h.p99, h.p999)
     }
     if (reset) {
       clear()
@@ -42,22 +40,20 @@ class TimeCounter extends MetricProducer[TimeMetric] {
     rc
   }
 
-  def clear() = {
-    max = Long.MinValue
-    min = Long.MaxValue
-    total = 0L
-    count = 0
-  }
+  def clear() = histogram.clear()
+
+  /**
+   * Adds the durations collected by another counter, so that threads can
+   * time into their own counters and report them together.
+   */
+  def merge(other:TimeCounter) = histogram.merge(other.histogram)
 
   /**
    * Adds a duration to our current Timing.
    */
   def +=(value: Long): Unit = {
     if (value > -1) {
-      max = value max max
-      min = value min min
-      total += value
-      count += 1
+      histogram += value
     }
   }
 
@@ -86,7 +82,12 @@ class TimeCounter extends MetricProducer[TimeMetric] {
   }
 }
 
-case class TimeMetric(count:Int, total:Long, min:Long, max:Long) {
+/**
+ * @param p50 the 50th percentile of the durations
+ * @param p99 the 99th percentile of the durations
+ * @param p999 the 99.9th percentile of the durations
+ */
+case class TimeMetric(count:Int, total:Long, min:Long, max:Long, p50:Long=0, p99:Long=0, p999:Long=0) {
   def maxTime(unit:TimeUnit) = (max).toFloat / unit.toNanos(1)
   def minTime(unit:TimeUnit) = (min).toFloat / unit.toNanos(1)
   def totalTime(unit:TimeUnit) = (total).toFloat / unit.toNanos(1)
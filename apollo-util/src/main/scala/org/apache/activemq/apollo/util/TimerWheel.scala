@@ -0,0 +1,175 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.util
+
+import list.{LinkedNodeList, LinkedNode}
+
+object TimerWheel {
+  val SLOT_BITS = 6
+  val SLOTS = 1 << SLOT_BITS
+  val SLOT_MASK = SLOTS - 1
+  val LEVELS = 4
+}
+
+/**
+ * <p>
+ * A hierarchical timing wheel.  Scheduling and canceling a timer are O(1)
+ * operations and advancing the wheel only does work proportional to the
+ * number of timers that fire plus an amortized cascading cost.
+ * </p>
+ * <p>
+ * Time is measured in ticks of the configured resolution.  Each of the
+ * wheel levels has 64 slots, so with a 1 second resolution the wheel
+ * tracks timers up to about 194 days out directly, timers beyond
+ * that are held in an overflow list until they come into range.
+ * </p>
+ * <p>
+ * This class is not thread safe.
+ * </p>
+ */
+class TimerWheel[T](val resolution:Long, start:Long) {
+  import TimerWheel._
+
+  class Timer(val value:T, val at:Long) extends LinkedNode[Timer] {
+    // rounded up so that timers never fire early.
+    private[TimerWheel] val tick = (at + resolution - 1) / resolution
+    def cancel = TimerWheel.this.cancel(this)
+    override def toString = "timer:{ at: "+at+", value: "+value+"}"
+  }
+
+  private val wheels = Array.fill(LEVELS, SLOTS)(new LinkedNodeList[Timer])
+  private val overflow = new LinkedNodeList[Timer]
+  private var due = new LinkedNodeList[Timer]
+
+  private var current = start / resolution
+  private var count = 0
+
+  /**
+   * The number of scheduled timers.
+   */
+  def size = count
+
+  def isEmpty = count == 0
+
+  /**
+   * Schedules value to fire at the specified time.
+   * @return the timer which can be used to cancel the schedule.
+   */
+  def schedule(value:T, at:Long):Timer = {
+    val timer = new Timer(value, at)
+    place(timer)
+    count += 1
+    timer
+  }
+
+  def cancel(timer:Timer):Unit = {
+    if( timer.isLinked ) {
+      timer.unlink
+      count -= 1
+    }
+  }
+
+  private def place(timer:Timer):Unit = {
+    val tick = timer.tick
+    if( tick <= current ) {
+      due.addLast(timer)
+    } else {
+      // use the lowest level in which the timer and the current
+      // tick only differ in the slot index.
+      var level = 0
+      while( level < LEVELS ) {
+        val shift = SLOT_BITS * (level + 1)
+        if( (tick >>> shift) == (current >>> shift) ) {
+          wheels(level)(((tick >>> (SLOT_BITS*level)) & SLOT_MASK).toInt).addLast(timer)
+          return
+        }
+        level += 1
+      }
+      overflow.addLast(timer)
+    }
+  }
+
+  /**
+   * Advances the wheel to the specified time, passing the values of all the timers that
+   * fired to the func.  The func can schedule and cancel timers but timers scheduled
+   * at or before the current time will only fire on the next advance.
+   */
+  def advance(now:Long)(func: T=>Unit):Unit = {
+    val target = now / resolution
+
+    val fired = due
+    due = new LinkedNodeList[Timer]
+    fire(fired, func)
+
+    while( current < target ) {
+      if( count == 0 ) {
+        // nothing to cascade, we can jump ahead.
+        current = target
+      } else {
+        current += 1
+        cascade
+        fire(wheels(0)((current & SLOT_MASK).toInt), func)
+      }
+    }
+  }
+
+  private def fire(list:LinkedNodeList[Timer], func: T=>Unit) = {
+    var timer = list.getHead
+    while( timer!=null ) {
+      timer.unlink
+      count -= 1
+      func(timer.value)
+      timer = list.getHead
+    }
+  }
+
+  private def cascade = {
+    // Find the highest level which wrapped around at the current tick.
+    var level = 0
+    while( level < LEVELS && ((current >>> (SLOT_BITS*(level+1))) << (SLOT_BITS*(level+1))) == current ) {
+      level += 1
+    }
+
+    if( level == LEVELS ) {
+      redistribute(overflow)
+      level -= 1
+    }
+    while( level > 0 ) {
+      redistribute(wheels(level)(((current >>> (SLOT_BITS*level)) & SLOT_MASK).toInt))
+      level -= 1
+    }
+  }
+
+  private def redistribute(list:LinkedNodeList[Timer]) = {
+    if( !list.isEmpty ) {
+      val timers = list.toArrayList
+      val i = timers.iterator
+      while( i.hasNext ) {
+        val timer = i.next
+        timer.unlink
+        if( timer.tick <= current ) {
+          // it expires at the current tick, so put it in the slot which
+          // is about to fire instead of holding it till the next advance.
+          wheels(0)((current & SLOT_MASK).toInt).addLast(timer)
+        } else {
+          place(timer)
+        }
+      }
+    }
+  }
+
+}
@@ -0,0 +1,73 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.util
+
+import org.scalatest.matchers.ShouldMatchers
+import java.util.Random
+
+class LogHistogramTest extends FunSuiteSupport with ShouldMatchers {
+  import LogHistogram._
+
+  test("buckets cover all the values in order") {
+    for( b <- 1 until BUCKETS ) {
+      bucket(upper_bound(b-1)) should be(b-1)
+      bucket(upper_bound(b-1)+1) should be(b)
+    }
+    bucket(Long.MaxValue) should be(BUCKETS-1)
+    upper_bound(BUCKETS-1) should be(Long.MaxValue)
+  }
+
+  test("percentiles are within an eighth of the actual values") {
+    val random = new Random(42)
+    val values = Array.fill(10000)((random.nextDouble * random.nextDouble * 1000000000L).toLong)
+    val histogram = new LogHistogram
+    values.foreach(histogram += _)
+    java.util.Arrays.sort(values)
+    for( p <- List(0.5, 0.99, 0.999) ) {
+      val actual = values(math.ceil(values.length * p).toInt - 1)
+      val estimate = histogram.percentile(p)
+      estimate should (be >= actual and be <= (actual + actual/8))
+    }
+    histogram.percentile(1.0) should be(values.last)
+  }
+
+  test("merged histograms count the values of both") {
+    val a = new LogHistogram
+    val b = new LogHistogram
+    (1 to 99).foreach(a += _)
+    b += 1000000
+    a.merge(b)
+    a.count should be(100)
+    a.max should be(1000000)
+    a.p50 should be(51)
+    a.p999 should be(1000000)
+    a.clear()
+    a.count should be(0)
+    a.p99 should be(0)
+  }
+
+  test("time counters report percentiles") {
+    val counter = new TimeCounter
+    (1 to 1000).foreach(counter += _)
+    val metric = counter(true)
+    metric.count should be(1000)
+    metric.p50 should (be >= 500L and be <= 511L)
+    metric.p99 should (be >= 990L and be <= 1023L)
+    counter(false).count should be(0)
+  }
+
+}
@@ -0,0 +1,57 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.util
+
+import org.scalatest.matchers.ShouldMatchers
+import java.util.Random
+import collection.mutable.HashMap
+
+class LongHashMapTest extends FunSuiteSupport with ShouldMatchers {
+
+  test("long keyed map agrees with a reference map") {
+    val random = new Random(42)
+    val map = new LongHashMap[String]()
+    val reference = HashMap[Long, String]()
+    for( i <- 0 until 100000 ) {
+      // a small key space so that probe sequences collide and wrap.
+      val key = random.nextInt(500).toLong
+      random.nextInt(3) match {
+        case 0 => map.put(key, "v"+i) should be(reference.put(key, "v"+i).getOrElse(null))
+        case 1 => map.remove(key) should be(reference.remove(key).getOrElse(null))
+        case 2 => map.get(key) should be(reference.get(key).getOrElse(null))
+      }
+      map.size should be(reference.size)
+    }
+  }
+
+  test("long pair keyed map agrees with a reference map") {
+    val random = new Random(42)
+    val map = new LongPairHashMap[String]()
+    val reference = HashMap[(Long, Long), String]()
+    for( i <- 0 until 100000 ) {
+      val first = random.nextInt(10).toLong
+      val second = random.nextInt(200).toLong
+      random.nextInt(3) match {
+        case 0 => map.put(first, second, "v"+i) should be(reference.put((first, second), "v"+i).getOrElse(null))
+        case 1 => map.remove(first, second) should be(reference.remove((first, second)).getOrElse(null))
+        case 2 => map.get(first, second) should be(reference.get((first, second)).getOrElse(null))
+      }
+      map.size should be(reference.size)
+    }
+  }
+
+}
@@ -0,0 +1,90 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.util
+
+import org.scalatest.matchers.ShouldMatchers
+import collection.mutable.ListBuffer
+
+class TimerWheelTest extends FunSuiteSupport with ShouldMatchers {
+
+  test("timers fire in order of their expiration") {
+    val wheel = new TimerWheel[Long](1000, 0)
+    val times = List(5000L, 1000L, 70*1000L, 64*64*1000L+3000L, 3000L)
+    times.foreach(t => wheel.schedule(t, t))
+    wheel.size should be(times.size)
+
+    val fired = ListBuffer[(Long, Long)]()
+    var now = 0L
+    while( !wheel.isEmpty ) {
+      now += 1000
+      wheel.advance(now) { t => fired += ((t, now)) }
+    }
+
+    fired.map(_._1).toList should be(times.sorted)
+    // none fire early, and none fire late.
+    fired.foreach { case (t, at) => at should be(t) }
+  }
+
+  test("timers beyond the wheel range fire on time") {
+    val wheel = new TimerWheel[String](1, 0)
+    val at = 64L*64*64*64 + 5
+    wheel.schedule("far", at)
+
+    val fired = ListBuffer[String]()
+    wheel.advance(at-1) { fired += _ }
+    fired.toList should be(Nil)
+    wheel.advance(at) { fired += _ }
+    fired.toList should be(List("far"))
+  }
+
+  test("timers on a level boundary fire on time") {
+    val wheel = new TimerWheel[Long](1, 0)
+    val ticks = List(64L, 128L, 64L*64, 64L*64*64)
+    ticks.foreach(t => wheel.schedule(t, t))
+
+    val fired = ListBuffer[(Long, Long)]()
+    var now = 0L
+    while( !wheel.isEmpty ) {
+      now += 1
+      wheel.advance(now) { t => fired += ((t, now)) }
+    }
+    fired.toList should be(ticks.map(t => (t, t)))
+  }
+
+  test("canceled timers do not fire") {
+    val wheel = new TimerWheel[String](1000, 0)
+    wheel.schedule("a", 2000)
+    val b = wheel.schedule("b", 2000)
+    wheel.schedule("c", 200*1000)
+    b.cancel
+    wheel.size should be(2)
+
+    val fired = ListBuffer[String]()
+    wheel.advance(200*1000) { fired += _ }
+    fired.toList should be(List("a", "c"))
+    wheel.size should be(0)
+  }
+
+  test("timers scheduled in the past fire on the next advance") {
+    val wheel = new TimerWheel[String](1000, 10*1000)
+    wheel.schedule("late", 5000)
+    val fired = ListBuffer[String]()
+    wheel.advance(10*1000) { fired += _ }
+    fired.toList should be(List("late"))
+  }
+
+}
@@ -239,6 +239,8 @@ case class BrokerResource() extends Resource {
         result.state = host.service_state.toString
         result.state_since = host.service_state.since
         result.store = host.store!=null
+        result.authorization_cache_hits = host.authorization_cache_hits.get
+        result.authorization_cache_misses = host.authorization_cache_misses.get
 
         val router:LocalRouter = host
 
@@ -283,6 +285,20 @@ case class BrokerResource() extends Resource {
     }
   }
 
+  @GET @Path("virtual-hosts/{id}/dispatch-grouping")
+  def dispatch_grouping(@PathParam("id") id : String):DispatchGroupingDTO = {
+    with_virtual_host(id) { host =>
+      monitoring(host) {
+        val grouping = host.affinity_scheduler.last_grouping
+        if(grouping!=null) {
+          grouping
+        } else {
+          result(NOT_FOUND)
+        }
+      }
+    }
+  }
+
   def link(connection:BrokerConnection) = {
     val link = new LinkDTO()
     link.kind = "connection"
@@ -378,12 +394,13 @@ case class BrokerResource() extends Resource {
   }
 
   @GET @Path("virtual-hosts/{id}/queues/{name:.*}")
-  def queue(@PathParam("id") id : String, @PathParam("name") name : String, @QueryParam("entries") entries:Boolean ):QueueStatusDTO = {
+  def queue(@PathParam("id") id : String, @PathParam("name") name : String, @QueryParam("entries") entries:Boolean,
+            @QueryParam("from_seq") from_seq:jl.Long, @QueryParam("limit") limit:jl.Integer, @QueryParam("summary") summary:Boolean):QueueStatusDTO = {
     with_virtual_host(id) { host =>
       val router: LocalRouter = host
       val node = router.queue_domain.destination_by_id.get(name).getOrElse(result(NOT_FOUND))
       sync(node) {
-        status(node, entries)
+        status(node, entries, from_seq, limit, summary)
       }
     }
   }
@@ -424,12 +441,13 @@ case class BrokerResource() extends Resource {
     }
   }
   @GET @Path("virtual-hosts/{id}/dsubs/{name:.*}")
-  def durable_subscription(@PathParam("id") id : String, @PathParam("name") name : String, @QueryParam("entries") entries:Boolean):QueueStatusDTO = {
+  def durable_subscription(@PathParam("id") id : String, @PathParam("name") name : String, @QueryParam("entries") entries:Boolean,
+            @QueryParam("from_seq") from_seq:jl.Long, @QueryParam("limit") limit:jl.Integer, @QueryParam("summary") summary:Boolean):QueueStatusDTO = {
     with_virtual_host(id) { host =>
       val router:LocalRouter = host
       val node = router.topic_domain.durable_subscriptions_by_id.get(name).getOrElse(result(NOT_FOUND))
       sync(node) {
-        status(node, entries)
+        status(node, entries, from_seq, limit, summary)
       }
     }
   }
@@ -472,6 +490,7 @@ case class BrokerResource() extends Resource {
       rc.config = node.config
       rc.producer_counter = node.producer_counter
       rc.consumer_counter = node.consumer_counter
+      trace_stages(node.tracer, rc.trace_stages)
 
       node.durable_subscriptions.foreach {
         q =>
@@ -498,7 +517,33 @@ case class BrokerResource() extends Resource {
     }
   }
 
-  def status(q:Queue, entries:Boolean=false) = monitoring(q) {
+  def trace_stages(tracer:DeliveryTracer, rc:java.util.List[TraceStageDTO]) = {
+    tracer.metrics.foreach { case (stage, metric) =>
+      val dto = new TraceStageDTO
+      dto.stage = stage
+      dto.count = metric.count
+      dto.total = metric.total
+      dto.min = metric.min
+      dto.max = metric.max
+      dto.p50 = metric.p50
+      dto.p99 = metric.p99
+      dto.p999 = metric.p999
+      rc.add(dto)
+    }
+  }
+
+  /**
+   * The number of entries returned in a page when no limit is requested.
+   */
+  val DEFAULT_ENTRIES_LIMIT = 1000
+
+  /**
+   * @param entries should a page of the queue entries be returned?
+   * @param from_seq the seq of the first entry of the page
+   * @param limit the maximum number of entries in the page
+   * @param summary should the totals of the entries per state be returned?
+   */
+  def status(q:Queue, entries:Boolean=false, from_seq:jl.Long=null, limit:jl.Integer=null, summary:Boolean=false) = monitoring(q) {
     val rc = new QueueStatusDTO
     rc.id = q.id
     rc.state = q.service_state.toString
@@ -506,28 +551,12 @@ case class BrokerResource() extends Resource {
     rc.binding = q.binding.binding_dto
     rc.config = q.config
     rc.metrics = get_queue_metrics(q)
-
-    if( entries ) {
-      var cur = q.head_entry
-      while( cur!=null ) {
-
-        val e = new EntryStatusDTO
-        e.seq = cur.seq
-        e.count = cur.count
-        e.size = cur.size
-        e.consumer_count = cur.parked.size
-        e.is_prefetched = cur.is_prefetched
-        e.state = cur.label
-
-        rc.entries.add(e)
-
-        cur = if( cur == q.tail_entry ) {
-          null
-        } else {
-          cur.nextOrTail
-        }
-      }
-    }
+    rc.swap_passes = q.swap_planner.pass_counter
+    rc.swap_pass_visited = q.swap_planner.last_visited
+    rc.swap_pass_changed = q.swap_planner.last_changed
+    rc.selector_indexed_consumers = q.selector_index.indexed_consumers
+    rc.selector_skipped_matches = q.selector_index.skipped_matches
+    trace_stages(q.tracer, rc.trace_stages)
 
     q.inbound_sessions.flatMap( _.producer.connection ).foreach { connection=>
       rc.producers.add(link(connection))
@@ -540,6 +569,9 @@ case class BrokerResource() extends Resource {
       status.total_dispatched_size = sub.total_dispatched_size
       status.total_ack_count = sub.total_ack_count
       status.total_nack_count = sub.total_nack_count
+      status.read_ahead_size = sub.read_ahead_size
+      status.total_stall_count = sub.total_stall_count
+      status.total_stall_time = sub.stall_time / 1000000
       status.acquired_size = sub.acquired_size
       status.acquired_count = sub.acquired_count
       status.waiting_on = if( sub.full ) {
@@ -553,7 +585,62 @@ case class BrokerResource() extends Resource {
       }
       rc.consumers.add(status)
     }
-    rc
+
+    if( entries || summary ) {
+      val start = if( from_seq==null ) 0L else from_seq.longValue
+      val max = if( limit==null ) DEFAULT_ENTRIES_LIMIT else limit.intValue.max(0)
+      browse_entries(q, rc, start, if( entries ) max else 0, summary)
+    } else {
+      FutureResult(Success(rc))
+    }
+  }
+
+  /**
+   * Adds up to limit entries starting at from_seq and the entry summary if
+   * requested to the status.  The queue visits its entries in bounded slices,
+   * so the status is completed asynchronously.
+   */
+  def browse_entries(q:Queue, rc:QueueStatusDTO, from_seq:Long, limit:Int, summary:Boolean) = {
+    val future = FutureResult[QueueStatusDTO]()
+    val summaries = new java.util.LinkedHashMap[String, EntrySummaryDTO]()
+    q.dispatch_queue {
+      q.browse_entries(from_seq) { entry =>
+        if( rc.entries.size < limit ) {
+          val e = new EntryStatusDTO
+          e.seq = entry.seq
+          e.count = entry.count
+          e.size = entry.size
+          e.consumer_count = entry.parked.size
+          e.is_prefetched = entry.is_prefetched
+          e.state = entry.label
+          rc.entries.add(e)
+        } else if( limit > 0 && rc.next_entry_seq == -1 ) {
+          rc.next_entry_seq = entry.seq
+        }
+
+        if( summary ) {
+          val label = entry.label
+          var totals = summaries.get(label)
+          if( totals==null ) {
+            totals = new EntrySummaryDTO
+            totals.state = label
+            totals.first_seq = entry.seq
+            summaries.put(label, totals)
+          }
+          totals.entries += 1
+          totals.count += entry.count
+          totals.size += entry.size
+          totals.last_seq = entry.seq
+        }
+
+        // stop once the page is full unless the whole summary is needed.
+        summary || rc.next_entry_seq == -1
+      } {
+        rc.entry_summary.addAll(summaries.values)
+        future.apply(Success(rc))
+      }
+    }
+    future
   }
 
 
@@ -588,6 +675,8 @@ case class BrokerResource() extends Resource {
     result.state_since = connector.service_state.since
     result.connection_counter = connector.accepted.get
     result.connected = connector.connected.get
+    result.conversion_counter = connector.conversions.count.get
+    result.conversion_time = connector.conversions.time.get / 1000000
     result.protocol = Option(connector.config.protocol).getOrElse("any")
     result.local_address = Option(connector.socket_address).map(_.toString).getOrElse("any")
     result